@@ -0,0 +1,315 @@
+package pt.ulisboa.tecnico.sdis.federated;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Naming facade over several backends, e.g. the ZooKeeper ensembles of each
+ * region and a UDDI registry, given in locality order, nearest first.<br>
+ * <br>
+ * A lookup queries the first backend and returns the first record found. The
+ * next backend is queried when the previous one fails or does not have the
+ * name, or, with hedging, when it has not answered within the hedge delay, so
+ * that a slow region does not delay the answer. With a zero delay all
+ * backends are queried at once.<br>
+ * <br>
+ * Listings query all backends at once and merge their records in backend
+ * order, so the latency is that of the slowest backend, not the sum.
+ */
+public class FederatedNaming implements AutoCloseable {
+
+	/** Hedge delay that disables hedging */
+	public static final long NO_HEDGING = -1;
+
+	/** Backends in locality order */
+	private final List<NamingBackend> backends;
+
+	/** Time to wait for a backend before querying the next, NO_HEDGING to wait for its answer */
+	private final long hedgeDelayMillis;
+
+	/** Starts the hedged queries, null without hedging */
+	private final ScheduledThreadPoolExecutor hedger;
+
+	//
+	// Constructors
+	//
+
+	/**
+	 * Creates a facade that queries the backends one at a time, in order.
+	 * 
+	 * @param backends backends in locality order, nearest first
+	 */
+	public FederatedNaming(List<? extends NamingBackend> backends) {
+		this(backends, NO_HEDGING);
+	}
+
+	/**
+	 * Creates a facade that queries the next backend when the previous one
+	 * has not answered within the hedge delay.
+	 * 
+	 * @param backends         backends in locality order, nearest first
+	 * @param hedgeDelayMillis time to wait for each backend before also
+	 *                         querying the next, in milliseconds, 0 to query
+	 *                         all at once, or NO_HEDGING
+	 */
+	public FederatedNaming(List<? extends NamingBackend> backends, long hedgeDelayMillis) {
+		if (backends == null)
+			throw new IllegalArgumentException("Backends cannot be null!");
+		if (backends.isEmpty())
+			throw new IllegalArgumentException("Backends cannot be empty!");
+		if (hedgeDelayMillis < 0 && hedgeDelayMillis != NO_HEDGING)
+			throw new IllegalArgumentException("Hedge delay cannot be negative!");
+		for (NamingBackend backend : backends)
+			if (backend == null)
+				throw new IllegalArgumentException("Backend cannot be null!");
+
+		this.backends = new ArrayList<>(backends);
+		this.hedgeDelayMillis = hedgeDelayMillis;
+		if (hedgeDelayMillis > 0) {
+			this.hedger = new ScheduledThreadPoolExecutor(1, r -> {
+				Thread thread = new Thread(r, "FederatedNaming-hedging");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.hedger.setRemoveOnCancelPolicy(true);
+		} else {
+			this.hedger = null;
+		}
+	}
+
+	//
+	// Accessors
+	//
+
+	/**
+	 * 
+	 * @return Backends in locality order
+	 */
+	public List<NamingBackend> getBackends() {
+		return new ArrayList<>(backends);
+	}
+
+	/**
+	 * 
+	 * @return Hedge delay in milliseconds, or NO_HEDGING
+	 */
+	public long getHedgeDelay() {
+		return hedgeDelayMillis;
+	}
+
+	//
+	// Naming interface
+	//
+
+	/**
+	 * Returns the first record found for the name.
+	 * 
+	 * @param name name to look up
+	 * @return Record found, or null if no backend has the name
+	 * @throws FederatedNamingException if all backends failed
+	 */
+	public FederatedRecord lookup(String name) throws FederatedNamingException {
+		return await(lookupAsync(name), "lookup");
+	}
+
+	/**
+	 * Returns the records under the name in all backends, merged in backend
+	 * order. Records of backends that failed are left out.
+	 * 
+	 * @param name parent name or name pattern
+	 * @return Records of all backends
+	 * @throws FederatedNamingException if all backends failed
+	 */
+	public Collection<FederatedRecord> listRecords(String name) throws FederatedNamingException {
+		return await(listRecordsAsync(name), "listRecords");
+	}
+
+	/**
+	 * Asynchronously returns the first record found for the name.
+	 * 
+	 * @param name name to look up
+	 * @return Future of the record found, or of null if no backend has the
+	 *         name
+	 */
+	public CompletableFuture<FederatedRecord> lookupAsync(String name) {
+		if (name == null)
+			throw new IllegalArgumentException("Name cannot be null!");
+		Lookup lookup = new Lookup(name);
+		if (hedgeDelayMillis == 0) {
+			for (int i = 0; i < backends.size(); i++)
+				lookup.queryNext();
+		} else {
+			lookup.queryNext();
+		}
+		return lookup.result;
+	}
+
+	/**
+	 * Asynchronously returns the records under the name in all backends.
+	 * 
+	 * @param name parent name or name pattern
+	 * @return Future of the records of all backends
+	 */
+	public CompletableFuture<Collection<FederatedRecord>> listRecordsAsync(String name) {
+		if (name == null)
+			throw new IllegalArgumentException("Name cannot be null!");
+
+		List<CompletableFuture<Collection<FederatedRecord>>> listings = new ArrayList<>(backends.size());
+		for (NamingBackend backend : backends)
+			listings.add(query(() -> backend.listRecordsAsync(name)));
+
+		CompletableFuture<Collection<FederatedRecord>> result = new CompletableFuture<>();
+		CompletableFuture.allOf(listings.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+			// records with the same name and URI are returned once
+			Map<List<String>, FederatedRecord> merged = new LinkedHashMap<>();
+			FederatedNamingException failure = new FederatedNamingException("All backends failed");
+			int failed = 0;
+			for (CompletableFuture<Collection<FederatedRecord>> listing : listings) {
+				Collection<FederatedRecord> records;
+				try {
+					records = listing.join();
+				} catch (CompletionException ce) {
+					failure.addSuppressed(ce.getCause());
+					failed++;
+					continue;
+				}
+				for (FederatedRecord record : records)
+					merged.putIfAbsent(key(record), record);
+			}
+			if (failed == listings.size())
+				result.completeExceptionally(failure);
+			else
+				result.complete(new ArrayList<>(merged.values()));
+		});
+		return result;
+	}
+
+	/**
+	 * Stops starting hedged queries. The backends are not closed.
+	 */
+	@Override
+	public void close() {
+		if (hedger != null)
+			hedger.shutdownNow();
+	}
+
+	//
+	// private implementation
+	//
+
+	/** A lookup in progress, which queries the backends in order. */
+	private class Lookup {
+
+		final String name;
+
+		final CompletableFuture<FederatedRecord> result = new CompletableFuture<>();
+
+		/** Index of the next backend to query */
+		final AtomicInteger next = new AtomicInteger();
+
+		/** Number of backends that answered */
+		final AtomicInteger answered = new AtomicInteger();
+
+		/** Did a backend answer that the name is not bound? */
+		volatile boolean notFound = false;
+
+		final FederatedNamingException failure = new FederatedNamingException("All backends failed");
+
+		/** Hedged query of the next backend, if scheduled */
+		volatile ScheduledFuture<?> hedge;
+
+		Lookup(String name) {
+			this.name = name;
+		}
+
+		/** Queries the next backend, if any, unless a record was found. */
+		void queryNext() {
+			if (result.isDone())
+				return;
+			int index = next.getAndIncrement();
+			if (index >= backends.size())
+				return;
+
+			NamingBackend backend = backends.get(index);
+			query(() -> backend.lookupAsync(name)).whenComplete(this::answer);
+			// not if an answer has already moved on to the next backend
+			if (hedger != null && next.get() == index + 1 && index + 1 < backends.size() && !result.isDone())
+				hedge = hedger.schedule(this::queryNext, hedgeDelayMillis, TimeUnit.MILLISECONDS);
+		}
+
+		void answer(FederatedRecord record, Throwable e) {
+			if (record != null) {
+				result.complete(record);
+				cancelHedge();
+				return;
+			}
+			if (e != null) {
+				synchronized (failure) {
+					failure.addSuppressed(e);
+				}
+			} else {
+				notFound = true;
+			}
+
+			if (answered.incrementAndGet() == backends.size()) {
+				if (notFound)
+					result.complete(null);
+				else
+					result.completeExceptionally(failure);
+			} else {
+				// no need to wait for the hedge delay
+				cancelHedge();
+				queryNext();
+			}
+		}
+
+		private void cancelHedge() {
+			ScheduledFuture<?> h = hedge;
+			if (h != null)
+				h.cancel(false);
+		}
+	}
+
+	/** Starts a backend query, reporting exceptions thrown by the backend in the future. */
+	private static <T> CompletableFuture<T> query(Supplier<CompletableFuture<T>> call) {
+		try {
+			return call.get();
+		} catch (RuntimeException e) {
+			CompletableFuture<T> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	private static List<String> key(FederatedRecord record) {
+		List<String> key = new ArrayList<>(2);
+		key.add(record.getName());
+		key.add(record.getURI());
+		return key;
+	}
+
+	private static <T> T await(CompletableFuture<T> future, String fName) throws FederatedNamingException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof FederatedNamingException)
+				throw (FederatedNamingException) e.getCause();
+			throw new FederatedNamingException(fName, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FederatedNamingException(fName, e);
+		}
+	}
+
+}
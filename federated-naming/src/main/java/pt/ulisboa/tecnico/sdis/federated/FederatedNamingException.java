@@ -0,0 +1,25 @@
+package pt.ulisboa.tecnico.sdis.federated;
+
+/**
+ * Class that represents a federated naming exception. When no backend
+ * answers, the failures of the backends are added as suppressed exceptions.
+ */
+public class FederatedNamingException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public FederatedNamingException() {
+	}
+
+	public FederatedNamingException(String message) {
+		super(message);
+	}
+
+	public FederatedNamingException(Throwable cause) {
+		super(cause);
+	}
+
+	public FederatedNamingException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
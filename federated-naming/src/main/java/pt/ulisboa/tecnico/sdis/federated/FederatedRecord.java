@@ -0,0 +1,75 @@
+package pt.ulisboa.tecnico.sdis.federated;
+
+import java.util.Objects;
+
+/**
+ * Record found by a naming backend: the name, e.g. a ZooKeeper path or a UDDI
+ * organization name, the URI bound to it, and the backend that returned it.
+ */
+public final class FederatedRecord {
+
+	/** Name of the backend that returned the record */
+	private final String backend;
+
+	/** Name bound to the URI */
+	private final String name;
+
+	/** URI of the service */
+	private final String uri;
+
+	public FederatedRecord(String backend, String name, String uri) {
+		if (backend == null)
+			throw new IllegalArgumentException("Backend cannot be null!");
+		if (name == null)
+			throw new IllegalArgumentException("Name cannot be null!");
+		this.backend = backend;
+		this.name = name;
+		this.uri = uri;
+	}
+
+	/**
+	 * 
+	 * @return Name of the backend that returned the record
+	 */
+	public String getBackend() {
+		return backend;
+	}
+
+	/**
+	 * 
+	 * @return Name bound to the URI
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * 
+	 * @return URI of the service
+	 */
+	public String getURI() {
+		return uri;
+	}
+
+	@Override
+	public String toString() {
+		return "FederatedRecord: [backend=" + backend + ", name=" + name + ", URI=" + uri + "]";
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(backend, name, uri);
+	}
+
+	@Override
+	public boolean equals(Object object) {
+		if (this == object)
+			return true;
+		if (object == null || this.getClass() != object.getClass())
+			return false;
+
+		FederatedRecord other = (FederatedRecord) object;
+		return backend.equals(other.backend) && name.equals(other.name) && Objects.equals(uri, other.uri);
+	}
+
+}
@@ -0,0 +1,36 @@
+package pt.ulisboa.tecnico.sdis.federated;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A naming server queried by {@link FederatedNaming}, e.g. the ZooKeeper
+ * ensemble of a region or a UDDI registry. Methods must not block: the
+ * results are returned as futures.
+ */
+public interface NamingBackend {
+
+	/**
+	 * 
+	 * @return Name of the backend, e.g. the region, reported in the records
+	 */
+	String getName();
+
+	/**
+	 * Looks up the record bound to the name.
+	 * 
+	 * @param name name to look up
+	 * @return Future of the record, or of null if the name is not bound
+	 */
+	CompletableFuture<FederatedRecord> lookupAsync(String name);
+
+	/**
+	 * Lists the records under the name, e.g. the children of a zNode or the
+	 * organizations matching a pattern.
+	 * 
+	 * @param name parent name or name pattern
+	 * @return Future of the records, empty if there are none
+	 */
+	CompletableFuture<Collection<FederatedRecord>> listRecordsAsync(String name);
+
+}
@@ -0,0 +1,216 @@
+package pt.ulisboa.tecnico.sdis.federated;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Records resolved by a backend, as stored in a snapshot file: the record
+ * found by each looked up name and the records listed under each listed
+ * name.<br>
+ * <br>
+ * The file is compact binary: a header with a magic number and the format
+ * version, the lookups, the listings, and a CRC-32 of all that precedes it.
+ * Strings are written as their length followed by their UTF-8 bytes.
+ */
+final class NamingSnapshot {
+
+	/** "NSNP" */
+	private static final int MAGIC = 0x4e534e50;
+
+	private static final int VERSION = 1;
+
+	/** Length of the null string */
+	private static final int NULL = -1;
+
+	/** Record found by each looked up name */
+	final Map<String, FederatedRecord> lookups;
+
+	/** Records listed under each listed name */
+	final Map<String, List<FederatedRecord>> listings;
+
+	NamingSnapshot(Map<String, FederatedRecord> lookups, Map<String, ? extends Collection<FederatedRecord>> listings) {
+		this.lookups = new LinkedHashMap<>(lookups);
+		this.listings = new LinkedHashMap<>();
+		for (Map.Entry<String, ? extends Collection<FederatedRecord>> entry : listings.entrySet())
+			this.listings.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+	}
+
+	//
+	// Reading
+	//
+
+	/**
+	 * Reads a snapshot file. The file is read into a heap buffer and closed
+	 * before decoding: the records are copied to heap maps anyway, and a
+	 * memory mapping would stay open until garbage collected, preventing the
+	 * next write from replacing the file on some platforms, e.g. Windows.
+	 *
+	 * @param file snapshot file
+	 * @return Snapshot read
+	 * @throws IOException if the file cannot be read or is corrupt
+	 */
+	static NamingSnapshot read(Path file) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Snapshot file too large " + file);
+			buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					throw new IOException("Snapshot file truncated " + file);
+			}
+			buffer.flip();
+		}
+		try {
+			return decode(buffer);
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Corrupt snapshot file " + file, e);
+		}
+	}
+
+	private static NamingSnapshot decode(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < 4 || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a snapshot file");
+		int end = buffer.limit() - 4;
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[8192];
+		ByteBuffer content = buffer.duplicate();
+		content.limit(end);
+		while (content.hasRemaining()) {
+			int n = Math.min(chunk.length, content.remaining());
+			content.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		if ((int) crc.getValue() != buffer.getInt(end))
+			throw new IOException("Snapshot file checksum does not match");
+
+		buffer.position(4);
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported snapshot version " + version);
+
+		Map<String, FederatedRecord> lookups = new LinkedHashMap<>();
+		for (int i = buffer.getInt(); i > 0; i--)
+			lookups.put(readString(buffer), readRecord(buffer));
+
+		Map<String, List<FederatedRecord>> listings = new LinkedHashMap<>();
+		for (int i = buffer.getInt(); i > 0; i--) {
+			String name = readString(buffer);
+			int count = buffer.getInt();
+			if (count < 0)
+				throw new IllegalArgumentException("Negative record count");
+			List<FederatedRecord> records = new ArrayList<>(Math.min(count, buffer.remaining()));
+			for (int j = 0; j < count; j++)
+				records.add(readRecord(buffer));
+			listings.put(name, records);
+		}
+		return new NamingSnapshot(lookups, listings);
+	}
+
+	private static FederatedRecord readRecord(ByteBuffer buffer) {
+		String backend = readString(buffer);
+		String name = readString(buffer);
+		String uri = readString(buffer);
+		return new FederatedRecord(backend, name, uri);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == NULL)
+			return null;
+		if (length < 0 || length > buffer.remaining())
+			throw new IllegalArgumentException("Invalid string length " + length);
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	//
+	// Writing
+	//
+
+	/**
+	 * Writes the snapshot atomically: the content is written to a temporary
+	 * file in the same directory, forced to disk, and renamed over the
+	 * snapshot file, so that readers find either the previous snapshot or the
+	 * new one, never a partial file.
+	 *
+	 * @param file snapshot file
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	void write(Path file) throws IOException {
+		Path directory = file.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.wrap(encode());
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				channel.force(true);
+			}
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private byte[] encode() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+
+		out.writeInt(lookups.size());
+		for (Map.Entry<String, FederatedRecord> entry : lookups.entrySet()) {
+			writeString(out, entry.getKey());
+			writeRecord(out, entry.getValue());
+		}
+
+		out.writeInt(listings.size());
+		for (Map.Entry<String, List<FederatedRecord>> entry : listings.entrySet()) {
+			writeString(out, entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for (FederatedRecord record : entry.getValue())
+				writeRecord(out, record);
+		}
+		out.flush();
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt((int) crc.getValue());
+		return bytes.toByteArray();
+	}
+
+	private static void writeRecord(DataOutputStream out, FederatedRecord record) throws IOException {
+		writeString(out, record.getBackend());
+		writeString(out, record.getName());
+		writeString(out, record.getURI());
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(NULL);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+}
@@ -0,0 +1,285 @@
+package pt.ulisboa.tecnico.sdis.federated;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Backend that keeps the records resolved through another backend, e.g. a
+ * ZooKeeper ensemble or a UDDI registry, in a local snapshot file, so that a
+ * service can resolve its names as soon as it starts, even if the registry is
+ * down.<br>
+ * <br>
+ * When created, the records of the snapshot file are loaded and served at
+ * once, and each of their names is queried in the background. The answer of
+ * the registry replaces the snapshot records of the name, which is then
+ * resolved by the registry as usual. While the registry fails, the last
+ * records resolved are served, and the names not yet reconciled are queried
+ * again at every save interval.<br>
+ * <br>
+ * The resolved records are saved at every save interval, if changed, and on
+ * close. The file is replaced atomically, so a crash while saving leaves the
+ * previous snapshot.
+ */
+public class SnapshotNamingBackend implements NamingBackend, AutoCloseable {
+
+	/** Backend of the registry */
+	private final NamingBackend backend;
+
+	/** Snapshot file */
+	private final Path file;
+
+	/** Record found by each looked up name */
+	private final ConcurrentMap<String, FederatedRecord> lookups = new ConcurrentHashMap<>();
+
+	/** Records listed under each listed name */
+	private final ConcurrentMap<String, Collection<FederatedRecord>> listings = new ConcurrentHashMap<>();
+
+	/** Looked up names loaded from the snapshot and not yet answered by the registry */
+	private final Set<String> staleLookups = ConcurrentHashMap.newKeySet();
+
+	/** Listed names loaded from the snapshot and not yet answered by the registry */
+	private final Set<String> staleListings = ConcurrentHashMap.newKeySet();
+
+	/** Have the records changed since the last save? */
+	private final AtomicBoolean changed = new AtomicBoolean(false);
+
+	/** Saves the snapshot and reconciles the stale names periodically */
+	private final ScheduledThreadPoolExecutor saver;
+
+	//
+	// Constructors
+	//
+
+	/**
+	 * Creates a backend that loads the snapshot file, if it exists, and starts
+	 * reconciling its names with the registry. A snapshot file that cannot be
+	 * read is ignored, and the names are resolved by the registry.
+	 *
+	 * @param backend            backend of the registry
+	 * @param file               snapshot file, created if missing
+	 * @param saveIntervalMillis time between saves, in milliseconds
+	 */
+	public SnapshotNamingBackend(NamingBackend backend, Path file, long saveIntervalMillis) {
+		if (backend == null)
+			throw new IllegalArgumentException("Backend cannot be null!");
+		if (file == null)
+			throw new IllegalArgumentException("Snapshot file cannot be null!");
+		if (saveIntervalMillis <= 0)
+			throw new IllegalArgumentException("Save interval must be positive!");
+		this.backend = backend;
+		this.file = file;
+
+		if (Files.exists(file)) {
+			try {
+				NamingSnapshot snapshot = NamingSnapshot.read(file);
+				lookups.putAll(snapshot.lookups);
+				listings.putAll(snapshot.listings);
+				staleLookups.addAll(snapshot.lookups.keySet());
+				staleListings.addAll(snapshot.listings.keySet());
+			} catch (IOException e) {
+				// overwritten by the next save
+			}
+		}
+
+		this.saver = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "SnapshotNamingBackend-save");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.saver.scheduleWithFixedDelay(this::saveAndReconcile, saveIntervalMillis, saveIntervalMillis,
+				TimeUnit.MILLISECONDS);
+		reconcile();
+	}
+
+	//
+	// Accessors
+	//
+
+	/**
+	 *
+	 * @return Backend of the registry
+	 */
+	public NamingBackend getBackend() {
+		return backend;
+	}
+
+	/**
+	 *
+	 * @return Snapshot file
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of names loaded from the snapshot that the registry
+	 * has not answered yet.
+	 *
+	 * @return stale name count
+	 */
+	public int getStaleCount() {
+		return staleLookups.size() + staleListings.size();
+	}
+
+	//
+	// Naming interface
+	//
+
+	@Override
+	public String getName() {
+		return backend.getName();
+	}
+
+	/**
+	 * Looks up the record bound to the name. A name loaded from the snapshot
+	 * is answered at once while being reconciled; otherwise the registry is
+	 * queried, and its failure is answered with the last record found, if
+	 * any.
+	 */
+	@Override
+	public CompletableFuture<FederatedRecord> lookupAsync(String name) {
+		if (name == null)
+			throw new IllegalArgumentException("Name cannot be null!");
+		FederatedRecord saved = lookups.get(name);
+		if (saved != null && staleLookups.contains(name))
+			return CompletableFuture.completedFuture(saved);
+
+		CompletableFuture<FederatedRecord> result = new CompletableFuture<>();
+		query(() -> backend.lookupAsync(name)).whenComplete((record, e) -> {
+			if (e == null) {
+				lookupAnswered(name, record);
+				result.complete(record);
+			} else {
+				FederatedRecord last = lookups.get(name);
+				if (last != null)
+					result.complete(last);
+				else
+					result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Lists the records under the name. A name loaded from the snapshot is
+	 * answered at once while being reconciled; otherwise the registry is
+	 * queried, and its failure is answered with the last records listed, if
+	 * any.
+	 */
+	@Override
+	public CompletableFuture<Collection<FederatedRecord>> listRecordsAsync(String name) {
+		if (name == null)
+			throw new IllegalArgumentException("Name cannot be null!");
+		Collection<FederatedRecord> saved = listings.get(name);
+		if (saved != null && staleListings.contains(name))
+			return CompletableFuture.completedFuture(new ArrayList<>(saved));
+
+		CompletableFuture<Collection<FederatedRecord>> result = new CompletableFuture<>();
+		query(() -> backend.listRecordsAsync(name)).whenComplete((records, e) -> {
+			if (e == null) {
+				listingAnswered(name, records);
+				result.complete(records);
+			} else {
+				Collection<FederatedRecord> last = listings.get(name);
+				if (last != null)
+					result.complete(new ArrayList<>(last));
+				else
+					result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Saves the resolved records to the snapshot file.
+	 *
+	 * @throws FederatedNamingException if the file cannot be written
+	 */
+	public synchronized void save() throws FederatedNamingException {
+		changed.set(false);
+		try {
+			new NamingSnapshot(lookups, listings).write(file);
+		} catch (IOException e) {
+			changed.set(true);
+			throw new FederatedNamingException("save", e);
+		}
+	}
+
+	/**
+	 * Stops the periodic saves and saves the records, if changed. The backend
+	 * of the registry is not closed.
+	 *
+	 * @throws FederatedNamingException if the file cannot be written
+	 */
+	@Override
+	public void close() throws FederatedNamingException {
+		saver.shutdownNow();
+		if (changed.get())
+			save();
+	}
+
+	@Override
+	public String toString() {
+		return "SnapshotNamingBackend: [backend=" + backend + ", file=" + file + "]";
+	}
+
+	//
+	// private implementation
+	//
+
+	private void lookupAnswered(String name, FederatedRecord record) {
+		FederatedRecord previous = (record == null) ? lookups.remove(name) : lookups.put(name, record);
+		staleLookups.remove(name);
+		if (record == null ? previous != null : !record.equals(previous))
+			changed.set(true);
+	}
+
+	private void listingAnswered(String name, Collection<FederatedRecord> records) {
+		Collection<FederatedRecord> previous = listings.put(name, new ArrayList<>(records));
+		staleListings.remove(name);
+		if (previous == null || !new ArrayList<>(records).equals(previous))
+			changed.set(true);
+	}
+
+	/** Queries the registry for the names not yet reconciled. */
+	private void reconcile() {
+		for (String name : staleLookups)
+			query(() -> backend.lookupAsync(name)).thenAccept(record -> lookupAnswered(name, record));
+		for (String name : staleListings)
+			query(() -> backend.listRecordsAsync(name)).thenAccept(records -> listingAnswered(name, records));
+	}
+
+	private void saveAndReconcile() {
+		if (changed.get()) {
+			try {
+				save();
+			} catch (FederatedNamingException e) {
+				// saved again at the next interval
+			}
+		}
+		reconcile();
+	}
+
+	/** Starts a backend query, reporting exceptions thrown by the backend in the future. */
+	private static <T> CompletableFuture<T> query(Supplier<CompletableFuture<T>> call) {
+		try {
+			return call.get();
+		} catch (RuntimeException e) {
+			CompletableFuture<T> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+}
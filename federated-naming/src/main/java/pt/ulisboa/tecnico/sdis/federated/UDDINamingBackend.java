@@ -0,0 +1,87 @@
+package pt.ulisboa.tecnico.sdis.federated;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import pt.ulisboa.tecnico.sdis.ws.uddi.UDDINaming;
+import pt.ulisboa.tecnico.sdis.ws.uddi.UDDIRecord;
+
+/**
+ * Backend of a UDDI registry. {@link UDDINaming} only has blocking
+ * operations, so they are run on the provided executor. Names are
+ * organization names, and may be patterns when listing.
+ */
+public class UDDINamingBackend implements NamingBackend {
+
+	private final String name;
+
+	private final UDDINaming uddiNaming;
+
+	private final Executor executor;
+
+	/**
+	 * 
+	 * @param name       name of the backend
+	 * @param uddiNaming naming client of the registry
+	 * @param executor   runs the blocking registry inquiries
+	 */
+	public UDDINamingBackend(String name, UDDINaming uddiNaming, Executor executor) {
+		if (name == null)
+			throw new IllegalArgumentException("Name cannot be null!");
+		if (uddiNaming == null)
+			throw new IllegalArgumentException("UDDINaming cannot be null!");
+		if (executor == null)
+			throw new IllegalArgumentException("Executor cannot be null!");
+		this.name = name;
+		this.uddiNaming = uddiNaming;
+		this.executor = executor;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public CompletableFuture<FederatedRecord> lookupAsync(String orgName) {
+		CompletableFuture<FederatedRecord> result = new CompletableFuture<>();
+		executor.execute(() -> {
+			try {
+				UDDIRecord record = uddiNaming.lookupRecord(orgName);
+				result.complete(record == null ? null : toRecord(record));
+			} catch (Exception e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public CompletableFuture<Collection<FederatedRecord>> listRecordsAsync(String orgName) {
+		CompletableFuture<Collection<FederatedRecord>> result = new CompletableFuture<>();
+		executor.execute(() -> {
+			try {
+				Collection<UDDIRecord> records = uddiNaming.listRecords(orgName);
+				Collection<FederatedRecord> list = new ArrayList<>(records.size());
+				for (UDDIRecord record : records)
+					list.add(toRecord(record));
+				result.complete(list);
+			} catch (Exception e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "UDDINamingBackend: [name=" + name + "]";
+	}
+
+	private FederatedRecord toRecord(UDDIRecord record) {
+		return new FederatedRecord(name, record.getOrgName(), record.getUrl());
+	}
+
+}
@@ -0,0 +1,95 @@
+package pt.ulisboa.tecnico.sdis.federated;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.zookeeper.KeeperException;
+
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+import pt.ulisboa.tecnico.sdis.zk.ZKNodeNotFoundException;
+import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
+
+/**
+ * Backend of a ZooKeeper ensemble, using the asynchronous interface of
+ * {@link ZKNaming}. Names are zNode paths. To give each region its own
+ * subtree on a shared ensemble, the ZooKeeper URL may include a chroot
+ * suffix, e.g. "host:2181/eu".
+ */
+public class ZKNamingBackend implements NamingBackend {
+
+	private final String name;
+
+	private final ZKNaming zkNaming;
+
+	/**
+	 * 
+	 * @param name     name of the backend, e.g. the region
+	 * @param zkNaming naming client of the ensemble, usually with the
+	 *                 persistent session option
+	 */
+	public ZKNamingBackend(String name, ZKNaming zkNaming) {
+		if (name == null)
+			throw new IllegalArgumentException("Name cannot be null!");
+		if (zkNaming == null)
+			throw new IllegalArgumentException("ZKNaming cannot be null!");
+		this.name = name;
+		this.zkNaming = zkNaming;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public CompletableFuture<FederatedRecord> lookupAsync(String path) {
+		CompletableFuture<FederatedRecord> result = new CompletableFuture<>();
+		zkNaming.lookupAsync(path).whenComplete((record, e) -> {
+			if (e == null)
+				result.complete(toRecord(record));
+			else if (isNotFound(e))
+				result.complete(null);
+			else
+				result.completeExceptionally(e);
+		});
+		return result;
+	}
+
+	@Override
+	public CompletableFuture<Collection<FederatedRecord>> listRecordsAsync(String path) {
+		CompletableFuture<Collection<FederatedRecord>> result = new CompletableFuture<>();
+		zkNaming.listRecordsAsync(path).whenComplete((records, e) -> {
+			if (e == null) {
+				Collection<FederatedRecord> list = new ArrayList<>(records.size());
+				for (ZKRecord record : records)
+					list.add(toRecord(record));
+				result.complete(list);
+			} else if (isNotFound(e)) {
+				result.complete(Collections.emptyList());
+			} else {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "ZKNamingBackend: [name=" + name + "]";
+	}
+
+	private FederatedRecord toRecord(ZKRecord record) {
+		return new FederatedRecord(name, record.getPath(), record.getURI());
+	}
+
+	/** Checks if the failure reports a missing zNode. */
+	private static boolean isNotFound(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause())
+			if (cause instanceof ZKNodeNotFoundException || cause instanceof KeeperException.NoNodeException)
+				return true;
+		return false;
+	}
+
+}
@@ -0,0 +1,220 @@
+package pt.ulisboa.tecnico.sdis.federated;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import pt.ulisboa.tecnico.sdis.ws.uddi.InMemoryUDDIRegistry;
+import pt.ulisboa.tecnico.sdis.ws.uddi.UDDINaming;
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+
+/**
+ * Integration Tests. Each region is a chroot of the test ZooKeeper server.
+ */
+public class FederatedNamingIT extends BaseIT {
+
+	// static members
+	static final String TEST_PATH = "/TestService";
+
+	// members
+	private ZKNaming admin;
+	private ZKNaming eu;
+	private ZKNaming us;
+	private ZKNaming unreachable;
+
+	// initialization and clean-up for each test
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		String url = testProps.getProperty("zk.host") + ":" + testProps.getProperty("zk.port");
+		admin = new ZKNaming(url, true);
+		admin.rebind("/eu" + TEST_PATH + "/1", "eu1:1000");
+		admin.rebind("/eu" + TEST_PATH + "/2", "shared:2000");
+		admin.rebind("/us" + TEST_PATH + "/2", "shared:2000");
+		admin.rebind("/us" + TEST_PATH + "/3", "us3:3000");
+
+		eu = new ZKNaming(url + "/eu", true);
+		us = new ZKNaming(url + "/us", true);
+		// nothing listens on port 1
+		unreachable = new ZKNaming("localhost:1", true);
+		unreachable.setConnectTimeout(2000);
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		admin.unbindAll("/eu");
+		admin.unbindAll("/us");
+		for (ZKNaming zkNaming : Arrays.asList(admin, eu, us, unreachable))
+			zkNaming.close();
+	}
+
+	// tests
+
+	@Test
+	public void testLookupLocalityOrder() throws Exception {
+		try (FederatedNaming naming = new FederatedNaming(
+				Arrays.asList(new ZKNamingBackend("eu", eu), new ZKNamingBackend("us", us)))) {
+			// nearest backend first
+			assertEquals(new FederatedRecord("eu", TEST_PATH + "/2", "shared:2000"), naming.lookup(TEST_PATH + "/2"));
+			// next backend when not found
+			assertEquals(new FederatedRecord("us", TEST_PATH + "/3", "us3:3000"), naming.lookup(TEST_PATH + "/3"));
+			assertNull(naming.lookup(TEST_PATH + "/4"));
+		}
+	}
+
+	@Test
+	public void testLookupFailover() throws Exception {
+		try (FederatedNaming naming = new FederatedNaming(
+				Arrays.asList(new ZKNamingBackend("down", unreachable), new ZKNamingBackend("eu", eu)))) {
+			assertEquals("eu1:1000", naming.lookup(TEST_PATH + "/1").getURI());
+		}
+		try (FederatedNaming naming = new FederatedNaming(
+				Arrays.asList(new ZKNamingBackend("down", unreachable)))) {
+			FederatedNamingException e = assertThrows(FederatedNamingException.class,
+					() -> naming.lookup(TEST_PATH + "/1"));
+			assertEquals(1, e.getSuppressed().length);
+		}
+	}
+
+	@Test
+	public void testLookupHedged() throws Exception {
+		try (FederatedNaming naming = new FederatedNaming(
+				Arrays.asList(new ZKNamingBackend("down", unreachable), new ZKNamingBackend("us", us)), 100)) {
+			// answered by the second backend before the first times out
+			long start = System.currentTimeMillis();
+			assertEquals("us3:3000", naming.lookup(TEST_PATH + "/3").getURI());
+			assertTrue(System.currentTimeMillis() - start < 2000);
+		}
+	}
+
+	@Test
+	public void testListRecordsMerged() throws Exception {
+		try (FederatedNaming naming = new FederatedNaming(Arrays.asList(new ZKNamingBackend("eu", eu),
+				new ZKNamingBackend("us", us), new ZKNamingBackend("down", unreachable)))) {
+			// a record in both regions is returned once, failed backends are left out
+			Collection<FederatedRecord> records = naming.listRecords(TEST_PATH);
+			assertEquals(3, records.size());
+			assertTrue(records.contains(new FederatedRecord("eu", TEST_PATH + "/2", "shared:2000")));
+			assertTrue(records.contains(new FederatedRecord("us", TEST_PATH + "/3", "us3:3000")));
+		}
+	}
+
+	@Test
+	public void testZKAndUDDIBackends() throws Exception {
+		UDDINaming legacy = new UDDINaming("http://localhost:9090", new InMemoryUDDIRegistry());
+		legacy.rebind(TEST_PATH + "/1", "legacy1:1000");
+		legacy.rebind(TEST_PATH + "/4", "legacy4:4000");
+		legacy.rebind("/LegacyService1", "legacy:5001");
+		legacy.rebind("/LegacyService2", "legacy:5002");
+
+		// a missing zNode is not a failure of the ZooKeeper backend
+		ZKNamingBackend zkBackend = new ZKNamingBackend("eu", eu);
+		assertNull(zkBackend.lookupAsync(TEST_PATH + "/4").get());
+		assertTrue(zkBackend.listRecordsAsync("/LegacyService%").get().isEmpty());
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try (FederatedNaming naming = new FederatedNaming(
+				Arrays.asList(zkBackend, new UDDINamingBackend("legacy", legacy, executor)))) {
+			// the ZooKeeper backend is nearer
+			assertEquals(new FederatedRecord("eu", TEST_PATH + "/1", "eu1:1000"), naming.lookup(TEST_PATH + "/1"));
+			// the UDDI registry when the zNode is not found
+			assertEquals(new FederatedRecord("legacy", TEST_PATH + "/4", "legacy4:4000"),
+					naming.lookup(TEST_PATH + "/4"));
+			assertNull(naming.lookup(TEST_PATH + "/5"));
+
+			// a missing parent zNode lists nothing, the registry matches the pattern
+			Collection<FederatedRecord> records = naming.listRecords("/LegacyService%");
+			assertEquals(2, records.size());
+			assertTrue(records.contains(new FederatedRecord("legacy", "/LegacyService2", "legacy:5002")));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSnapshotColdStart() throws Exception {
+		Path file = Files.createTempFile("naming", ".snapshot");
+		Files.delete(file);
+		try {
+			// resolved by the registry and saved on close
+			try (SnapshotNamingBackend snapshot = new SnapshotNamingBackend(new ZKNamingBackend("eu", eu), file,
+					60000)) {
+				assertEquals("eu1:1000", snapshot.lookupAsync(TEST_PATH + "/1").get().getURI());
+				assertEquals(2, snapshot.listRecordsAsync(TEST_PATH).get().size());
+			}
+			assertTrue(Files.exists(file));
+
+			// served from the snapshot while the registry is down
+			try (SnapshotNamingBackend snapshot = new SnapshotNamingBackend(new ZKNamingBackend("eu", unreachable),
+					file, 60000)) {
+				assertEquals(2, snapshot.getStaleCount());
+				assertEquals("eu1:1000", snapshot.lookupAsync(TEST_PATH + "/1").get().getURI());
+				assertEquals(2, snapshot.listRecordsAsync(TEST_PATH).get().size());
+			}
+
+			// reconciled with the registry in the background
+			admin.rebind("/eu" + TEST_PATH + "/1", "eu1:1001");
+			try (SnapshotNamingBackend snapshot = new SnapshotNamingBackend(new ZKNamingBackend("eu", eu), file,
+					60000)) {
+				long deadline = System.currentTimeMillis() + 5000;
+				while (snapshot.getStaleCount() > 0 && System.currentTimeMillis() < deadline)
+					Thread.sleep(10);
+				assertEquals(0, snapshot.getStaleCount());
+				assertEquals("eu1:1001", snapshot.lookupAsync(TEST_PATH + "/1").get().getURI());
+			}
+
+			// a corrupt snapshot is ignored
+			Files.write(file, "corrupt".getBytes(StandardCharsets.UTF_8));
+			try (SnapshotNamingBackend snapshot = new SnapshotNamingBackend(new ZKNamingBackend("eu", eu), file,
+					60000)) {
+				assertEquals(0, snapshot.getStaleCount());
+				assertEquals("eu1:1001", snapshot.lookupAsync(TEST_PATH + "/1").get().getURI());
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void testSnapshotSaveAfterRead() throws Exception {
+		Path file = Files.createTempFile("naming", ".snapshot");
+		Files.delete(file);
+		try {
+			try (SnapshotNamingBackend snapshot = new SnapshotNamingBackend(new ZKNamingBackend("eu", eu), file,
+					60000)) {
+				snapshot.lookupAsync(TEST_PATH + "/1").get();
+			}
+
+			// the snapshot read on creation does not keep the file from being replaced
+			admin.rebind("/eu" + TEST_PATH + "/2", "eu2:2001");
+			try (SnapshotNamingBackend snapshot = new SnapshotNamingBackend(new ZKNamingBackend("eu", eu), file,
+					60000)) {
+				assertEquals(1, snapshot.getStaleCount());
+				assertEquals("eu2:2001", snapshot.lookupAsync(TEST_PATH + "/2").get().getURI());
+				snapshot.save();
+			}
+
+			try (SnapshotNamingBackend snapshot = new SnapshotNamingBackend(new ZKNamingBackend("eu", unreachable),
+					file, 60000)) {
+				assertEquals(2, snapshot.getStaleCount());
+				assertEquals("eu2:2001", snapshot.lookupAsync(TEST_PATH + "/2").get().getURI());
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package pt.ulisboa.tecnico.sdis.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once for each thread count, and writes the results of
+ * each run to a JSON file, e.g. "results-4-threads.json". The thread counts are
+ * taken from the "bench.threads" system property (default "1,4,16"). Any JMH
+ * command line option can be given, e.g. a regular expression to select the
+ * benchmarks; if the thread count is given with "-t", only one run is made.
+ */
+public class NamingBenchmarks {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cli = new CommandLineOptions(args);
+		if (cli.shouldHelp() || cli.shouldList() || cli.shouldListProfilers() || cli.shouldListResultFormats()
+				|| cli.getThreads().hasValue()) {
+			// a single run, as with the JMH main class
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		for (String threads : System.getProperty("bench.threads", "1,4,16").split(",")) {
+			int count = Integer.parseInt(threads.trim());
+			Options options = new OptionsBuilder() //
+					.parent(cli) //
+					.threads(count) //
+					.resultFormat(ResultFormatType.JSON) //
+					.result("results-" + count + "-threads.json") //
+					.build();
+			new Runner(options).run();
+		}
+	}
+
+}
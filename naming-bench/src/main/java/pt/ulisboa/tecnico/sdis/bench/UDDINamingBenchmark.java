@@ -0,0 +1,131 @@
+package pt.ulisboa.tecnico.sdis.bench;
+
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.ulisboa.tecnico.sdis.ws.uddi.InMemoryUDDIRegistry;
+import pt.ulisboa.tecnico.sdis.ws.uddi.UDDINaming;
+import pt.ulisboa.tecnico.sdis.ws.uddi.UDDINamingException;
+import pt.ulisboa.tecnico.sdis.ws.uddi.UDDIRecord;
+
+/**
+ * UDDINaming operations against an {@link InMemoryUDDIRegistry}. The
+ * registry has the configured number of organizations named "BenchOrg...",
+ * used by lookup and listRecords; each benchmark thread writes its own
+ * organization. The registry answers in memory, so results measure the client
+ * overhead plus the simulated round trip time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UDDINamingBenchmark {
+
+	static final String UDDI_URL = "http://localhost:9090";
+	static final String ORG_PREFIX = "BenchOrg";
+	static final String URL = "http://localhost:8080/bench-ws/endpoint";
+
+	/** Number of registered organizations */
+	@Param({ "10", "100", "1000" })
+	public int orgs;
+
+	/**
+	 * Connection mode: a new connection per operation (auto-connect), the
+	 * connection pool, or the connection pool with the query cache
+	 */
+	@Param({ "auto", "pooled", "cached" })
+	public String connection;
+
+	/** Simulated round trip time of each registry call, in microseconds */
+	@Param({ "0" })
+	public long rttMicros;
+
+	private InMemoryUDDIRegistry registry;
+
+	private UDDINaming uddiNaming;
+
+	/** Organization written by each benchmark thread */
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		static final AtomicInteger NEXT_INDEX = new AtomicInteger();
+
+		String orgName;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			orgName = "BenchWrite" + NEXT_INDEX.getAndIncrement();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		registry = new InMemoryUDDIRegistry();
+
+		UDDINaming admin = new UDDINaming(UDDI_URL, registry);
+		for (int i = 0; i < orgs; i++)
+			admin.bind(ORG_PREFIX + i, URL);
+
+		registry.setRoundTripMicros(rttMicros);
+		uddiNaming = new UDDINaming(UDDI_URL, registry);
+		switch (connection) {
+		case "auto":
+			break;
+		case "pooled":
+			uddiNaming.enableConnectionPool(64, 60000, 10000);
+			break;
+		case "cached":
+			uddiNaming.enableConnectionPool(64, 60000, 10000);
+			uddiNaming.enableCache(10000, 60000, 1000);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown connection mode: " + connection);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		uddiNaming.disableConnectionPool();
+		registry.clear();
+	}
+
+	@Benchmark
+	public String lookup() throws UDDINamingException {
+		return uddiNaming.lookup(ORG_PREFIX + ThreadLocalRandom.current().nextInt(orgs));
+	}
+
+	@Benchmark
+	public Collection<UDDIRecord> listRecords() throws UDDINamingException {
+		return uddiNaming.listRecords(ORG_PREFIX + "%");
+	}
+
+	@Benchmark
+	public void rebind(ThreadState thread) throws UDDINamingException {
+		uddiNaming.rebind(thread.orgName, URL);
+	}
+
+	@Benchmark
+	public void bindUnbind(ThreadState thread) throws UDDINamingException {
+		uddiNaming.bind(thread.orgName, URL);
+		uddiNaming.unbind(thread.orgName);
+	}
+
+}
@@ -0,0 +1,140 @@
+package pt.ulisboa.tecnico.sdis.bench;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.ulisboa.tecnico.sdis.zk.EmbeddedZooKeeper;
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
+import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
+
+/**
+ * ZKNaming operations against an in-process ZooKeeper server. The parent
+ * "/bench/service" has the configured number of children, used by lookup and
+ * listRecords; each benchmark thread writes to its own zNode, so that writes
+ * of different threads do not conflict.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZKNamingBenchmark {
+
+	static final String SERVICE_PATH = "/bench/service";
+	static final String WRITE_PATH = "/bench/writes";
+	static final String URI = "localhost:8080";
+
+	/** Number of children of the service path */
+	@Param({ "10", "100", "1000" })
+	public int children;
+
+	/**
+	 * Session mode: a new session per operation (default ZKNaming), a
+	 * persistent session, or a persistent session with the record cache
+	 */
+	@Param({ "per-call", "persistent", "cached" })
+	public String session;
+
+	private EmbeddedZooKeeper server;
+
+	private ZKNaming zkNaming;
+
+	private List<String> childPaths;
+
+	/** zNode written by each benchmark thread */
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		static final AtomicInteger NEXT_INDEX = new AtomicInteger();
+
+		String path;
+
+		ZKRecord record;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			path = WRITE_PATH + "/t" + NEXT_INDEX.getAndIncrement();
+			record = new ZKRecord(path, URI);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new EmbeddedZooKeeper();
+
+		childPaths = new ArrayList<String>(children);
+		List<ZKRecord> records = new ArrayList<ZKRecord>(children);
+		for (int i = 0; i < children; i++) {
+			String path = SERVICE_PATH + "/child" + i;
+			childPaths.add(path);
+			records.add(new ZKRecord(path, URI));
+		}
+		try (ZKNaming admin = new ZKNaming(server.getUrl(), true)) {
+			admin.bindAll(records);
+			admin.bind(WRITE_PATH, "");
+		}
+
+		switch (session) {
+		case "per-call":
+			zkNaming = new ZKNaming(server.getUrl());
+			break;
+		case "persistent":
+			zkNaming = new ZKNaming(server.getUrl(), true);
+			break;
+		case "cached":
+			zkNaming = new ZKNaming(server.getUrl(), true);
+			zkNaming.setCacheEnabled(true);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown session mode: " + session);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		zkNaming.close();
+		server.close();
+	}
+
+	@Benchmark
+	public ZKRecord lookup() throws ZKNamingException {
+		return zkNaming.lookup(childPaths.get(ThreadLocalRandom.current().nextInt(children)));
+	}
+
+	@Benchmark
+	public Collection<ZKRecord> listRecords() throws ZKNamingException {
+		return zkNaming.listRecords(SERVICE_PATH);
+	}
+
+	@Benchmark
+	public void rebind(ThreadState thread) throws ZKNamingException {
+		zkNaming.rebind(thread.record);
+	}
+
+	@Benchmark
+	public void bindUnbind(ThreadState thread) throws ZKNamingException {
+		zkNaming.bind(thread.record);
+		zkNaming.unbind(thread.record);
+	}
+
+}
@@ -0,0 +1,382 @@
+package pt.ulisboa.tecnico.sdis.ws.uddi;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics published as MXBeans in the platform MBean server, where they can be
+ * read with JConsole or any JMX client. The beans are named
+ * "pt.ulisboa.tecnico.sdis.ws.uddi:type=UDDINaming,name=NAME" for the
+ * connections, and
+ * "pt.ulisboa.tecnico.sdis.ws.uddi:type=UDDINaming,name=NAME,operation=OP" for
+ * each operation, registered when the operation is first reported.<br>
+ * <br>
+ * Latencies are reported in milliseconds, with percentiles computed over all
+ * operations since creation or since the last reset. Errors are counted by
+ * cause: the message of a UDDINamingException raised by the library, or the
+ * class of the root cause.
+ */
+public class JmxUDDINamingMetrics implements UDDINamingMetrics, AutoCloseable {
+
+	/** Domain of the bean names */
+	static final String DOMAIN = "pt.ulisboa.tecnico.sdis.ws.uddi";
+
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	/** Connection statistics of a UDDINaming client. */
+	public interface ConnectionStatsMXBean {
+
+		/** @return Number of connections created */
+		long getConnectionCount();
+
+		/** @return Mean time to create a connection, in milliseconds */
+		double getConnectMeanMillis();
+
+		/** @return Median time to create a connection, in milliseconds */
+		double getConnectP50Millis();
+
+		/** @return 99th percentile of the time to create a connection, in milliseconds */
+		double getConnectP99Millis();
+
+		/** @return 99.9th percentile of the time to create a connection, in milliseconds */
+		double getConnectP999Millis();
+
+		/** Discards the statistics. */
+		void reset();
+	}
+
+	/** Statistics of one UDDINaming operation. */
+	public interface OperationStatsMXBean {
+
+		/** @return Number of completed operations */
+		long getCount();
+
+		/** @return Number of failed operations */
+		long getErrorCount();
+
+		/** @return Number of failed operations by cause */
+		Map<String, Long> getErrorsByCause();
+
+		/** @return Mean latency, in milliseconds */
+		double getLatencyMeanMillis();
+
+		/** @return Median latency, in milliseconds */
+		double getLatencyP50Millis();
+
+		/** @return 99th percentile latency, in milliseconds */
+		double getLatencyP99Millis();
+
+		/** @return 99.9th percentile latency, in milliseconds */
+		double getLatencyP999Millis();
+
+		/** @return Maximum latency, in milliseconds */
+		double getLatencyMaxMillis();
+
+		/** @return Mean time spent obtaining and releasing connections, in milliseconds */
+		double getConnectMeanMillis();
+
+		/** @return Mean time spent in requests, in milliseconds */
+		double getRequestMeanMillis();
+
+		/** @return Number of results served from the cache */
+		long getCacheHitCount();
+
+		/** @return Number of results not found in the cache */
+		long getCacheMissCount();
+
+		/** @return Fraction of cache accesses that were hits, or 0 */
+		double getCacheHitRatio();
+
+		/** Discards the statistics. */
+		void reset();
+	}
+
+	private static class ConnectionStats implements ConnectionStatsMXBean {
+
+		final LatencyHistogram connect = new LatencyHistogram();
+
+		@Override
+		public long getConnectionCount() {
+			return connect.getCount();
+		}
+
+		@Override
+		public double getConnectMeanMillis() {
+			return connect.getMean() / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getConnectP50Millis() {
+			return connect.getPercentile(0.5) / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getConnectP99Millis() {
+			return connect.getPercentile(0.99) / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getConnectP999Millis() {
+			return connect.getPercentile(0.999) / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public void reset() {
+			connect.reset();
+		}
+	}
+
+	private static class OperationStats implements OperationStatsMXBean {
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong connectNanos = new AtomicLong();
+		final AtomicLong requestNanos = new AtomicLong();
+		final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+		final AtomicLong cacheHits = new AtomicLong();
+		final AtomicLong cacheMisses = new AtomicLong();
+
+		void record(long connect, long request, Throwable error) {
+			latency.record(connect + request);
+			connectNanos.addAndGet(connect);
+			requestNanos.addAndGet(request);
+			if (error != null) {
+				String cause = causeOf(error);
+				AtomicLong counter = errors.get(cause);
+				if (counter == null) {
+					AtomicLong created = new AtomicLong();
+					counter = errors.putIfAbsent(cause, created);
+					if (counter == null)
+						counter = created;
+				}
+				counter.incrementAndGet();
+			}
+		}
+
+		@Override
+		public long getCount() {
+			return latency.getCount();
+		}
+
+		@Override
+		public long getErrorCount() {
+			long n = 0;
+			for (AtomicLong counter : errors.values())
+				n += counter.get();
+			return n;
+		}
+
+		@Override
+		public Map<String, Long> getErrorsByCause() {
+			Map<String, Long> map = new TreeMap<String, Long>();
+			for (Map.Entry<String, AtomicLong> entry : errors.entrySet())
+				map.put(entry.getKey(), entry.getValue().get());
+			return map;
+		}
+
+		@Override
+		public double getLatencyMeanMillis() {
+			return latency.getMean() / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getLatencyP50Millis() {
+			return latency.getPercentile(0.5) / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getLatencyP99Millis() {
+			return latency.getPercentile(0.99) / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getLatencyP999Millis() {
+			return latency.getPercentile(0.999) / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getLatencyMaxMillis() {
+			return latency.getMax() / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getConnectMeanMillis() {
+			return mean(connectNanos);
+		}
+
+		@Override
+		public double getRequestMeanMillis() {
+			return mean(requestNanos);
+		}
+
+		@Override
+		public long getCacheHitCount() {
+			return cacheHits.get();
+		}
+
+		@Override
+		public long getCacheMissCount() {
+			return cacheMisses.get();
+		}
+
+		@Override
+		public double getCacheHitRatio() {
+			long hits = cacheHits.get();
+			long total = hits + cacheMisses.get();
+			return (total == 0) ? 0 : (double) hits / total;
+		}
+
+		@Override
+		public void reset() {
+			latency.reset();
+			connectNanos.set(0);
+			requestNanos.set(0);
+			errors.clear();
+			cacheHits.set(0);
+			cacheMisses.set(0);
+		}
+
+		private double mean(AtomicLong nanos) {
+			long n = latency.getCount();
+			return (n == 0) ? 0 : nanos.get() / NANOS_PER_MILLI / n;
+		}
+	}
+
+	private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+	private final String name;
+
+	private final ConnectionStats connections = new ConnectionStats();
+
+	private final ConcurrentMap<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+
+	/**
+	 * Creates the metrics and registers the connection statistics bean.
+	 *
+	 * @param name
+	 *            name that identifies the client in the bean names
+	 * @throws UDDINamingException
+	 *             if the bean cannot be registered, for instance if the name
+	 *             is already in use
+	 */
+	public JmxUDDINamingMetrics(String name) throws UDDINamingException {
+		if (name == null)
+			throw new IllegalArgumentException("Name cannot be null!");
+		this.name = name;
+		try {
+			server.registerMBean(connections, objectName(null));
+		} catch (JMException e) {
+			throw new UDDINamingException("metrics() " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns the name that identifies the client in the bean names.
+	 *
+	 * @return name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the connection statistics.
+	 *
+	 * @return connection statistics
+	 */
+	public ConnectionStatsMXBean getConnectionStats() {
+		return connections;
+	}
+
+	/**
+	 * Returns the statistics of an operation.
+	 *
+	 * @param operation
+	 *            operation name, e.g. "lookupRecord"
+	 * @return statistics of the operation, or null if it was not reported
+	 */
+	public OperationStatsMXBean getOperationStats(String operation) {
+		return operations.get(operation);
+	}
+
+	@Override
+	public void connectionEstablished(long nanos) {
+		connections.connect.record(nanos);
+	}
+
+	@Override
+	public void operationCompleted(String operation, long connectNanos, long requestNanos, Throwable error) {
+		stats(operation).record(connectNanos, requestNanos, error);
+	}
+
+	@Override
+	public void cacheAccessed(String operation, boolean hit) {
+		OperationStats stats = stats(operation);
+		if (hit)
+			stats.cacheHits.incrementAndGet();
+		else
+			stats.cacheMisses.incrementAndGet();
+	}
+
+	/**
+	 * Unregisters the beans. Measurements reported afterwards are still
+	 * aggregated, but are not published.
+	 */
+	@Override
+	public void close() {
+		unregister(null);
+		for (String operation : operations.keySet())
+			unregister(operation);
+	}
+
+	//
+	// private implementation
+	//
+
+	private OperationStats stats(String operation) {
+		OperationStats stats = operations.get(operation);
+		if (stats != null)
+			return stats;
+		OperationStats created = new OperationStats();
+		stats = operations.putIfAbsent(operation, created);
+		if (stats != null)
+			return stats;
+		try {
+			server.registerMBean(created, objectName(operation));
+		} catch (JMException e) {
+			// statistics are still available with getOperationStats
+		}
+		return created;
+	}
+
+	private void unregister(String operation) {
+		try {
+			server.unregisterMBean(objectName(operation));
+		} catch (JMException e) {
+			// not registered
+		}
+	}
+
+	private ObjectName objectName(String operation) throws JMException {
+		String objectName = DOMAIN + ":type=UDDINaming,name=" + ObjectName.quote(name);
+		if (operation != null)
+			objectName += ",operation=" + ObjectName.quote(operation);
+		return new ObjectName(objectName);
+	}
+
+	/** Returns the cause of a failure, for counting errors. */
+	static String causeOf(Throwable error) {
+		Throwable cause = UDDINaming.getRootCause(error);
+		if (cause instanceof UDDINamingException && cause.getMessage() != null)
+			return cause.getMessage();
+		return cause.getClass().getSimpleName();
+	}
+
+}
@@ -0,0 +1,72 @@
+package pt.ulisboa.tecnico.sdis.ws.uddi;
+
+import java.util.Properties;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.xml.registry.ConnectionFactory;
+import javax.xml.registry.JAXRException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Transport to a jUDDI server through web services. The JAX-R connection
+ * factory is looked up with JNDI, as provided by an application server, or
+ * else created from the Scout implementation, configured to use the
+ * JAXWSTransport of the jUDDI client.
+ */
+public class ScoutUDDITransport implements UDDITransport {
+
+	/** Logger object for JNDI and JAX-R debug messages. */
+	private Log log = LogFactory.getLog(ScoutUDDITransport.class);
+
+	@Override
+	public ConnectionFactory createConnectionFactory(String url) throws JAXRException {
+		ConnectionFactory connFactory;
+		try {
+			InitialContext context = new InitialContext();
+			connFactory = (ConnectionFactory) context.lookup("java:jboss/jaxr/ConnectionFactory");
+		} catch (NamingException ne) {
+			// Could not find using JNDI
+			if (log.isDebugEnabled()) {
+				log.debug("Could not find connection factory using JNDI");
+				if (log.isTraceEnabled())
+					log.trace("Caught exception", ne);
+			}
+			// try factory method from scout implementation
+			System.setProperty("javax.xml.registry.ConnectionFactoryClass",
+					"org.apache.ws.scout.registry.ConnectionFactoryImpl");
+			connFactory = ConnectionFactory.newInstance();
+			log.debug("Created connection factory from scout implementation");
+		}
+
+		// define system properties used to perform replacements in uddi.xml
+		log.trace("Define system properties for replacements in uddi.xml");
+		if (System.getProperty("javax.xml.registry.queryManagerURL") == null)
+			System.setProperty("javax.xml.registry.queryManagerURL", url + "/juddiv3/services/inquiry");
+
+		if (System.getProperty("javax.xml.registry.lifeCycleManagerURL") == null)
+			System.setProperty("javax.xml.registry.lifeCycleManagerURL", url + "/juddiv3/services/publish");
+
+		if (System.getProperty("javax.xml.registry.securityManagerURL") == null)
+			System.setProperty("javax.xml.registry.securityManagerURL", url + "/juddiv3/services/security");
+
+		Properties props = new Properties();
+		props.setProperty("scout.juddi.client.config.file", "uddi.xml");
+		props.setProperty("javax.xml.registry.queryManagerURL",
+				System.getProperty("javax.xml.registry.queryManagerURL"));
+		props.setProperty("scout.proxy.uddiVersion", "3.0");
+		props.setProperty("scout.proxy.transportClass", "org.apache.juddi.v3.client.transport.JAXWSTransport");
+		connFactory.setProperties(props);
+		log.debug("Set connection factory properties");
+		log.trace(props);
+		return connFactory;
+	}
+
+	@Override
+	public String toString() {
+		return "ScoutUDDITransport";
+	}
+
+}
@@ -0,0 +1,48 @@
+package pt.ulisboa.tecnico.sdis.ws.uddi;
+
+import javax.xml.registry.BusinessLifeCycleManager;
+import javax.xml.registry.BusinessQueryManager;
+import javax.xml.registry.Connection;
+import javax.xml.registry.JAXRException;
+
+/**
+ * A JAX-R connection with credentials set, and the query and update objects
+ * obtained from its registry service.
+ */
+class UDDIConnection {
+
+	/** JAX-R connection */
+	final Connection conn;
+	/** JAX-R query object */
+	final BusinessQueryManager bqm;
+	/** JAX-R update object */
+	final BusinessLifeCycleManager blcm;
+
+	/** Time when the connection was last returned to the pool, in nanoseconds */
+	long idleSince;
+
+	UDDIConnection(Connection conn, BusinessQueryManager bqm, BusinessLifeCycleManager blcm) {
+		this.conn = conn;
+		this.bqm = bqm;
+		this.blcm = blcm;
+	}
+
+	/** Checks if the connection can still be used. */
+	boolean isValid() {
+		try {
+			return !conn.isClosed();
+		} catch (JAXRException e) {
+			return false;
+		}
+	}
+
+	/** Closes the connection, ignoring exceptions. */
+	void closeQuietly() {
+		try {
+			conn.close();
+		} catch (Exception e) {
+			// ignore
+		}
+	}
+
+}
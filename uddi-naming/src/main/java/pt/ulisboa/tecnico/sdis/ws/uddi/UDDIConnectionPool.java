@@ -0,0 +1,142 @@
+package pt.ulisboa.tecnico.sdis.ws.uddi;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.registry.JAXRException;
+
+/**
+ * Bounded pool of ready-to-use UDDI connections. A connection is borrowed for
+ * the duration of one operation and then returned. Idle connections are reused
+ * most recently returned first, so that the least used ones become idle for
+ * long enough to be evicted. Connections are validated when borrowed, and
+ * connections that failed during an operation are discarded.
+ */
+class UDDIConnectionPool {
+
+	/** Creates new connections for the pool. */
+	interface Factory {
+		UDDIConnection create() throws JAXRException;
+	}
+
+	/** Connection factory */
+	private final Factory factory;
+
+	/** Maximum time a connection may stay idle, in nanoseconds */
+	private final long maxIdleNanos;
+	/** Maximum time to wait for a connection, in milliseconds */
+	private final long maxWaitMillis;
+
+	/** Permits to borrow, one for each connection that may exist */
+	private final Semaphore permits;
+
+	/** Idle connections, most recently returned first */
+	private final Deque<UDDIConnection> idle = new ConcurrentLinkedDeque<UDDIConnection>();
+
+	/** Has the pool been closed? */
+	private volatile boolean closed = false;
+
+	/**
+	 * @param factory
+	 *            connection factory
+	 * @param maxConnections
+	 *            maximum number of connections, borrowed or idle
+	 * @param maxIdleMillis
+	 *            maximum time a connection may stay idle, in milliseconds
+	 * @param maxWaitMillis
+	 *            maximum time to wait for a connection when all are borrowed,
+	 *            in milliseconds
+	 */
+	UDDIConnectionPool(Factory factory, int maxConnections, long maxIdleMillis, long maxWaitMillis) {
+		if (maxConnections <= 0)
+			throw new IllegalArgumentException("Pool size must be positive!");
+		if (maxIdleMillis <= 0)
+			throw new IllegalArgumentException("Pool idle time must be positive!");
+		if (maxWaitMillis < 0)
+			throw new IllegalArgumentException("Pool wait time cannot be negative!");
+
+		this.factory = factory;
+		this.maxIdleNanos = maxIdleMillis * 1000000L;
+		this.maxWaitMillis = maxWaitMillis;
+		this.permits = new Semaphore(maxConnections, true);
+	}
+
+	/**
+	 * Borrows a connection, reusing an idle one if possible. Waits if all
+	 * connections are borrowed.
+	 */
+	UDDIConnection borrow() throws UDDINamingException, JAXRException, InterruptedException {
+		if (closed)
+			throw new IllegalStateException("Connection pool is closed!");
+		if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS))
+			throw new UDDINamingException("Timed out waiting for a connection from the pool");
+
+		try {
+			evictIdle();
+			UDDIConnection connection;
+			while ((connection = idle.pollFirst()) != null) {
+				if (connection.isValid())
+					return connection;
+				connection.closeQuietly();
+			}
+			return factory.create();
+
+		} catch (JAXRException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/** Returns a borrowed connection to the pool. */
+	void release(UDDIConnection connection) {
+		if (closed) {
+			connection.closeQuietly();
+		} else {
+			connection.idleSince = System.nanoTime();
+			idle.offerFirst(connection);
+		}
+		permits.release();
+		evictIdle();
+	}
+
+	/** Discards a borrowed connection that should not be reused. */
+	void invalidate(UDDIConnection connection) {
+		connection.closeQuietly();
+		permits.release();
+	}
+
+	/** Closes all idle connections. Borrowed connections are closed when released. */
+	void clear() {
+		UDDIConnection connection;
+		while ((connection = idle.pollLast()) != null)
+			connection.closeQuietly();
+	}
+
+	/** Closes the pool and its idle connections. */
+	void close() {
+		closed = true;
+		clear();
+	}
+
+	/** Returns the number of idle connections. */
+	int getIdleCount() {
+		return idle.size();
+	}
+
+	//
+	// private implementation
+	//
+
+	/** Closes the connections that have been idle for too long. */
+	private void evictIdle() {
+		long now = System.nanoTime();
+		UDDIConnection oldest;
+		while ((oldest = idle.peekLast()) != null && now - oldest.idleSince > maxIdleNanos) {
+			if (idle.removeLastOccurrence(oldest))
+				oldest.closeQuietly();
+		}
+	}
+
+}
@@ -5,13 +5,13 @@ import java.net.PasswordAuthentication;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Properties;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
-import javax.naming.InitialContext;
-import javax.naming.NamingException;
 import javax.xml.registry.BulkResponse;
 import javax.xml.registry.BusinessLifeCycleManager;
 import javax.xml.registry.BusinessQueryManager;
@@ -37,20 +37,33 @@ import org.apache.commons.logging.LogFactory;
  * To achieve greater control of the underlying registry, the JAX-R API should
  * be used instead.<br>
  * <br>
+ * With the auto-connect option, each operation uses its own connection, so an
+ * object can be shared by multiple threads. The connection pool option makes
+ * operations reuse connections instead of creating one each time. A connection
+ * opened explicitly with {@link #connect()} is shared by all operations and
+ * should be used by one thread at a time.<br>
+ * <br>
+ * Latencies, errors and cache accesses of the operations can be reported to
+ * {@link UDDINamingMetrics}, for instance to {@link JmxUDDINamingMetrics}.<br>
+ * <br>
+ * The registry is reached through a {@link UDDITransport}: by default, a
+ * jUDDI server through web services; the InMemoryUDDIRegistry of the
+ * test-jar runs the same operations without a server.<br>
+ * <br>
  * 
  * @author Miguel Pardal
  */
 public class UDDINaming {
 
-	/** JAX-R query object */
-	private BusinessQueryManager bqm;
-	/** JAX-R update object */
-	private BusinessLifeCycleManager blcm;
-
+	/** Transport that provides the connection factory */
+	private UDDITransport transport;
 	/** JAX-R connection factory */
 	private ConnectionFactory connFactory;
-	/** JAX-R connection */
-	private Connection conn;
+	/** JAX-R connection opened explicitly with connect */
+	private volatile UDDIConnection connection;
+
+	/** Pool of connections, null when disabled */
+	private volatile UDDIConnectionPool pool;
 
 	/** UDDI URL */
 	private String url;
@@ -71,6 +84,12 @@ public class UDDINaming {
 	 */
 	private boolean autoConnectFlag;
 
+	/** Query result cache, null when disabled */
+	private volatile UDDIRecordCache cache;
+
+	/** Metrics of the operations, NONE when disabled */
+	private volatile UDDINamingMetrics metrics = UDDINamingMetrics.NONE;
+
 	/** Logger object for JNDI and JAX-R debug messages. */
 	private Log log = LogFactory.getLog(UDDINaming.class);
 
@@ -105,7 +124,44 @@ public class UDDINaming {
 	 *             if constructor fails
 	 */
 	public UDDINaming(String uddiURL, boolean autoConnect) throws UDDINamingException {
+		this(uddiURL, autoConnect, new ScoutUDDITransport());
+	}
+
+	/**
+	 * Creates an UDDI client configured to access the specified URL through
+	 * the specified transport, e.g. the in-memory registry of the tests. The
+	 * connection to the server is managed automatically (auto-connect option
+	 * is enabled).
+	 * 
+	 * @param uddiURL
+	 *            URL of UDDI server to use
+	 * @param transport
+	 *            transport that provides the JAX-R connection factory
+	 * @throws UDDINamingException
+	 *             if constructor fails
+	 */
+	public UDDINaming(String uddiURL, UDDITransport transport) throws UDDINamingException {
+		this(uddiURL, true, transport);
+	}
+
+	/**
+	 * Creates an UDDI client configured to access the specified URL through
+	 * the specified transport, and with the specified auto-connect option.
+	 * 
+	 * @param uddiURL
+	 *            URL of UDDI server to use
+	 * @param autoConnect
+	 *            option to connect automatically to UDDI server when an action
+	 *            is requested
+	 * @param transport
+	 *            transport that provides the JAX-R connection factory
+	 * @throws UDDINamingException
+	 *             if constructor fails
+	 */
+	public UDDINaming(String uddiURL, boolean autoConnect, UDDITransport transport) throws UDDINamingException {
 		try {
+			if (transport == null)
+				throw new IllegalArgumentException("Transport cannot be null!");
 			if (log.isDebugEnabled())
 				log.debug("UDDI URL: " + uddiURL);
 
@@ -142,53 +198,13 @@ public class UDDINaming {
 			this.autoConnectFlag = autoConnect;
 
 			// initialize connection factory
-			initConnectionFactory();
+			this.transport = transport;
+			this.connFactory = transport.createConnectionFactory(this.url);
 		} catch (Exception e) {
 			throwUDDINamingException(e, "constructor UDDINaming");
 		}
 	}
 
-	/** Performs the initialization of the JAX-R connection factory. */
-	private void initConnectionFactory() throws JAXRException {
-		try {
-			InitialContext context = new InitialContext();
-			connFactory = (ConnectionFactory) context.lookup("java:jboss/jaxr/ConnectionFactory");
-		} catch (NamingException ne) {
-			// Could not find using JNDI
-			if (log.isDebugEnabled()) {
-				log.debug("Could not find connection factory using JNDI");
-				if (log.isTraceEnabled())
-					log.trace("Caught exception", ne);
-			}
-			// try factory method from scout implementation
-			System.setProperty("javax.xml.registry.ConnectionFactoryClass",
-					"org.apache.ws.scout.registry.ConnectionFactoryImpl");
-			connFactory = ConnectionFactory.newInstance();
-			log.debug("Created connection factory from scout implementation");
-		}
-
-		// define system properties used to perform replacements in uddi.xml
-		log.trace("Define system properties for replacements in uddi.xml");
-		if (System.getProperty("javax.xml.registry.queryManagerURL") == null)
-			System.setProperty("javax.xml.registry.queryManagerURL", url + "/juddiv3/services/inquiry");
-
-		if (System.getProperty("javax.xml.registry.lifeCycleManagerURL") == null)
-			System.setProperty("javax.xml.registry.lifeCycleManagerURL", url + "/juddiv3/services/publish");
-
-		if (System.getProperty("javax.xml.registry.securityManagerURL") == null)
-			System.setProperty("javax.xml.registry.securityManagerURL", url + "/juddiv3/services/security");
-
-		Properties props = new Properties();
-		props.setProperty("scout.juddi.client.config.file", "uddi.xml");
-		props.setProperty("javax.xml.registry.queryManagerURL",
-				System.getProperty("javax.xml.registry.queryManagerURL"));
-		props.setProperty("scout.proxy.uddiVersion", "3.0");
-		props.setProperty("scout.proxy.transportClass", "org.apache.juddi.v3.client.transport.JAXWSTransport");
-		connFactory.setProperties(props);
-		log.debug("Set connection factory properties");
-		log.trace(props);
-	}
-
 	//
 	// Accessors
 	//
@@ -202,6 +218,15 @@ public class UDDINaming {
 		return url;
 	}
 
+	/**
+	 * Returns the transport to the UDDI server.
+	 * 
+	 * @return transport
+	 */
+	public UDDITransport getTransport() {
+		return transport;
+	}
+
 	/**
 	 * Returns user name.
 	 * 
@@ -221,6 +246,8 @@ public class UDDINaming {
 		username = validateAndTrimStringArg(username, "User name");
 		this.username = username;
 		this.usernameFlag = true;
+		// idle connections have the previous credentials
+		clearConnectionPool();
 	}
 
 	/**
@@ -243,6 +270,8 @@ public class UDDINaming {
 			throw new IllegalArgumentException("Password cannot be null!");
 		this.password = password;
 		this.passwordFlag = true;
+		// idle connections have the previous credentials
+		clearConnectionPool();
 	}
 
 	/**
@@ -259,30 +288,15 @@ public class UDDINaming {
 	//
 
 	/**
-	 * Connects to the UDDI server.
+	 * Connects to the UDDI server. The connection is used by all operations
+	 * until disconnect is called.
 	 * 
 	 * @throws UDDINamingException
 	 *             if there is a problem during connection
 	 */
 	public void connect() throws UDDINamingException {
 		try {
-			conn = connFactory.createConnection();
-
-			// Define credentials
-			PasswordAuthentication passwdAuth = new PasswordAuthentication(username, password);
-			Set<PasswordAuthentication> creds = new HashSet<PasswordAuthentication>();
-			creds.add(passwdAuth);
-			conn.setCredentials(creds);
-
-			// Get RegistryService object
-			RegistryService rs = conn.getRegistryService();
-
-			// Get QueryManager object (for inquiries)
-			bqm = rs.getBusinessQueryManager();
-
-			// get BusinessLifeCycleManager object (for updates)
-			blcm = rs.getBusinessLifeCycleManager();
-
+			connection = createConnection();
 		} catch (Exception e) {
 			throwUDDINamingException(e, "connect");
 		}
@@ -296,14 +310,12 @@ public class UDDINaming {
 	 */
 	public void disconnect() throws UDDINamingException {
 		try {
-			if (conn != null)
-				conn.close();
+			if (connection != null)
+				connection.conn.close();
 		} catch (Exception e) {
 			throwUDDINamingException(e, "disconnect");
 		} finally {
-			conn = null;
-			bqm = null;
-			blcm = null;
+			connection = null;
 		}
 	}
 
@@ -319,19 +331,287 @@ public class UDDINaming {
 		}
 	}
 
-	/** Helper method to automatically connect to registry. */
-	private void autoConnect() throws UDDINamingException {
-		if (conn == null)
+	/** Creates a new connection with the current credentials. */
+	private UDDIConnection createConnection() throws JAXRException {
+		long start = System.nanoTime();
+		Connection conn = connFactory.createConnection();
+
+		// Define credentials
+		PasswordAuthentication passwdAuth = new PasswordAuthentication(username, password);
+		Set<PasswordAuthentication> creds = new HashSet<PasswordAuthentication>();
+		creds.add(passwdAuth);
+		conn.setCredentials(creds);
+
+		// Get RegistryService object
+		RegistryService rs = conn.getRegistryService();
+
+		// Get QueryManager object (for inquiries)
+		BusinessQueryManager bqm = rs.getBusinessQueryManager();
+
+		// get BusinessLifeCycleManager object (for updates)
+		BusinessLifeCycleManager blcm = rs.getBusinessLifeCycleManager();
+
+		UDDIConnection c = new UDDIConnection(conn, bqm, blcm);
+		metrics.connectionEstablished(System.nanoTime() - start);
+		return c;
+	}
+
+	/**
+	 * Helper method to obtain a connection for an operation: the connection
+	 * opened explicitly, a pooled connection, or a new connection if the
+	 * auto-connect option is enabled. The time taken is measured by the timer.
+	 */
+	private UDDIConnection acquireConnection(UDDIOperationTimer timer)
+			throws UDDINamingException, JAXRException, InterruptedException {
+		timer.startConnect();
+		try {
+			UDDIConnection c = connection;
+			if (c != null)
+				return c;
+			UDDIConnectionPool p = pool;
+			if (p != null)
+				return p.borrow();
 			if (autoConnectFlag)
-				connect();
-			else
-				throw new IllegalStateException("Not connected! Cannot perform operation!");
+				return createConnection();
+			throw new IllegalStateException("Not connected! Cannot perform operation!");
+		} finally {
+			timer.endConnect();
+		}
+	}
+
+	/**
+	 * Helper method to release a connection obtained with acquireConnection.
+	 * Pooled connections are returned to the pool, unless the operation
+	 * failed; automatic connections are closed. The time taken is measured by
+	 * the timer.
+	 */
+	private void releaseConnection(UDDIConnection c, boolean failed, UDDIOperationTimer timer) {
+		if (c == connection)
+			return;
+		timer.startConnect();
+		try {
+			UDDIConnectionPool p = pool;
+			if (p != null) {
+				if (failed)
+					p.invalidate(c);
+				else
+					p.release(c);
+			} else {
+				c.closeQuietly();
+			}
+		} finally {
+			timer.endConnect();
+		}
+	}
+
+	//
+	// Connection pool management
+	//
+
+	/**
+	 * Enables the connection pool. Operations borrow a ready-to-use connection
+	 * from the pool and return it when done, instead of creating a connection
+	 * each time. Connections that stay idle for longer than the specified time
+	 * are closed, and connections are checked before reuse.
+	 * 
+	 * @param maxConnections
+	 *            maximum number of connections, in use or idle
+	 * @param maxIdleMillis
+	 *            maximum time a connection may stay idle, in milliseconds
+	 * @param maxWaitMillis
+	 *            maximum time an operation waits for a connection when all
+	 *            are in use, in milliseconds
+	 */
+	public void enableConnectionPool(int maxConnections, long maxIdleMillis, long maxWaitMillis) {
+		final UDDINaming self = this;
+		UDDIConnectionPool previous = pool;
+		pool = new UDDIConnectionPool(new UDDIConnectionPool.Factory() {
+			@Override
+			public UDDIConnection create() throws JAXRException {
+				return self.createConnection();
+			}
+		}, maxConnections, maxIdleMillis, maxWaitMillis);
+		if (previous != null)
+			previous.close();
+	}
+
+	/**
+	 * Disables the connection pool and closes its idle connections.
+	 */
+	public void disableConnectionPool() {
+		UDDIConnectionPool previous = pool;
+		pool = null;
+		if (previous != null)
+			previous.close();
+	}
+
+	/**
+	 * Checks if the connection pool is enabled.
+	 * 
+	 * @return is connection pool enabled?
+	 */
+	public boolean isConnectionPoolEnabled() {
+		return pool != null;
+	}
+
+	/**
+	 * Returns the number of idle connections in the pool.
+	 * 
+	 * @return idle connection count, or zero if pool is disabled
+	 */
+	public int getIdleConnectionCount() {
+		UDDIConnectionPool p = pool;
+		return (p == null) ? 0 : p.getIdleCount();
+	}
+
+	/** Helper method to close idle pooled connections. */
+	private void clearConnectionPool() {
+		UDDIConnectionPool p = pool;
+		if (p != null)
+			p.clear();
+	}
+
+	//
+	// Metrics
+	//
+
+	/**
+	 * Sets the metrics that receive the measurements of the operations.
+	 * Metrics are disabled by default.
+	 * 
+	 * @param metrics
+	 *            metrics to use, or null to disable metrics
+	 */
+	public void setMetrics(UDDINamingMetrics metrics) {
+		this.metrics = (metrics == null) ? UDDINamingMetrics.NONE : metrics;
+	}
+
+	/**
+	 * Returns the metrics that receive the measurements of the operations.
+	 * 
+	 * @return metrics in use, UDDINamingMetrics.NONE if disabled
+	 */
+	public UDDINamingMetrics getMetrics() {
+		return metrics;
+	}
+
+	/** Helper method to start measuring an operation. */
+	private UDDIOperationTimer startTimer(String operation) {
+		return new UDDIOperationTimer(metrics, operation);
+	}
+
+	//
+	// Cache management
+	//
+
+	/**
+	 * Enables the lookup cache. Query results are kept for the specified
+	 * time-to-live and the least recently used names are evicted when the
+	 * cache is full. Names that are not found are also cached, so that
+	 * repeated lookups of a missing service do not reach the server. The
+	 * cache is invalidated by bind, rebind and unbind calls made on this
+	 * object, but changes made by other clients are only seen after the
+	 * entries expire.
+	 * 
+	 * @param maxEntries
+	 *            maximum number of cached names
+	 * @param ttlMillis
+	 *            time-to-live of found records, in milliseconds
+	 * @param notFoundTtlMillis
+	 *            time-to-live of not found results, in milliseconds (0 to
+	 *            disable caching of not found results)
+	 */
+	public void enableCache(int maxEntries, long ttlMillis, long notFoundTtlMillis) {
+		enableCache(maxEntries, ttlMillis, notFoundTtlMillis, 0);
+	}
+
+	/**
+	 * Enables the lookup cache with refresh-ahead. Names that were looked up
+	 * since they were cached are queried again in the background the
+	 * specified time before they expire, so that lookups keep being served
+	 * from the cache instead of waiting for the server. Names that are not
+	 * looked up are left to expire. Concurrent lookups of a name that is not
+	 * cached are always served by a single query.
+	 * 
+	 * @param maxEntries
+	 *            maximum number of cached names
+	 * @param ttlMillis
+	 *            time-to-live of found records, in milliseconds
+	 * @param notFoundTtlMillis
+	 *            time-to-live of not found results, in milliseconds (0 to
+	 *            disable caching of not found results)
+	 * @param refreshAheadMillis
+	 *            time before expiry at which names are queried again, in
+	 *            milliseconds, shorter than the time-to-live (0 to disable
+	 *            refresh-ahead)
+	 */
+	public void enableCache(int maxEntries, long ttlMillis, long notFoundTtlMillis, long refreshAheadMillis) {
+		final UDDINaming self = this;
+		UDDIRecordCache previous = cache;
+		cache = new UDDIRecordCache(maxEntries, ttlMillis, notFoundTtlMillis, refreshAheadMillis,
+				new UDDIRecordCache.Loader() {
+					@Override
+					public List<UDDIRecord> load(String orgName) throws Exception {
+						return self.refresh(orgName);
+					}
+				});
+		if (previous != null)
+			previous.close();
+	}
+
+	/**
+	 * Disables the lookup cache and discards cached results.
+	 */
+	public void disableCache() {
+		UDDIRecordCache previous = cache;
+		cache = null;
+		if (previous != null)
+			previous.close();
+	}
+
+	/**
+	 * Checks if the lookup cache is enabled.
+	 * 
+	 * @return is cache enabled?
+	 */
+	public boolean isCacheEnabled() {
+		return this.cache != null;
+	}
+
+	/**
+	 * Discards all cached results.
+	 */
+	public void clearCache() {
+		UDDIRecordCache c = cache;
+		if (c != null)
+			c.clear();
+	}
+
+	/**
+	 * Returns the number of queries served from the cache.
+	 * 
+	 * @return cache hit count, or zero if cache is disabled
+	 */
+	public long getCacheHitCount() {
+		UDDIRecordCache c = cache;
+		return (c == null) ? 0 : c.getHitCount();
 	}
 
-	/** Helper method to automatically disconnect from registry. */
-	private void autoDisconnect() {
-		if (autoConnectFlag)
-			disconnectQuietly();
+	/**
+	 * Returns the number of queries not found in the cache.
+	 * 
+	 * @return cache miss count, or zero if cache is disabled
+	 */
+	public long getCacheMissCount() {
+		UDDIRecordCache c = cache;
+		return (c == null) ? 0 : c.getMissCount();
+	}
+
+	/** Helper method to invalidate cached results affected by an update. */
+	private void invalidateCache(String orgName) {
+		UDDIRecordCache c = cache;
+		if (c != null)
+			c.invalidate(orgName);
 	}
 
 	/** Helper method to retrieve root cause of error. */
@@ -351,6 +631,11 @@ public class UDDINaming {
 	 * UDDINamingException.
 	 */
 	private void throwUDDINamingException(Exception e, String fName) throws UDDINamingException {
+		throw wrapUDDINamingException(e, fName);
+	}
+
+	/** Helper method to wrap an exception as thrown by throwUDDINamingException. */
+	private UDDINamingException wrapUDDINamingException(Exception e, String fName) {
 		if (log.isDebugEnabled()) {
 			log.debug(fName + "() caught " + e);
 			if (log.isTraceEnabled())
@@ -368,7 +653,7 @@ public class UDDINaming {
 		UDDINamingException une = new UDDINamingException(sb.toString(), e);
 		if (log.isDebugEnabled())
 			log.debug(fName + "() throwing " + une);
-		throw une;
+		return une;
 	}
 
 	//
@@ -388,17 +673,16 @@ public class UDDINaming {
 	 *             if list fails
 	 */
 	public Collection<UDDIRecord> listRecords(String orgName) throws UDDINamingException {
+		UDDIOperationTimer timer = startTimer("listRecords");
 		try {
 			orgName = validateAndTrimStringArg(orgName, "Organization name");
 
-			autoConnect();
-			try {
-				return queryAll(orgName);
-			} finally {
-				autoDisconnect();
-			}
+			return new ArrayList<UDDIRecord>(cachedQueryAll(orgName, timer));
 		} catch (Exception e) {
+			timer.failed(e);
 			throwUDDINamingException(e, "listRecords");
+		} finally {
+			timer.stop();
 		}
 		throw new IllegalStateException("UDDINamingException should have been thrown!");
 	}
@@ -424,6 +708,108 @@ public class UDDINaming {
 		return urls;
 	}
 
+	/**
+	 * Returns a collection of records bound to any of the names, with a single
+	 * registry inquiry for all names. The provided names can include wild-card
+	 * characters - % or ? - and a record that matches several names is
+	 * returned once. When more than one name is provided, the cache is not
+	 * used.
+	 * 
+	 * @param orgNames
+	 *            Names of organizations (may contain patterns)
+	 * @return Collection of records matching any of the provided names
+	 * @throws UDDINamingException
+	 *             if list fails
+	 */
+	public Collection<UDDIRecord> listRecords(Collection<String> orgNames) throws UDDINamingException {
+		if (orgNames == null)
+			throw new IllegalArgumentException("Organization names cannot be null!");
+		List<String> namePatterns = new ArrayList<String>(orgNames.size());
+		for (String orgName : orgNames)
+			namePatterns.add(validateAndTrimStringArg(orgName, "Organization name"));
+		if (namePatterns.isEmpty())
+			return new ArrayList<UDDIRecord>();
+		if (namePatterns.size() == 1)
+			return listRecords(namePatterns.get(0));
+
+		UDDIOperationTimer timer = startTimer("listRecords");
+		try {
+			final List<UDDIRecord> records = new ArrayList<UDDIRecord>();
+			UDDIConnection c = acquireConnection(timer);
+			boolean failed = true;
+			try {
+				queryAll(c, namePatterns, new RecordHandler() {
+					@Override
+					public void handle(UDDIRecord record) {
+						records.add(record);
+					}
+				});
+				failed = false;
+			} finally {
+				releaseConnection(c, failed, timer);
+			}
+			return records;
+
+		} catch (Exception e) {
+			timer.failed(e);
+			throwUDDINamingException(e, "listRecords");
+		} finally {
+			timer.stop();
+		}
+		throw new IllegalStateException("UDDINamingException should have been thrown!");
+	}
+
+	/**
+	 * Returns a collection of records of the organizations whose name starts
+	 * with the prefix, e.g. all "Supplier" records, with a single registry
+	 * inquiry.
+	 * 
+	 * @param prefix
+	 *            Prefix of the organization names
+	 * @return Collection of records with names starting with the prefix
+	 * @throws UDDINamingException
+	 *             if list fails
+	 */
+	public Collection<UDDIRecord> listRecordsByPrefix(String prefix) throws UDDINamingException {
+		prefix = validateAndTrimStringArg(prefix, "Prefix");
+		return listRecords(prefix + "%");
+	}
+
+	/**
+	 * Returns an iterator over the records bound to the name, read as the
+	 * iterator advances, so that the records are not copied to a collection.
+	 * The provided name can include wild-card characters - % or ? - to match
+	 * multiple records. The cache is not used.<br>
+	 * <br>
+	 * The iterator holds a connection until the last record is read, so it
+	 * should be closed, e.g. with try-with-resources, if it is abandoned.
+	 * 
+	 * @param orgName
+	 *            Name of organization (may contain pattern)
+	 * @return Iterator over the records matching provided organization name
+	 * @throws UDDINamingException
+	 *             if the inquiry fails
+	 */
+	public UDDIRecordIterator iterateRecords(String orgName) throws UDDINamingException {
+		UDDIOperationTimer timer = startTimer("iterateRecords");
+		UDDIConnection c = null;
+		try {
+			orgName = validateAndTrimStringArg(orgName, "Organization name");
+
+			c = acquireConnection(timer);
+			Collection<Organization> orgs = findOrganizations(c, Collections.singletonList(orgName));
+			return new RecordIterator(c, orgs.iterator(), timer);
+
+		} catch (Exception e) {
+			timer.failed(e);
+			if (c != null)
+				releaseConnection(c, true, timer);
+			timer.stop();
+			throwUDDINamingException(e, "iterateRecords");
+		}
+		throw new IllegalStateException("UDDINamingException should have been thrown!");
+	}
+
 	/**
 	 * Returns the first record associated with the specified name.
 	 * 
@@ -434,17 +820,16 @@ public class UDDINaming {
 	 *             if lookup fails
 	 */
 	public UDDIRecord lookupRecord(String orgName) throws UDDINamingException {
+		UDDIOperationTimer timer = startTimer("lookupRecord");
 		try {
 			orgName = validateAndTrimStringArg(orgName, "Organization name");
 
-			autoConnect();
-			try {
-				return query(orgName);
-			} finally {
-				autoDisconnect();
-			}
+			return query(orgName, timer);
 		} catch (Exception e) {
+			timer.failed(e);
 			throwUDDINamingException(e, "lookupRecord");
+		} finally {
+			timer.stop();
 		}
 		throw new IllegalStateException("UDDINamingException should have been thrown!");
 	}
@@ -477,18 +862,25 @@ public class UDDINaming {
 	 *             if unbind fails
 	 */
 	public void unbind(String orgName) throws UDDINamingException {
+		UDDIOperationTimer timer = startTimer("unbind");
 		try {
 			orgName = validateAndTrimStringArg(orgName, "Organization name");
 
-			autoConnect();
+			UDDIConnection c = acquireConnection(timer);
+			boolean failed = true;
 			try {
-				deleteAll(orgName);
+				deleteAll(c, orgName);
+				failed = false;
 
 			} finally {
-				autoDisconnect();
+				invalidateCache(orgName);
+				releaseConnection(c, failed, timer);
 			}
 		} catch (Exception e) {
+			timer.failed(e);
 			throwUDDINamingException(e, "unbind");
+		} finally {
+			timer.stop();
 		}
 	}
 
@@ -516,19 +908,26 @@ public class UDDINaming {
 	 *             if bind fails
 	 */
 	public void bind(UDDIRecord record) throws UDDINamingException {
+		UDDIOperationTimer timer = startTimer("bind");
 		try {
 			if (record == null)
 				throw new IllegalArgumentException("UDDI Record cannot be null!");
 
-			autoConnect();
+			UDDIConnection c = acquireConnection(timer);
+			boolean failed = true;
 			try {
-				publish(record);
+				publish(c, record);
+				failed = false;
 
 			} finally {
-				autoDisconnect();
+				invalidateCache(record.getOrgName());
+				releaseConnection(c, failed, timer);
 			}
 		} catch (Exception e) {
+			timer.failed(e);
 			throwUDDINamingException(e, "bind");
+		} finally {
+			timer.stop();
 		}
 
 	}
@@ -559,20 +958,27 @@ public class UDDINaming {
 	 *             if rebind fails
 	 */
 	public void rebind(UDDIRecord record) throws UDDINamingException {
+		UDDIOperationTimer timer = startTimer("rebind");
 		try {
 			if (record == null)
 				throw new IllegalArgumentException("UDDI Record cannot be null!");
 
-			autoConnect();
+			UDDIConnection c = acquireConnection(timer);
+			boolean failed = true;
 			try {
-				deleteAll(record.getOrgName());
-				publish(record);
+				deleteAll(c, record.getOrgName());
+				publish(c, record);
+				failed = false;
 
 			} finally {
-				autoDisconnect();
+				invalidateCache(record.getOrgName());
+				releaseConnection(c, failed, timer);
 			}
 		} catch (Exception e) {
+			timer.failed(e);
 			throwUDDINamingException(e, "rebind");
+		} finally {
+			timer.stop();
 		}
 	}
 
@@ -590,26 +996,39 @@ public class UDDINaming {
 		return string;
 	}
 
-	/** Queries UDDI and returns a list of records. */
-	private List<UDDIRecord> queryAll(String orgName) throws JAXRException {
-		List<UDDIRecord> records = new ArrayList<UDDIRecord>();
-
-		// search by name
-		Collection<String> findQualifiers = new ArrayList<String>();
-		findQualifiers.add(FindQualifier.SORT_BY_NAME_DESC);
+	/** Receives the records found by a query, one at a time. */
+	private interface RecordHandler {
+		void handle(UDDIRecord record);
+	}
 
-		// query organizations
-		Collection<String> namePatterns = new ArrayList<String>();
-		namePatterns.add(orgName);
+	/** Queries UDDI and returns a list of records. */
+	private List<UDDIRecord> queryAll(UDDIConnection c, String orgName) throws JAXRException {
+		final List<UDDIRecord> records = new ArrayList<UDDIRecord>();
+		queryAll(c, Collections.singletonList(orgName), new RecordHandler() {
+			@Override
+			public void handle(UDDIRecord record) {
+				records.add(record);
+			}
+		});
 
-		// perform search
-		BulkResponse r = bqm.findOrganizations(findQualifiers, namePatterns, null, null, null, null);
-		@SuppressWarnings("unchecked")
-		Collection<Organization> orgs = r.getCollection();
+		// service binding not found
 		if (log.isDebugEnabled())
-			log.debug(String.format("Found %d organizations", orgs.size()));
+			log.debug(String.format("Returning list with size %d", records.size()));
+		return records;
+	}
+
+	/**
+	 * Queries UDDI with a single inquiry for all the name patterns, and passes
+	 * each record to the handler as soon as it is read. The organizations are
+	 * returned with their services and bindings, so these are walked in memory
+	 * and the name of each organization is read once.
+	 */
+	private void queryAll(UDDIConnection c, Collection<String> namePatterns, RecordHandler handler)
+			throws JAXRException {
+		Collection<Organization> orgs = findOrganizations(c, namePatterns);
 
 		for (Organization o : orgs) {
+			String org = o.getName().getValue();
 
 			@SuppressWarnings("unchecked")
 			Collection<Service> services = o.getServices();
@@ -622,24 +1041,180 @@ public class UDDINaming {
 				if (log.isDebugEnabled())
 					log.debug(String.format("Found %d service bindings", serviceBindinds.size()));
 
-				for (ServiceBinding sb : serviceBindinds) {
-					String org = o.getName().getValue();
-					String url = sb.getAccessURI();
-					UDDIRecord record = new UDDIRecord(org, url);
-					records.add(record);
+				for (ServiceBinding sb : serviceBindinds)
+					handler.handle(new UDDIRecord(org, sb.getAccessURI()));
+			}
+		}
+	}
+
+	/** Queries UDDI for the organizations that match any of the name patterns. */
+	private Collection<Organization> findOrganizations(UDDIConnection c, Collection<String> namePatterns)
+			throws JAXRException {
+		// search by name
+		Collection<String> findQualifiers = new ArrayList<String>();
+		findQualifiers.add(FindQualifier.SORT_BY_NAME_DESC);
+
+		// perform search, the name patterns are alternatives
+		BulkResponse r = c.bqm.findOrganizations(findQualifiers, namePatterns, null, null, null, null);
+		@SuppressWarnings("unchecked")
+		Collection<Organization> orgs = r.getCollection();
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Found %d organizations", orgs.size()));
+			if (r.isPartialResponse())
+				log.debug("Registry returned a partial response");
+		}
+		return orgs;
+	}
+
+	/**
+	 * Walks the organizations found by an inquiry, reading the services and
+	 * bindings of one organization at a time, as records are requested. The
+	 * connection is kept while walking, since the registry provider may read
+	 * services and bindings on demand, and is released at the end or on close.
+	 */
+	private class RecordIterator implements UDDIRecordIterator {
+
+		private final UDDIConnection c;
+		private final Iterator<Organization> orgs;
+		private final UDDIOperationTimer timer;
+
+		/** Name of the current organization */
+		private String org;
+		private Iterator<Service> services = Collections.<Service> emptyIterator();
+		private Iterator<ServiceBinding> bindings = Collections.<ServiceBinding> emptyIterator();
+
+		/** Record read ahead by hasNext, or null */
+		private UDDIRecord next;
+
+		private boolean released = false;
+
+		RecordIterator(UDDIConnection c, Iterator<Organization> orgs, UDDIOperationTimer timer) {
+			this.c = c;
+			this.orgs = orgs;
+			this.timer = timer;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next != null)
+				return true;
+			if (released)
+				return false;
+			try {
+				while (!bindings.hasNext()) {
+					if (services.hasNext()) {
+						@SuppressWarnings("unchecked")
+						Collection<ServiceBinding> serviceBindings = (Collection<ServiceBinding>) services.next()
+								.getServiceBindings();
+						bindings = serviceBindings.iterator();
+					} else if (orgs.hasNext()) {
+						Organization o = orgs.next();
+						org = o.getName().getValue();
+						@SuppressWarnings("unchecked")
+						Collection<Service> orgServices = o.getServices();
+						services = orgServices.iterator();
+					} else {
+						release(false);
+						return false;
+					}
 				}
+				next = new UDDIRecord(org, bindings.next().getAccessURI());
+				return true;
+
+			} catch (JAXRException e) {
+				timer.failed(e);
+				release(true);
+				UDDINamingException une = wrapUDDINamingException(e, "iterateRecords");
+				throw new IllegalStateException(une.getMessage(), une);
 			}
 		}
 
-		// service binding not found
-		if (log.isDebugEnabled())
-			log.debug(String.format("Returning list with size %d", records.size()));
-		return records;
+		@Override
+		public UDDIRecord next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			UDDIRecord record = next;
+			next = null;
+			return record;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Records are read-only! Use unbind.");
+		}
+
+		@Override
+		public void close() {
+			next = null;
+			release(false);
+		}
+
+		private void release(boolean failed) {
+			if (released)
+				return;
+			released = true;
+			releaseConnection(c, failed, timer);
+			timer.stop();
+		}
+	}
+
+	/**
+	 * Returns the cached records of the name or, if they are not cached,
+	 * connects (if required) and queries UDDI.
+	 */
+	private List<UDDIRecord> cachedQueryAll(String orgName, final UDDIOperationTimer timer) throws Exception {
+		UDDIRecordCache cache = this.cache;
+		if (cache == null)
+			return queryAll(orgName, timer);
+
+		List<UDDIRecord> records = cache.get(orgName);
+		timer.cacheAccessed(records != null);
+		if (records != null) {
+			if (log.isDebugEnabled())
+				log.debug(String.format("Returning cached list with size %d", records.size()));
+			return records;
+		}
+		// concurrent misses share the query
+		return cache.load(orgName, new UDDIRecordCache.Loader() {
+			@Override
+			public List<UDDIRecord> load(String orgName) throws Exception {
+				return queryAll(orgName, timer);
+			}
+		});
 	}
 
-	/** Queries UDDI and returns first record. */
-	private UDDIRecord query(String orgName) throws JAXRException {
-		List<UDDIRecord> listResult = queryAll(orgName);
+	/** Connects (if required) and queries UDDI. */
+	private List<UDDIRecord> queryAll(String orgName, UDDIOperationTimer timer)
+			throws UDDINamingException, JAXRException, InterruptedException {
+		UDDIConnection c = acquireConnection(timer);
+		boolean failed = true;
+		try {
+			List<UDDIRecord> records = queryAll(c, orgName);
+			failed = false;
+			return records;
+		} finally {
+			releaseConnection(c, failed, timer);
+		}
+	}
+
+	/** Queries UDDI for a cached name about to expire, in the background. */
+	private List<UDDIRecord> refresh(String orgName) throws Exception {
+		UDDIOperationTimer timer = startTimer("refresh");
+		try {
+			return queryAll(orgName, timer);
+		} catch (Exception e) {
+			timer.failed(e);
+			if (log.isDebugEnabled())
+				log.debug("refresh() of " + orgName + " caught " + e);
+			throw e;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/** Queries cache or UDDI and returns first record. */
+	private UDDIRecord query(String orgName, UDDIOperationTimer timer) throws Exception {
+		List<UDDIRecord> listResult = cachedQueryAll(orgName, timer);
 		int listResultSize = listResult.size();
 
 		if (listResultSize == 0) {
@@ -656,7 +1231,7 @@ public class UDDINaming {
 	}
 
 	/** Deletes all records that match organization name from UDDI. */
-	private boolean deleteAll(String orgName) throws JAXRException {
+	private boolean deleteAll(UDDIConnection c, String orgName) throws JAXRException {
 
 		Collection<String> findQualifiers = new ArrayList<String>();
 		findQualifiers.add(FindQualifier.SORT_BY_NAME_DESC);
@@ -665,7 +1240,7 @@ public class UDDINaming {
 		namePatterns.add(orgName);
 
 		// Search existing
-		BulkResponse response = bqm.findOrganizations(findQualifiers, namePatterns, null, null, null, null);
+		BulkResponse response = c.bqm.findOrganizations(findQualifiers, namePatterns, null, null, null, null);
 		@SuppressWarnings("unchecked")
 		Collection<Organization> orgs = response.getCollection();
 		Collection<Key> orgsToDelete = new ArrayList<Key>();
@@ -680,7 +1255,7 @@ public class UDDINaming {
 		if (orgsToDelete.isEmpty()) {
 			return true;
 		} else {
-			BulkResponse deleteResponse = blcm.deleteOrganizations(orgsToDelete);
+			BulkResponse deleteResponse = c.blcm.deleteOrganizations(orgsToDelete);
 			boolean result = (deleteResponse.getStatus() == JAXRResponse.STATUS_SUCCESS);
 
 			if (log.isDebugEnabled()) {
@@ -699,7 +1274,7 @@ public class UDDINaming {
 	 * Publishes a record to UDDI with derived service name and binding
 	 * description.
 	 */
-	private boolean publish(UDDIRecord record) throws JAXRException {
+	private boolean publish(UDDIConnection c, UDDIRecord record) throws JAXRException {
 		// derive other names from organization name
 		String serviceName = record.getOrgName() + " service";
 		String bindingDesc = serviceName + " binding";
@@ -709,15 +1284,17 @@ public class UDDINaming {
 			log.debug(String.format("Derived binding description %s", bindingDesc));
 		}
 
-		return publish(record.getOrgName(), serviceName, bindingDesc, record.getUrl());
+		return publish(c, record.getOrgName(), serviceName, bindingDesc, record.getUrl());
 	}
 
 	/**
 	 * Publishes a record to UDDI with provided service name and binding
 	 * description.
 	 */
-	private boolean publish(String orgName, String serviceName, String bindingDescription, String bindingURL)
-			throws JAXRException {
+	private boolean publish(UDDIConnection c, String orgName, String serviceName, String bindingDescription,
+			String bindingURL) throws JAXRException {
+
+		BusinessLifeCycleManager blcm = c.blcm;
 
 		// Create organization
 		Organization org = blcm.createOrganization(orgName);
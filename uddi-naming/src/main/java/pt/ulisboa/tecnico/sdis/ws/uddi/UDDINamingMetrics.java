@@ -0,0 +1,62 @@
+package pt.ulisboa.tecnico.sdis.ws.uddi;
+
+/**
+ * Receives measurements of UDDINaming operations, to be aggregated and
+ * published by a metrics library. {@link JmxUDDINamingMetrics} is the default
+ * implementation, which publishes the measurements through JMX.<br>
+ * <br>
+ * Methods are called concurrently by the threads that use UDDINaming, so they
+ * must be thread-safe and must not block.
+ */
+public interface UDDINamingMetrics {
+
+	/** Metrics that discard all measurements */
+	UDDINamingMetrics NONE = new UDDINamingMetrics() {
+		@Override
+		public void connectionEstablished(long nanos) {
+		}
+
+		@Override
+		public void operationCompleted(String operation, long connectNanos, long requestNanos, Throwable error) {
+		}
+
+		@Override
+		public void cacheAccessed(String operation, boolean hit) {
+		}
+	};
+
+	/**
+	 * Reports that a new JAX-R connection was created.
+	 *
+	 * @param nanos
+	 *            time taken to create the connection, in nanoseconds
+	 */
+	void connectionEstablished(long nanos);
+
+	/**
+	 * Reports a completed operation. The total latency is the sum of the
+	 * connection and request times.
+	 *
+	 * @param operation
+	 *            operation name, e.g. "lookupRecord"
+	 * @param connectNanos
+	 *            time spent obtaining and releasing the connection, in
+	 *            nanoseconds
+	 * @param requestNanos
+	 *            time spent in requests to the registry, in nanoseconds
+	 * @param error
+	 *            failure of the operation, or null if it succeeded
+	 */
+	void operationCompleted(String operation, long connectNanos, long requestNanos, Throwable error);
+
+	/**
+	 * Reports a cache access by an operation.
+	 *
+	 * @param operation
+	 *            operation name, e.g. "lookupRecord"
+	 * @param hit
+	 *            true if the result was served from the cache
+	 */
+	void cacheAccessed(String operation, boolean hit);
+
+}
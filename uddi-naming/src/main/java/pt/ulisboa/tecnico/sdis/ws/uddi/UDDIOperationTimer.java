@@ -0,0 +1,54 @@
+package pt.ulisboa.tecnico.sdis.ws.uddi;
+
+/**
+ * Measures one UDDINaming operation, separating the time spent obtaining and
+ * releasing the connection from the time spent in requests, and reports it to
+ * the metrics when stopped.
+ */
+class UDDIOperationTimer {
+
+	private final UDDINamingMetrics metrics;
+
+	private final String operation;
+
+	private final long start = System.nanoTime();
+
+	/** Start of the current connection phase */
+	private long connectStart;
+
+	/** Accumulated time of the connection phases */
+	private long connectNanos = 0;
+
+	private Throwable error = null;
+
+	UDDIOperationTimer(UDDINamingMetrics metrics, String operation) {
+		this.metrics = metrics;
+		this.operation = operation;
+	}
+
+	/** Marks the start of a connection phase. */
+	void startConnect() {
+		connectStart = System.nanoTime();
+	}
+
+	/** Marks the end of a connection phase. */
+	void endConnect() {
+		connectNanos += System.nanoTime() - connectStart;
+	}
+
+	void cacheAccessed(boolean hit) {
+		metrics.cacheAccessed(operation, hit);
+	}
+
+	/** Records the failure of the operation. */
+	void failed(Throwable e) {
+		error = e;
+	}
+
+	/** Reports the operation. */
+	void stop() {
+		long total = System.nanoTime() - start;
+		metrics.operationCompleted(operation, connectNanos, total - connectNanos, error);
+	}
+
+}
@@ -0,0 +1,387 @@
+package pt.ulisboa.tecnico.sdis.ws.uddi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Bounded cache of UDDI query results, indexed by organization name (or name
+ * pattern). Entries expire after a time-to-live and the least recently used
+ * entry is evicted when the cache is full. Empty results ("not found") are
+ * also cached, usually with a shorter time-to-live.<br>
+ * <br>
+ * Concurrent misses of the same name are served by a single query. With
+ * refresh-ahead, an entry that was read since it was stored is queried again
+ * in the background shortly before it expires, so that readers keep getting
+ * the current records and do not wait for the query.
+ */
+class UDDIRecordCache {
+
+	/** Queries UDDI for the records of a name. */
+	interface Loader {
+		List<UDDIRecord> load(String orgName) throws Exception;
+	}
+
+	/** Cached query result */
+	private static class CachedResult {
+		final List<UDDIRecord> records;
+		final long expiresAt;
+		/** Was the entry read since it was stored? Guarded by the cache. */
+		boolean accessed = false;
+		/** Was the entry removed from the cache? Guarded by the cache. */
+		boolean removed = false;
+
+		CachedResult(List<UDDIRecord> records, long expiresAt) {
+			this.records = records;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/** Query in progress, shared by the concurrent misses of a name */
+	private static class Query {
+		final long stamp;
+		final FutureTask<List<UDDIRecord>> task;
+
+		Query(long stamp, FutureTask<List<UDDIRecord>> task) {
+			this.stamp = stamp;
+			this.task = task;
+		}
+	}
+
+	/** Number of threads that refresh entries */
+	private static final int REFRESH_THREADS = 2;
+
+	/** Maximum number of entries */
+	private final int maxEntries;
+	/** Time-to-live of found records, in nanoseconds */
+	private final long ttlNanos;
+	/** Time-to-live of not found results, in nanoseconds */
+	private final long notFoundTtlNanos;
+
+	/** Time before expiry at which accessed entries are refreshed, in nanoseconds, 0 if disabled */
+	private final long refreshAheadNanos;
+
+	/** Queries the entries to refresh, null if refresh-ahead is disabled */
+	private final Loader refreshLoader;
+
+	/** Runs the refreshes, null if refresh-ahead is disabled */
+	private final ScheduledThreadPoolExecutor refresher;
+
+	/** Entries in access order, to evict the least recently used */
+	private final Map<String, CachedResult> entries;
+
+	/** Queries in progress by name */
+	private final ConcurrentMap<String, Query> queries = new ConcurrentHashMap<String, Query>();
+
+	/**
+	 * Incremented on every invalidation, so that a query that overlaps an
+	 * invalidation does not store an outdated result.
+	 */
+	private long epoch = 0;
+
+	/** Statistics */
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param maxEntries
+	 *            maximum number of cached names
+	 * @param ttlMillis
+	 *            time-to-live of found records, in milliseconds
+	 * @param notFoundTtlMillis
+	 *            time-to-live of not found results, in milliseconds (0 to
+	 *            disable negative caching)
+	 */
+	UDDIRecordCache(final int maxEntries, long ttlMillis, long notFoundTtlMillis) {
+		this(maxEntries, ttlMillis, notFoundTtlMillis, 0, null);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            maximum number of cached names
+	 * @param ttlMillis
+	 *            time-to-live of found records, in milliseconds
+	 * @param notFoundTtlMillis
+	 *            time-to-live of not found results, in milliseconds (0 to
+	 *            disable negative caching)
+	 * @param refreshAheadMillis
+	 *            time before expiry at which entries that were read are
+	 *            refreshed, in milliseconds (0 to disable refresh-ahead)
+	 * @param refreshLoader
+	 *            queries the entries to refresh, required if refresh-ahead is
+	 *            enabled
+	 */
+	UDDIRecordCache(final int maxEntries, long ttlMillis, long notFoundTtlMillis, long refreshAheadMillis,
+			Loader refreshLoader) {
+		if (maxEntries <= 0)
+			throw new IllegalArgumentException("Cache size must be positive!");
+		if (ttlMillis <= 0)
+			throw new IllegalArgumentException("Cache time-to-live must be positive!");
+		if (notFoundTtlMillis < 0)
+			throw new IllegalArgumentException("Cache not found time-to-live cannot be negative!");
+		if (refreshAheadMillis < 0)
+			throw new IllegalArgumentException("Cache refresh-ahead time cannot be negative!");
+		if (refreshAheadMillis >= ttlMillis)
+			throw new IllegalArgumentException("Cache refresh-ahead time must be shorter than time-to-live!");
+		if (refreshAheadMillis > 0 && refreshLoader == null)
+			throw new IllegalArgumentException("Cache refresh loader cannot be null!");
+
+		this.maxEntries = maxEntries;
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.notFoundTtlNanos = notFoundTtlMillis * 1000000L;
+		this.refreshAheadNanos = refreshAheadMillis * 1000000L;
+		this.refreshLoader = refreshLoader;
+		if (refreshAheadMillis > 0) {
+			this.refresher = new ScheduledThreadPoolExecutor(REFRESH_THREADS, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "UDDINaming-refresh-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.refresher.setRemoveOnCancelPolicy(true);
+		} else {
+			this.refresher = null;
+		}
+		this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+				if (size() <= UDDIRecordCache.this.maxEntries)
+					return false;
+				eldest.getValue().removed = true;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the current invalidation epoch. Must be read before querying
+	 * UDDI and passed to put.
+	 */
+	synchronized long stamp() {
+		return epoch;
+	}
+
+	/**
+	 * Returns the cached records of the name, an empty list if the name is
+	 * cached as not found, or null if there is no valid entry.
+	 */
+	synchronized List<UDDIRecord> get(String orgName) {
+		CachedResult entry = entries.get(orgName);
+		if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+			entries.remove(orgName);
+			entry.removed = true;
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		entry.accessed = true;
+		return entry.records;
+	}
+
+	/**
+	 * Queries the records of a name after a miss, with the loader, and stores
+	 * the result. A query of the name already in progress since the last
+	 * invalidation is awaited instead, so that concurrent misses are served by
+	 * a single query. A query started before the last invalidation is replaced
+	 * by the new one, which the following misses await.
+	 * 
+	 * @throws Exception
+	 *             thrown by the loader
+	 */
+	List<UDDIRecord> load(final String orgName, final Loader loader) throws Exception {
+		final long stamp = stamp();
+		Query query = new Query(stamp, new FutureTask<List<UDDIRecord>>(new Callable<List<UDDIRecord>>() {
+			@Override
+			public List<UDDIRecord> call() throws Exception {
+				List<UDDIRecord> records = loader.load(orgName);
+				put(orgName, records, stamp);
+				return records;
+			}
+		}));
+
+		Query running = queries.putIfAbsent(orgName, query);
+		// started before an invalidation, its result may be outdated
+		if (running != null && running.stamp < stamp && queries.replace(orgName, running, query))
+			running = null;
+
+		if (running == null) {
+			try {
+				query.task.run();
+			} finally {
+				queries.remove(orgName, query);
+			}
+		} else if (running.stamp < stamp) {
+			// replaced meanwhile by another query, run unshared
+			query.task.run();
+		} else {
+			query = running;
+		}
+
+		try {
+			return query.task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Error)
+				throw (Error) cause;
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw e;
+		}
+	}
+
+	/** Stores the result of a query made when the epoch had the provided stamp. */
+	synchronized void put(String orgName, List<UDDIRecord> records, long stamp) {
+		// an invalidation may have happened since the query
+		if (stamp != epoch)
+			return;
+		long ttl = records.isEmpty() ? notFoundTtlNanos : ttlNanos;
+		if (ttl == 0)
+			return;
+		List<UDDIRecord> value = Collections.unmodifiableList(new ArrayList<UDDIRecord>(records));
+		CachedResult entry = new CachedResult(value, System.nanoTime() + ttl);
+		CachedResult replaced = entries.put(orgName, entry);
+		if (replaced != null)
+			replaced.removed = true;
+		if (refresher != null && ttl > refreshAheadNanos)
+			scheduleRefresh(orgName, entry, ttl - refreshAheadNanos);
+	}
+
+	/**
+	 * Invalidates the entries that may include records of the provided
+	 * organization name. The name may contain wild-card characters, e.g. '_'
+	 * in a bound name or '%' in an unbind pattern: then the entries of the
+	 * names that it matches are also invalidated.
+	 */
+	synchronized void invalidate(String orgName) {
+		epoch++;
+		Iterator<Map.Entry<String, CachedResult>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, CachedResult> e = it.next();
+			if (matches(e.getKey(), orgName) || matches(orgName, e.getKey())) {
+				e.getValue().removed = true;
+				it.remove();
+			}
+		}
+	}
+
+	/** Invalidates all entries. */
+	synchronized void clear() {
+		epoch++;
+		removeAll();
+	}
+
+	synchronized long getHitCount() {
+		return hits;
+	}
+
+	synchronized long getMissCount() {
+		return misses;
+	}
+
+	/** Stops refreshing entries. Refreshes in progress are not interrupted. */
+	void close() {
+		if (refresher != null)
+			refresher.shutdownNow();
+	}
+
+	//
+	// refresh-ahead
+	//
+
+	/** Schedules the refresh of an entry, if it is read before then. */
+	private void scheduleRefresh(final String orgName, final CachedResult entry, long delayNanos) {
+		if (refresher.isShutdown())
+			return;
+		refresher.schedule(new Runnable() {
+			@Override
+			public void run() {
+				refresh(orgName, entry);
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Queries the name again and stores the result, if the entry is still
+	 * cached and was read since it was stored. Entries that are not read are
+	 * left to expire. If the query fails, the entry also expires, and the
+	 * next reader queries the name.
+	 */
+	private void refresh(String orgName, CachedResult entry) {
+		long stamp;
+		synchronized (this) {
+			if (!entry.accessed || entry.removed)
+				return;
+			stamp = epoch;
+		}
+		try {
+			put(orgName, refreshLoader.load(orgName), stamp);
+		} catch (Exception e) {
+			// reported by the loader
+		}
+	}
+
+	//
+	// private implementation
+	//
+
+	/** Removes all entries. */
+	private void removeAll() {
+		for (CachedResult entry : entries.values())
+			entry.removed = true;
+		entries.clear();
+	}
+
+	/** Checks if the name contains wild-card characters. */
+	private static boolean isPattern(String name) {
+		return name.indexOf('%') >= 0 || name.indexOf('?') >= 0 || name.indexOf('_') >= 0;
+	}
+
+	/**
+	 * Checks if a name pattern may match the name. Matching is case
+	 * insensitive, so that in doubt the entry is invalidated.
+	 */
+	private static boolean matches(String pattern, String name) {
+		if (!isPattern(pattern))
+			return pattern.equalsIgnoreCase(name);
+
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (char c : pattern.toCharArray()) {
+			if (c == '%' || c == '?' || c == '_') {
+				if (literal.length() > 0) {
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append(c == '%' ? ".*" : ".");
+			} else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0)
+			regex.append(Pattern.quote(literal.toString()));
+		return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL).matcher(name).matches();
+	}
+
+}
@@ -0,0 +1,19 @@
+package pt.ulisboa.tecnico.sdis.ws.uddi;
+
+import java.util.Iterator;
+
+/**
+ * Iterator over the records found by a UDDI inquiry, read one at a time. The
+ * iterator holds a registry connection until the last record is read or until
+ * it is closed, so it should be used in a try-with-resources statement.<br>
+ * <br>
+ * Since Iterator methods cannot throw checked exceptions, registry failures
+ * are thrown as IllegalStateException, with a UDDINamingException cause.
+ */
+public interface UDDIRecordIterator extends Iterator<UDDIRecord>, AutoCloseable {
+
+	/** Releases the connection. Records not read are discarded. */
+	@Override
+	void close();
+
+}
@@ -0,0 +1,29 @@
+package pt.ulisboa.tecnico.sdis.ws.uddi;
+
+import javax.xml.registry.ConnectionFactory;
+import javax.xml.registry.JAXRException;
+
+/**
+ * Provides the JAX-R connection factory that UDDINaming uses to reach a UDDI
+ * registry. {@link ScoutUDDITransport} is the default implementation, which
+ * reaches a jUDDI server through web services; the InMemoryUDDIRegistry of
+ * the test-jar keeps the registry in the client process, for tests and
+ * benchmarks.<br>
+ * <br>
+ * The factory is created once per UDDINaming object, and its connections are
+ * used concurrently by the threads that share the object.
+ */
+public interface UDDITransport {
+
+	/**
+	 * Creates the connection factory for the registry at the URL.
+	 *
+	 * @param uddiURL
+	 *            URL of the UDDI server, without user name and password
+	 * @return JAX-R connection factory
+	 * @throws JAXRException
+	 *             if the factory cannot be created
+	 */
+	ConnectionFactory createConnectionFactory(String uddiURL) throws JAXRException;
+
+}
@@ -0,0 +1,97 @@
+package pt.ulisboa.tecnico.sdis.ws.uddi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Integration Test suite, run against the in-memory registry, so no UDDI
+ * server is needed.
+ */
+public class InMemoryUDDINamingIT {
+
+	// static members
+	static final String TEST_URL_UDDI = "http://localhost:9090";
+	static final String TEST_NAME = "TestWebServiceName";
+	static final String TEST_URL = "http://host:port/my-ws/endpoint";
+
+	static final String TEST_NAME_WILDCARD = TEST_NAME.substring(0, 14) + "%";
+
+	// members
+
+	private InMemoryUDDIRegistry registry;
+
+	private UDDINaming uddiNaming;
+
+	// initialization and clean-up for each test
+
+	@Before
+	public void setUp() throws Exception {
+		registry = new InMemoryUDDIRegistry();
+		uddiNaming = new UDDINaming(TEST_URL_UDDI, registry);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		uddiNaming = null;
+		registry = null;
+	}
+
+	// tests
+
+	@Test
+	public void testRebindLookupUnbind() throws Exception {
+		uddiNaming.rebind(TEST_NAME, TEST_URL);
+		assertEquals(TEST_URL, uddiNaming.lookup(TEST_NAME));
+		assertEquals(TEST_URL, uddiNaming.lookup(TEST_NAME_WILDCARD));
+
+		// rebind replaces the previous binding
+		uddiNaming.rebind(TEST_NAME, TEST_URL + "2");
+		assertEquals(TEST_URL + "2", uddiNaming.lookup(TEST_NAME));
+		assertEquals(1, registry.size());
+
+		uddiNaming.unbind(TEST_NAME);
+		assertNull(uddiNaming.lookup(TEST_NAME));
+		assertEquals(0, registry.size());
+	}
+
+	@Test
+	public void testBindListWithWildcard() throws Exception {
+		final UDDIRecord record1 = new UDDIRecord(TEST_NAME + "1", TEST_URL + "1");
+		final UDDIRecord record2 = new UDDIRecord(TEST_NAME + "2", TEST_URL + "2");
+		uddiNaming.bind(record1);
+		uddiNaming.bind(record2);
+
+		Collection<UDDIRecord> records = uddiNaming.listRecords(TEST_NAME_WILDCARD);
+		assertEquals(2, records.size());
+		assertTrue(records.contains(record1));
+		assertTrue(records.contains(record2));
+
+		Collection<String> urls = uddiNaming.list(TEST_NAME_WILDCARD);
+		assertTrue(urls.containsAll(Arrays.asList(record1.getUrl(), record2.getUrl())));
+
+		uddiNaming.unbind(TEST_NAME_WILDCARD);
+		assertTrue(uddiNaming.listRecords(TEST_NAME_WILDCARD).isEmpty());
+	}
+
+	@Test
+	public void testSharedRegistry() throws Exception {
+		// clients created with the same registry see the same bindings, whatever the URL
+		UDDINaming other = new UDDINaming("http://otherhost:9090", registry);
+		other.enableConnectionPool(2, 60000, 1000);
+		uddiNaming.bind(TEST_NAME, TEST_URL);
+		assertEquals(TEST_URL, other.lookup(TEST_NAME));
+		other.disableConnectionPool();
+
+		UDDINaming isolated = new UDDINaming(TEST_URL_UDDI, new InMemoryUDDIRegistry());
+		assertNull(isolated.lookup(TEST_NAME));
+	}
+
+}
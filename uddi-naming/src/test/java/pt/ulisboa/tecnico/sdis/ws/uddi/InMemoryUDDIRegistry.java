@@ -0,0 +1,348 @@
+package pt.ulisboa.tecnico.sdis.ws.uddi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+import javax.xml.registry.BulkResponse;
+import javax.xml.registry.BusinessLifeCycleManager;
+import javax.xml.registry.BusinessQueryManager;
+import javax.xml.registry.Connection;
+import javax.xml.registry.ConnectionFactory;
+import javax.xml.registry.FederatedConnection;
+import javax.xml.registry.JAXRException;
+import javax.xml.registry.JAXRResponse;
+import javax.xml.registry.RegistryService;
+import javax.xml.registry.UnsupportedCapabilityException;
+import javax.xml.registry.infomodel.InternationalString;
+import javax.xml.registry.infomodel.Key;
+import javax.xml.registry.infomodel.Organization;
+import javax.xml.registry.infomodel.Service;
+import javax.xml.registry.infomodel.ServiceBinding;
+
+/**
+ * UDDI registry kept in the client process, to run UDDINaming without a jUDDI
+ * server, e.g. in functional tests and benchmarks. The registry is shared by
+ * all UDDINaming objects created with it, whatever their URL:
+ *
+ * <pre>
+ * InMemoryUDDIRegistry registry = new InMemoryUDDIRegistry();
+ * UDDINaming uddiNaming = new UDDINaming("http://localhost:9090", registry);
+ * </pre>
+ *
+ * Organizations are matched by name as jUDDI does: case insensitive, with '%'
+ * matching any sequence of characters and '_' any single character. Each
+ * registry call can be delayed to simulate the network round trip, so that
+ * the overhead of the client can be measured apart from the registry.<br>
+ * <br>
+ * Only the parts of JAX-R used by UDDINaming are implemented: infomodel
+ * objects are dynamic proxies that store their properties in a map.
+ */
+public class InMemoryUDDIRegistry implements UDDITransport {
+
+	/** Organizations by key */
+	private final ConcurrentMap<String, Organization> orgs = new ConcurrentHashMap<String, Organization>();
+
+	/** Key generator */
+	private final AtomicLong nextKey = new AtomicLong();
+
+	/** Simulated round trip time of each registry call, in nanoseconds */
+	private volatile long rttNanos = 0;
+
+	/**
+	 * Sets the simulated round trip time of each registry call.
+	 *
+	 * @param micros
+	 *            round trip time, in microseconds
+	 */
+	public void setRoundTripMicros(long micros) {
+		if (micros < 0)
+			throw new IllegalArgumentException("Round trip time cannot be negative!");
+		rttNanos = micros * 1000L;
+	}
+
+	/**
+	 *
+	 * @return Simulated round trip time of each registry call, in microseconds
+	 */
+	public long getRoundTripMicros() {
+		return rttNanos / 1000L;
+	}
+
+	/** Removes all organizations. */
+	public void clear() {
+		orgs.clear();
+	}
+
+	/**
+	 *
+	 * @return Number of organizations
+	 */
+	public int size() {
+		return orgs.size();
+	}
+
+	@Override
+	public ConnectionFactory createConnectionFactory(String uddiURL) {
+		return new LocalConnectionFactory();
+	}
+
+	@Override
+	public String toString() {
+		return "InMemoryUDDIRegistry [organizations=" + orgs.size() + "]";
+	}
+
+	//
+	// JAX-R
+	//
+
+	private final class LocalConnectionFactory extends ConnectionFactory {
+
+		private Properties properties = new Properties();
+
+		@Override
+		public void setProperties(Properties properties) {
+			this.properties = properties;
+		}
+
+		@Override
+		public Properties getProperties() {
+			return properties;
+		}
+
+		@Override
+		public Connection createConnection() {
+			final RegistryService rs = proxy(RegistryService.class, new InvocationHandler() {
+				final BusinessQueryManager bqm = proxy(BusinessQueryManager.class, new QueryManager());
+				final BusinessLifeCycleManager blcm = proxy(BusinessLifeCycleManager.class, new LifeCycleManager());
+
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("getBusinessQueryManager"))
+						return bqm;
+					if (method.getName().equals("getBusinessLifeCycleManager"))
+						return blcm;
+					throw new UnsupportedOperationException(method.getName());
+				}
+			});
+			return proxy(Connection.class, new InvocationHandler() {
+				volatile boolean closed = false;
+
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					switch (method.getName()) {
+					case "getRegistryService":
+						return rs;
+					case "close":
+						closed = true;
+						return null;
+					case "isClosed":
+						return closed;
+					default:
+						return null;
+					}
+				}
+			});
+		}
+
+		@Override
+		public FederatedConnection createFederatedConnection(@SuppressWarnings("rawtypes") Collection connections)
+				throws JAXRException {
+			throw new UnsupportedCapabilityException("Federated connections are not supported");
+		}
+	}
+
+	/** Implements findOrganizations. */
+	private final class QueryManager implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (!method.getName().equals("findOrganizations"))
+				throw new UnsupportedOperationException(method.getName());
+			roundTrip();
+
+			List<Pattern> patterns = new ArrayList<Pattern>();
+			for (Object name : (Collection<?>) args[1])
+				patterns.add(compile(name.toString()));
+
+			List<Organization> found = new ArrayList<Organization>();
+			for (Organization org : orgs.values()) {
+				String name = nameOf(org);
+				for (Pattern pattern : patterns) {
+					if (pattern.matcher(name).matches()) {
+						found.add(org);
+						break;
+					}
+				}
+			}
+			// sort by name descending, as requested by UDDINaming
+			Collections.sort(found, new Comparator<Organization>() {
+				@Override
+				public int compare(Organization a, Organization b) {
+					return nameOf(b).compareTo(nameOf(a));
+				}
+			});
+			return response(found);
+		}
+	}
+
+	/** Implements the factory methods and the save and delete operations. */
+	private final class LifeCycleManager implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws JAXRException {
+			switch (method.getName()) {
+			case "createOrganization":
+				return bean(Organization.class, "name", string((String) args[0]));
+			case "createService":
+				return bean(Service.class, "name", string((String) args[0]));
+			case "createServiceBinding":
+				return bean(ServiceBinding.class);
+			case "createInternationalString":
+				return string((String) args[0]);
+			case "saveOrganizations":
+				roundTrip();
+				for (Object o : (Collection<?>) args[0]) {
+					Organization org = (Organization) o;
+					String id = "uddi:local:" + nextKey.incrementAndGet();
+					((Bean) Proxy.getInvocationHandler(org)).put("key", bean(Key.class, "id", id));
+					orgs.put(id, org);
+				}
+				return response(Collections.emptyList());
+			case "deleteOrganizations":
+				roundTrip();
+				for (Object key : (Collection<?>) args[0])
+					orgs.remove(((Key) key).getId());
+				return response(Collections.emptyList());
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		}
+	}
+
+	/**
+	 * Generic infomodel object. Getters return the value stored by the
+	 * matching setter, boolean isX() getters return false if not set, and
+	 * addX(value) appends to the collection returned by getXs().
+	 */
+	private static final class Bean implements InvocationHandler {
+
+		private final Map<String, Object> properties = new HashMap<String, Object>();
+
+		synchronized void put(String property, Object value) {
+			properties.put(property, value);
+		}
+
+		@Override
+		public synchronized Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("equals"))
+				return proxy == args[0];
+			if (name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			if (name.equals("toString"))
+				return properties.toString();
+
+			if (name.startsWith("set") && args != null && args.length == 1) {
+				properties.put(property(name), args[0]);
+				return null;
+			}
+			if (name.startsWith("add") && args != null && args.length == 1) {
+				collection(property(name) + "s").add(args[0]);
+				return null;
+			}
+			if (name.startsWith("get") && args == null) {
+				Class<?> type = method.getReturnType();
+				if (Collection.class.isAssignableFrom(type))
+					return new ArrayList<Object>(collection(property(name)));
+				Object value = properties.get(property(name));
+				if (value == null && type == boolean.class)
+					return false;
+				return value;
+			}
+			if (name.startsWith("is") && args == null) {
+				Object value = properties.get(Character.toLowerCase(name.charAt(2)) + name.substring(3));
+				return (value == null) ? Boolean.FALSE : value;
+			}
+			throw new UnsupportedOperationException(name);
+		}
+
+		@SuppressWarnings("unchecked")
+		private Collection<Object> collection(String property) {
+			Collection<Object> values = (Collection<Object>) properties.get(property);
+			if (values == null) {
+				values = new ArrayList<Object>();
+				properties.put(property, values);
+			}
+			return values;
+		}
+
+		private static String property(String methodName) {
+			return Character.toLowerCase(methodName.charAt(3)) + methodName.substring(4);
+		}
+	}
+
+	//
+	// private implementation
+	//
+
+	private static <T> T bean(Class<T> type, Object... properties) {
+		Bean bean = new Bean();
+		for (int i = 0; i < properties.length; i += 2)
+			bean.put((String) properties[i], properties[i + 1]);
+		return proxy(type, bean);
+	}
+
+	private static InternationalString string(String value) {
+		return bean(InternationalString.class, "value", value);
+	}
+
+	private static String nameOf(Organization org) {
+		try {
+			return org.getName().getValue();
+		} catch (JAXRException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static BulkResponse response(Collection<?> collection) {
+		return bean(BulkResponse.class, "collection", collection, "status", JAXRResponse.STATUS_SUCCESS);
+	}
+
+	/** Compiles a UDDI name pattern; matching is case insensitive. */
+	private static Pattern compile(String namePattern) {
+		StringBuilder regex = new StringBuilder();
+		for (char c : namePattern.toCharArray()) {
+			if (c == '%')
+				regex.append(".*");
+			else if (c == '_')
+				regex.append('.');
+			else
+				regex.append(Pattern.quote(String.valueOf(c)));
+		}
+		return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	}
+
+	private void roundTrip() {
+		long nanos = rttNanos;
+		if (nanos > 0)
+			LockSupport.parkNanos(nanos);
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(InMemoryUDDIRegistry.class.getClassLoader(), new Class<?>[] { type },
+				handler));
+	}
+
+}
@@ -3,9 +3,17 @@ package pt.ulisboa.tecnico.sdis.ws.uddi;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -124,4 +132,141 @@ public class UDDINamingIT extends BaseIT {
 		assertFalse(records.contains(record3));
 	}
 
+	@Test
+	public void testCachedLookup() throws Exception {
+		uddiNaming.enableCache(100, 60000, 1000);
+
+		// not found result is cached
+		assertNull(uddiNaming.lookup(TEST_NAME));
+		assertNull(uddiNaming.lookup(TEST_NAME));
+		assertEquals(1, uddiNaming.getCacheHitCount());
+
+		// publish invalidates cached not found result
+		uddiNaming.rebind(TEST_NAME, TEST_URL);
+		assertEquals(TEST_URL, uddiNaming.lookup(TEST_NAME));
+		assertEquals(TEST_URL, uddiNaming.lookup(TEST_NAME));
+		assertEquals(2, uddiNaming.getCacheHitCount());
+
+		// unbind invalidates cached record
+		uddiNaming.unbind(TEST_NAME);
+		assertNull(uddiNaming.lookup(TEST_NAME));
+	}
+
+	@Test
+	public void testCacheRefreshAhead() throws Exception {
+		uddiNaming.rebind(TEST_NAME, TEST_URL);
+		uddiNaming.enableCache(100, 2000, 0, 1500);
+		try {
+			assertEquals(TEST_URL, uddiNaming.lookup(TEST_NAME));
+
+			// looked up entries are refreshed before they expire
+			for (int i = 0; i < 6; i++) {
+				assertEquals(TEST_URL, uddiNaming.lookup(TEST_NAME));
+				Thread.sleep(500);
+			}
+			assertEquals(1, uddiNaming.getCacheMissCount());
+		} finally {
+			uddiNaming.disableCache();
+			uddiNaming.unbind(TEST_NAME);
+		}
+	}
+
+	@Test
+	public void testListRecordsBulk() throws Exception {
+		uddiNaming.rebind(TEST_NAME + "A", TEST_URL);
+		uddiNaming.rebind(TEST_NAME + "B", TEST_URL);
+		try {
+			// one inquiry for both names, each record returned once
+			Collection<UDDIRecord> records = uddiNaming
+					.listRecords(Arrays.asList(TEST_NAME + "A", TEST_NAME + "B", TEST_NAME_WILDCARD));
+			assertEquals(2, records.size());
+			assertTrue(records.contains(new UDDIRecord(TEST_NAME + "A", TEST_URL)));
+
+			assertEquals(2, uddiNaming.listRecordsByPrefix(TEST_NAME).size());
+		} finally {
+			uddiNaming.unbind(TEST_NAME + "A");
+			uddiNaming.unbind(TEST_NAME + "B");
+		}
+	}
+
+	@Test
+	public void testIterateRecords() throws Exception {
+		uddiNaming.rebind(TEST_NAME + "A", TEST_URL);
+		uddiNaming.rebind(TEST_NAME + "B", TEST_URL);
+		try {
+			List<UDDIRecord> records = new ArrayList<UDDIRecord>();
+			try (UDDIRecordIterator iterator = uddiNaming.iterateRecords(TEST_NAME_WILDCARD)) {
+				while (iterator.hasNext())
+					records.add(iterator.next());
+			}
+			assertEquals(2, records.size());
+			assertTrue(records.contains(new UDDIRecord(TEST_NAME + "B", TEST_URL)));
+
+			// closed before the last record
+			try (UDDIRecordIterator iterator = uddiNaming.iterateRecords(TEST_NAME_WILDCARD)) {
+				assertNotNull(iterator.next());
+			}
+		} finally {
+			uddiNaming.unbind(TEST_NAME + "A");
+			uddiNaming.unbind(TEST_NAME + "B");
+		}
+	}
+
+	@Test
+	public void testConnectionPool() throws Exception {
+		uddiNaming.enableConnectionPool(2, 60000, 10000);
+		uddiNaming.rebind(TEST_NAME, TEST_URL);
+		assertEquals(1, uddiNaming.getIdleConnectionCount());
+
+		// concurrent lookups share the pooled connections
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return uddiNaming.lookup(TEST_NAME);
+					}
+				}));
+			}
+			for (Future<String> result : results)
+				assertEquals(TEST_URL, result.get());
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(uddiNaming.getIdleConnectionCount() <= 2);
+
+		uddiNaming.unbind(TEST_NAME);
+		uddiNaming.disableConnectionPool();
+		assertEquals(0, uddiNaming.getIdleConnectionCount());
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		JmxUDDINamingMetrics metrics = new JmxUDDINamingMetrics("UDDINamingIT");
+		try {
+			uddiNaming.setMetrics(metrics);
+			uddiNaming.enableCache(100, 60000, 0);
+
+			uddiNaming.rebind(TEST_NAME, TEST_URL);
+			assertEquals(TEST_URL, uddiNaming.lookup(TEST_NAME));
+			assertEquals(TEST_URL, uddiNaming.lookup(TEST_NAME));
+			uddiNaming.unbind(TEST_NAME);
+
+			JmxUDDINamingMetrics.OperationStatsMXBean lookup = metrics.getOperationStats("lookupRecord");
+			assertEquals(2, lookup.getCount());
+			assertEquals(0, lookup.getErrorCount());
+			assertEquals(1, lookup.getCacheHitCount());
+			assertEquals(1, lookup.getCacheMissCount());
+			assertTrue(lookup.getLatencyP99Millis() >= lookup.getLatencyP50Millis());
+			assertEquals(1, metrics.getOperationStats("rebind").getCount());
+			assertTrue(metrics.getConnectionStats().getConnectionCount() > 0);
+		} finally {
+			uddiNaming.setMetrics(null);
+			uddiNaming.disableCache();
+			metrics.close();
+		}
+	}
+
 }
@@ -0,0 +1,126 @@
+package pt.ulisboa.tecnico.sdis.ws.uddi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test suite of the query cache, with a loader in place of the UDDI server.
+ */
+public class UDDIRecordCacheIT {
+
+	// static members
+	static final String TEST_NAME = "TestWebServiceName";
+	static final String TEST_URL = "http://host:port/my-ws/endpoint";
+
+	static final int THREADS = 8;
+
+	// tests
+
+	@Test
+	public void testConcurrentMissesAfterInvalidation() throws Exception {
+		final UDDIRecordCache cache = new UDDIRecordCache(100, 60000, 1000);
+		final List<UDDIRecord> records = Collections.singletonList(new UDDIRecord(TEST_NAME, TEST_URL));
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger queries = new AtomicInteger();
+		final UDDIRecordCache.Loader loader = new UDDIRecordCache.Loader() {
+			@Override
+			public List<UDDIRecord> load(String orgName) throws Exception {
+				queries.incrementAndGet();
+				release.await(10, TimeUnit.SECONDS);
+				return records;
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+		try {
+			Callable<List<UDDIRecord>> miss = new Callable<List<UDDIRecord>>() {
+				@Override
+				public List<UDDIRecord> call() throws Exception {
+					return cache.load(TEST_NAME, loader);
+				}
+			};
+			// a query is in progress when the name is rebound
+			Future<List<UDDIRecord>> stale = executor.submit(miss);
+			while (queries.get() == 0)
+				Thread.sleep(1);
+			cache.invalidate(TEST_NAME);
+
+			// the misses that follow are served by a single new query
+			List<Future<List<UDDIRecord>>> futures = new ArrayList<Future<List<UDDIRecord>>>();
+			for (int i = 0; i < THREADS; i++)
+				futures.add(executor.submit(miss));
+			Thread.sleep(200);
+			release.countDown();
+
+			assertEquals(records, stale.get());
+			for (Future<List<UDDIRecord>> future : futures)
+				assertEquals(records, future.get());
+			assertEquals(2, queries.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testInvalidatePattern() throws Exception {
+		UDDIRecordCache cache = new UDDIRecordCache(100, 60000, 1000);
+		List<UDDIRecord> records = Collections.singletonList(new UDDIRecord(TEST_NAME, TEST_URL));
+		cache.put(TEST_NAME, records, cache.stamp());
+		cache.put("Other_Name", records, cache.stamp());
+		cache.put("Other%", records, cache.stamp());
+
+		// a bound name with '_' invalidates only the entries that may include it
+		cache.invalidate("Other_Name");
+		assertEquals(records, cache.get(TEST_NAME));
+		assertNull(cache.get("Other_Name"));
+		assertNull(cache.get("Other%"));
+
+		// an unbind pattern invalidates the names it matches
+		cache.put("Other_Name", records, cache.stamp());
+		cache.invalidate("Test%");
+		assertNull(cache.get(TEST_NAME));
+		assertEquals(records, cache.get("Other_Name"));
+	}
+
+	@Test
+	public void testLoaderThrowable() throws Exception {
+		UDDIRecordCache cache = new UDDIRecordCache(100, 60000, 1000);
+		final Throwable failure = new Throwable("not an exception");
+		UDDIRecordCache.Loader loader = new UDDIRecordCache.Loader() {
+			@Override
+			public List<UDDIRecord> load(String orgName) throws Exception {
+				// thrown without being declared, as some libraries do
+				UDDIRecordCacheIT.<RuntimeException> sneakyThrow(failure);
+				return null;
+			}
+		};
+		try {
+			cache.load(TEST_NAME, loader);
+			fail();
+		} catch (ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends Throwable> void sneakyThrow(Throwable t) throws T {
+		throw (T) t;
+	}
+
+}
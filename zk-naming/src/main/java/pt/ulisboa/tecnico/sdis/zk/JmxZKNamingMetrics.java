@@ -0,0 +1,371 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * Metrics published as MXBeans in the platform MBean server, where they can be
+ * read with JConsole or any JMX client. The beans are named
+ * "pt.ulisboa.tecnico.sdis.zk:type=ZKNaming,name=NAME" for the connections,
+ * and "pt.ulisboa.tecnico.sdis.zk:type=ZKNaming,name=NAME,operation=OP" for
+ * each operation, registered when the operation is first reported.<br>
+ * <br>
+ * Latencies are reported in milliseconds, with percentiles computed over all
+ * operations since creation or since the last reset. Errors are counted by
+ * cause: the ZooKeeper error code, the message of a ZKNamingException raised
+ * by the library, or the exception class.
+ */
+public class JmxZKNamingMetrics implements ZKNamingMetrics, AutoCloseable {
+
+	/* Domain of the bean names */
+	static final String DOMAIN = "pt.ulisboa.tecnico.sdis.zk";
+
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	/** Connection statistics of a ZKNaming client. */
+	public interface ConnectionStatsMXBean {
+
+		/** @return Number of times a session connected */
+		long getConnectionCount();
+
+		/** @return Mean time to connect, in milliseconds */
+		double getConnectMeanMillis();
+
+		/** @return Median time to connect, in milliseconds */
+		double getConnectP50Millis();
+
+		/** @return 99th percentile of the time to connect, in milliseconds */
+		double getConnectP99Millis();
+
+		/** @return 99.9th percentile of the time to connect, in milliseconds */
+		double getConnectP999Millis();
+
+		/** Discards the statistics. */
+		void reset();
+	}
+
+	/** Statistics of one ZKNaming operation. */
+	public interface OperationStatsMXBean {
+
+		/** @return Number of completed operations */
+		long getCount();
+
+		/** @return Number of failed operations */
+		long getErrorCount();
+
+		/** @return Number of failed operations by cause */
+		Map<String, Long> getErrorsByCause();
+
+		/** @return Mean latency, in milliseconds */
+		double getLatencyMeanMillis();
+
+		/** @return Median latency, in milliseconds */
+		double getLatencyP50Millis();
+
+		/** @return 99th percentile latency, in milliseconds */
+		double getLatencyP99Millis();
+
+		/** @return 99.9th percentile latency, in milliseconds */
+		double getLatencyP999Millis();
+
+		/** @return Maximum latency, in milliseconds */
+		double getLatencyMaxMillis();
+
+		/** @return Mean time spent with the session, in milliseconds */
+		double getConnectMeanMillis();
+
+		/** @return Mean time spent in requests, in milliseconds */
+		double getRequestMeanMillis();
+
+		/** @return Number of results served from the cache */
+		long getCacheHitCount();
+
+		/** @return Number of results not found in the cache */
+		long getCacheMissCount();
+
+		/** @return Fraction of cache accesses that were hits, or 0 */
+		double getCacheHitRatio();
+
+		/** Discards the statistics. */
+		void reset();
+	}
+
+	private static class ConnectionStats implements ConnectionStatsMXBean {
+
+		final LatencyHistogram connect = new LatencyHistogram();
+
+		@Override
+		public long getConnectionCount() {
+			return connect.getCount();
+		}
+
+		@Override
+		public double getConnectMeanMillis() {
+			return connect.getMean() / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getConnectP50Millis() {
+			return connect.getPercentile(0.5) / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getConnectP99Millis() {
+			return connect.getPercentile(0.99) / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getConnectP999Millis() {
+			return connect.getPercentile(0.999) / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public void reset() {
+			connect.reset();
+		}
+	}
+
+	private static class OperationStats implements OperationStatsMXBean {
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder connectNanos = new LongAdder();
+		final LongAdder requestNanos = new LongAdder();
+		final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+		final LongAdder cacheHits = new LongAdder();
+		final LongAdder cacheMisses = new LongAdder();
+
+		void record(long connect, long request, Throwable error) {
+			latency.record(connect + request);
+			connectNanos.add(connect);
+			requestNanos.add(request);
+			if (error != null)
+				errors.computeIfAbsent(causeOf(error), k -> new LongAdder()).increment();
+		}
+
+		@Override
+		public long getCount() {
+			return latency.getCount();
+		}
+
+		@Override
+		public long getErrorCount() {
+			long n = 0;
+			for (LongAdder adder : errors.values())
+				n += adder.sum();
+			return n;
+		}
+
+		@Override
+		public Map<String, Long> getErrorsByCause() {
+			Map<String, Long> map = new TreeMap<String, Long>();
+			errors.forEach((cause, adder) -> map.put(cause, adder.sum()));
+			return map;
+		}
+
+		@Override
+		public double getLatencyMeanMillis() {
+			return latency.getMean() / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getLatencyP50Millis() {
+			return latency.getPercentile(0.5) / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getLatencyP99Millis() {
+			return latency.getPercentile(0.99) / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getLatencyP999Millis() {
+			return latency.getPercentile(0.999) / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getLatencyMaxMillis() {
+			return latency.getMax() / NANOS_PER_MILLI;
+		}
+
+		@Override
+		public double getConnectMeanMillis() {
+			return mean(connectNanos);
+		}
+
+		@Override
+		public double getRequestMeanMillis() {
+			return mean(requestNanos);
+		}
+
+		@Override
+		public long getCacheHitCount() {
+			return cacheHits.sum();
+		}
+
+		@Override
+		public long getCacheMissCount() {
+			return cacheMisses.sum();
+		}
+
+		@Override
+		public double getCacheHitRatio() {
+			long hits = cacheHits.sum();
+			long total = hits + cacheMisses.sum();
+			return (total == 0) ? 0 : (double) hits / total;
+		}
+
+		@Override
+		public void reset() {
+			latency.reset();
+			connectNanos.reset();
+			requestNanos.reset();
+			errors.clear();
+			cacheHits.reset();
+			cacheMisses.reset();
+		}
+
+		private double mean(LongAdder nanos) {
+			long n = latency.getCount();
+			return (n == 0) ? 0 : nanos.sum() / NANOS_PER_MILLI / n;
+		}
+	}
+
+	private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+	private final String name;
+
+	private final ConnectionStats connections = new ConnectionStats();
+
+	private final ConcurrentMap<String, OperationStats> operations = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates the metrics and registers the connection statistics bean.
+	 *
+	 * @param name name that identifies the client in the bean names
+	 * @throws ZKNamingException if the bean cannot be registered, for
+	 *                           instance if the name is already in use
+	 */
+	public JmxZKNamingMetrics(String name) throws ZKNamingException {
+		if (name == null)
+			throw new IllegalArgumentException("Name cannot be null!");
+		this.name = name;
+		try {
+			server.registerMBean(connections, objectName(null));
+		} catch (JMException e) {
+			throw new ZKNamingException("metrics", e);
+		}
+	}
+
+	/**
+	 *
+	 * @return Name that identifies the client in the bean names
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 *
+	 * @return Connection statistics
+	 */
+	public ConnectionStatsMXBean getConnectionStats() {
+		return connections;
+	}
+
+	/**
+	 *
+	 * @param operation operation name, e.g. "lookup"
+	 * @return Statistics of the operation, or null if it was not reported
+	 */
+	public OperationStatsMXBean getOperationStats(String operation) {
+		return operations.get(operation);
+	}
+
+	@Override
+	public void connectionEstablished(long nanos) {
+		connections.connect.record(nanos);
+	}
+
+	@Override
+	public void operationCompleted(String operation, long connectNanos, long requestNanos, Throwable error) {
+		stats(operation).record(connectNanos, requestNanos, error);
+	}
+
+	@Override
+	public void cacheAccessed(String operation, boolean hit) {
+		OperationStats stats = stats(operation);
+		if (hit)
+			stats.cacheHits.increment();
+		else
+			stats.cacheMisses.increment();
+	}
+
+	/**
+	 * Unregisters the beans. Measurements reported afterwards are still
+	 * aggregated, but are not published.
+	 */
+	@Override
+	public void close() {
+		unregister(null);
+		for (String operation : operations.keySet())
+			unregister(operation);
+	}
+
+	//
+	// private implementation
+	//
+
+	private OperationStats stats(String operation) {
+		OperationStats stats = operations.get(operation);
+		if (stats != null)
+			return stats;
+		return operations.computeIfAbsent(operation, op -> {
+			OperationStats created = new OperationStats();
+			try {
+				server.registerMBean(created, objectName(op));
+			} catch (JMException e) {
+				// statistics are still available with getOperationStats
+			}
+			return created;
+		});
+	}
+
+	private void unregister(String operation) {
+		try {
+			server.unregisterMBean(objectName(operation));
+		} catch (JMException e) {
+			// not registered
+		}
+	}
+
+	private ObjectName objectName(String operation) throws JMException {
+		String objectName = DOMAIN + ":type=ZKNaming,name=" + ObjectName.quote(name);
+		if (operation != null)
+			objectName += ",operation=" + ObjectName.quote(operation);
+		return new ObjectName(objectName);
+	}
+
+	/** Returns the cause of a failure, for counting errors. */
+	static String causeOf(Throwable error) {
+		Throwable cause = error;
+		while (cause.getCause() != null && cause.getCause() != cause)
+			cause = cause.getCause();
+
+		if (cause instanceof KeeperException)
+			return ((KeeperException) cause).code().name();
+		if (cause instanceof ZKNamingException && cause.getMessage() != null)
+			return cause.getMessage();
+		return cause.getClass().getSimpleName();
+	}
+
+}
@@ -0,0 +1,110 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies, in nanoseconds. Values are counted in
+ * log-linear buckets: each power of two is divided in 16 buckets, so that
+ * percentiles are reported with a relative error below 7% and the histogram
+ * has a fixed size, whatever the range of values.
+ */
+class LatencyHistogram {
+
+	/* Sub-buckets per power of two: 2^SUB_BITS */
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	/* Enough buckets for any non-negative long value */
+	private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/** Records a value. Negative values are recorded as zero. */
+	void record(long nanos) {
+		long value = Math.max(nanos, 0);
+		buckets.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	long getCount() {
+		return count.sum();
+	}
+
+	/** Returns the mean value, or zero if there are no values. */
+	double getMean() {
+		long n = count.sum();
+		return (n == 0) ? 0 : (double) sum.sum() / n;
+	}
+
+	long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the value below which the specified fraction of the values
+	 * fall, or zero if there are no values. The upper bound of the bucket is
+	 * returned, so the percentile is never underestimated.
+	 *
+	 * @param quantile fraction between 0 and 1, e.g. 0.99
+	 */
+	long getPercentile(double quantile) {
+		long[] snapshot = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(upperBoundOf(i), getMax());
+		}
+		return getMax();
+	}
+
+	/** Discards all values. Values recorded concurrently may be kept. */
+	void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			buckets.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	//
+	// private implementation
+	//
+
+	private static int bucketOf(long value) {
+		if (value < SUB_COUNT)
+			return (int) value;
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BITS;
+		// the leading bit selects the power of two, the next bits the sub-bucket
+		return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_COUNT)
+			return bucket;
+		int shift = bucket / SUB_COUNT - 1;
+		long lower = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+}
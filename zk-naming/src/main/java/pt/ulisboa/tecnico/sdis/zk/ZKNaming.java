@@ -1,47 +1,193 @@
 package pt.ulisboa.tecnico.sdis.zk;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.Watcher.WatcherType;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.client.ConnectStringParser;
 import org.apache.zookeeper.data.Stat;
 
 /**
  * This class defines simple methods to bind service names to URI addresses:
- * list, lookup, unbind, bind, rebind.
+ * list, lookup, unbind, bind, rebind.<br>
+ * <br>
+ * By default, each operation opens its own ZooKeeper session and closes it
+ * before returning. If the persistent session option is enabled, all
+ * operations share one long-lived session, which is opened on first use and
+ * released with {@link #close()}.<br>
+ * <br>
+ * The latency, errors and cache accesses of the operations can be measured by
+ * setting a {@link ZKNamingMetrics} object, such as
+ * {@link JmxZKNamingMetrics}.<br>
+ * <br>
+ * Operations can be given a deadline, after which they fail even if the
+ * request is still pending. Lookups can also be hedged: if no reply arrives
+ * after a delay, the lookup is sent again to another member of the ensemble,
+ * and the first reply is used.<br>
+ * <br>
+ * Clients with a session timeout or a retry policy for transient errors are
+ * created with {@link #builder(String)}.
  * 
  * @author Rui Claro
  *
  */
-public class ZKNaming {
+public class ZKNaming implements AutoCloseable {
 
-	/* ZooKeeper object to access zk-Server */
-	private ZooKeeper zoo;
+	/* Default session timeout in milliseconds */
+	private static final int DEFAULT_SESSION_TIMEOUT = 5000;
 
-	/* Used to stop main process until client connects to ZooKeeper ensemble */
-	private final CountDownLatch connectedSignal = new CountDownLatch(1);
+	/* Default maximum time to wait for a connection, in milliseconds */
+	private static final long DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	/* Fails the operations that wait for too long, shared by all clients */
+	private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread thread = new Thread(r, "ZKNaming-timeouts");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		TIMEOUTS.setRemoveOnCancelPolicy(true);
+	}
+
+	/* Batch attempts, when the tree is changed concurrently by other clients */
+	private static final int MAX_BATCH_ATTEMPTS = 3;
+
+	/* Orders paths with parents before children */
+	private static final Comparator<String> BY_DEPTH = Comparator.comparingInt(ZKNaming::depth)
+			.thenComparing(Comparator.naturalOrder());
 
 	/* ZooKeeper URL in format host:port */
 	private String zkUrl;
 
+	/*
+	 * Option to keep one session open across operations - true - share one
+	 * session until close, false - open and close a session per operation.
+	 */
+	private final boolean persistentFlag;
+
+	/* Session timeout in milliseconds */
+	private final int sessionTimeout;
+
+	/* Retries the idempotent operations that fail with transient errors */
+	private final ZKRetryPolicy retryPolicy;
+
+	/* Number of attempts made after a transient error */
+	private final AtomicLong retries = new AtomicLong();
+
+	/* Shared session, used only when the persistent option is enabled */
+	private volatile Session session;
+
+	/* Guards the creation of the shared session, without pinning virtual threads */
+	private final ReentrantLock sessionLock = new ReentrantLock();
+
+	/* Maximum time to wait for a connection, in milliseconds */
+	private volatile long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	/* Deadline of each operation in milliseconds, 0 for none */
+	private volatile long operationTimeout = 0;
+
+	/* Delay before a lookup is sent again to another member, 0 when hedging is disabled */
+	private volatile long hedgeDelay = 0;
+
+	/* Ensemble members that hedged lookups are sent to, guarded by sessionLock */
+	private List<HedgeTarget> hedgeTargets = Collections.emptyList();
+
+	/* Number of lookups sent again to another member */
+	private final AtomicLong hedgedLookups = new AtomicLong();
+
+	/* Has the instance been closed? */
+	private volatile boolean closed = false;
+
+	/* Watch-driven record cache, null when disabled */
+	private volatile ZKRecordCache cache;
+
+	/* Ephemeral bindings of this client, registered again if the session expires */
+	private final Queue<EphemeralBinding> ephemerals = new ConcurrentLinkedQueue<EphemeralBinding>();
+
+	/* Receives the measurements of the operations */
+	private volatile ZKNamingMetrics metrics = ZKNamingMetrics.NONE;
+
+	/* Lookups in progress, shared by the concurrent lookups of each path */
+	private final ConcurrentMap<String, Flight<ZKRecord>> lookupFlights = new ConcurrentHashMap<>();
+
+	/* Listings in progress, shared by the concurrent listings of each path */
+	private final ConcurrentMap<String, Flight<Collection<ZKRecord>>> listFlights = new ConcurrentHashMap<>();
+
+	/* Number of changes made by this client, so that reads are not shared across them */
+	private final AtomicLong writes = new AtomicLong();
+
+	/*
+	 * Runs the blocking session closes and renewals, off the event thread and
+	 * off the common pool; idle threads end, so it is never shut down
+	 */
+	private final ExecutorService blockingCalls = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "ZKNaming-sessions");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	//
 	// Constructors
 	//
 
 	/**
+	 * Creates a client that opens a new session for each operation.
+	 * 
 	 * @param zkUrl ZooKeeper url in format host:port
 	 */
 	public ZKNaming(String zkUrl) {
-		this.zkUrl = zkUrl;
+		this(zkUrl, false);
 	}
 
 	/**
@@ -54,288 +200,2491 @@ public class ZKNaming {
 	}
 
 	/**
-	 * Connects to the ZooKeeper ensemble
+	 * Creates a client with the specified persistent session option.
 	 * 
-	 * @throws IOException
-	 * @throws InterruptedException
+	 * @param zkUrl             ZooKeeper url in format host:port
+	 * @param persistentSession true to share one session across all operations
+	 *                          until {@link #close()} is called, false to open
+	 *                          and close a session per operation
 	 */
-	private void connect() throws IOException, InterruptedException {
+	public ZKNaming(String zkUrl, boolean persistentSession) {
+		this.zkUrl = zkUrl;
+		this.persistentFlag = persistentSession;
+		this.sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+		this.retryPolicy = ZKRetryPolicy.NONE;
+	}
 
-		// Create object to interact with ZooKeeper ensemble
-		// receives ZK url, session timeout and Watcher object
-		zoo = new ZooKeeper(this.zkUrl, 5000, new Watcher() {
-			public void process(WatchedEvent we) {
-				if (we.getState() == KeeperState.SyncConnected) {
-					connectedSignal.countDown();
-				}
-			}
-		});
+	/**
+	 * 
+	 * @param host              ZooKeeper host
+	 * @param port              ZooKeeper port
+	 * @param persistentSession true to share one session across all operations
+	 *                          until {@link #close()} is called
+	 */
+	public ZKNaming(String host, String port, boolean persistentSession) {
+		this(new String(host + ":" + port), persistentSession);
+	}
 
-		// CountDownLatch is used to stop (wait) the main process until the client
-		// connects with the ZooKeeper ensemble.
-		connectedSignal.await();
+	private ZKNaming(Builder builder) {
+		this.zkUrl = builder.zkUrl;
+		this.persistentFlag = builder.persistentSession;
+		this.sessionTimeout = builder.sessionTimeout;
+		this.retryPolicy = builder.retryPolicy;
+		this.connectTimeout = builder.connectTimeout;
+		this.operationTimeout = builder.operationTimeout;
 	}
 
 	/**
-	 * Closes the connection with the ZooKeeper ensemble
+	 * Returns a builder of clients of the specified ensemble, e.g.
+	 * {@code ZKNaming.builder("localhost:2181").persistentSession(true).retryPolicy(ZKRetryPolicy.exponentialBackoff(50, 1000)).build()}.
 	 * 
-	 * @throws ZKNamingException
+	 * @param zkUrl ZooKeeper url in format host:port
+	 * @return Builder with the default options
 	 */
-	private void close() throws ZKNamingException {
-		try {
-			zoo.close();
-		} catch (Exception e) {
-			throw new ZKNamingException("close", e);
+	public static Builder builder(String zkUrl) {
+		return new Builder(zkUrl);
+	}
+
+	/**
+	 * Builder of ZKNaming clients. The session timeout and the retry policy
+	 * are fixed when the client is built; the other options can also be
+	 * changed later with the setters of the client.
+	 */
+	public static class Builder {
+
+		private final String zkUrl;
+		private boolean persistentSession = false;
+		private int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+		private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+		private long operationTimeout = 0;
+		private ZKRetryPolicy retryPolicy = ZKRetryPolicy.NONE;
+
+		private Builder(String zkUrl) {
+			this.zkUrl = zkUrl;
+		}
+
+		/**
+		 * @param persistentSession true to share one session across all
+		 *                          operations, false to open and close a
+		 *                          session per operation (default)
+		 * @return this builder
+		 */
+		public Builder persistentSession(boolean persistentSession) {
+			this.persistentSession = persistentSession;
+			return this;
+		}
+
+		/**
+		 * Sets the time after which the ensemble expires a session that does
+		 * not respond, deleting its ephemeral bindings. The ensemble bounds it
+		 * between 2 and 20 ticks. The default is 5 seconds.
+		 * 
+		 * @param sessionTimeoutMillis session timeout, in milliseconds
+		 * @return this builder
+		 */
+		public Builder sessionTimeout(int sessionTimeoutMillis) {
+			if (sessionTimeoutMillis <= 0)
+				throw new IllegalArgumentException("Session timeout must be positive!");
+			this.sessionTimeout = sessionTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * @param connectTimeoutMillis connect timeout, in milliseconds
+		 * @return this builder
+		 * @see ZKNaming#setConnectTimeout(long)
+		 */
+		public Builder connectTimeout(long connectTimeoutMillis) {
+			if (connectTimeoutMillis <= 0)
+				throw new IllegalArgumentException("Connect timeout must be positive!");
+			this.connectTimeout = connectTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * @param operationTimeoutMillis deadline of each operation, in
+		 *                               milliseconds, or 0 for none (default)
+		 * @return this builder
+		 * @see ZKNaming#setOperationTimeout(long)
+		 */
+		public Builder operationTimeout(long operationTimeoutMillis) {
+			if (operationTimeoutMillis < 0)
+				throw new IllegalArgumentException("Operation timeout cannot be negative!");
+			this.operationTimeout = operationTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * Sets the policy to retry the idempotent operations - lookup,
+		 * listRecords and rebind - that fail with a transient error. Other
+		 * operations are not retried, because a request that was applied
+		 * before the connection was lost would fail when sent again. Retries
+		 * stop at the operation deadline. The default is not to retry.
+		 * 
+		 * @param retryPolicy retry policy
+		 * @return this builder
+		 */
+		public Builder retryPolicy(ZKRetryPolicy retryPolicy) {
+			if (retryPolicy == null)
+				throw new IllegalArgumentException("Retry policy cannot be null!");
+			this.retryPolicy = retryPolicy;
+			return this;
+		}
+
+		/**
+		 * 
+		 * @return New client with the options of this builder
+		 */
+		public ZKNaming build() {
+			return new ZKNaming(this);
 		}
 	}
 
+	//
+	// Session management
+	//
+
 	/**
-	 * Binds the specified record containing a path and a URI pair
-	 *
-	 * @param record record to register
-	 * @throws ZKNamingException If bind fails
+	 * A ZooKeeper client session. The ZooKeeper client reconnects by itself
+	 * after a Disconnected event, keeping the same session, so operations only
+	 * wait for the connection to come back. An Expired session cannot be
+	 * recovered and is replaced on the next operation.<br>
+	 * <br>
+	 * Callers wait on a future of the connection, which parks the thread
+	 * instead of blocking inside a monitor, so waiting virtual threads release
+	 * their carrier. The wait is bounded by the connect timeout, counted from
+	 * the moment the client started connecting: once the ensemble has been
+	 * unreachable for longer, callers fail at once.
 	 */
+	private class Session implements Watcher {
 
-	public void bind(ZKRecord record) throws ZKNamingException {
+		/* ZooKeeper object to access zk-Server */
+		private final Client zoo;
 
-		Stat stat;
-		try {
-			connect();
-			if (record == null)
-				throw new IllegalArgumentException("ZKRecord cannot be null!");
+		/* Servers that the client connects to */
+		private final String connectString;
 
-			stat = zoo.exists(record.getPath(), true);
-			// If no zNode exists on specified path, create zNode and register URI
-			if (stat == null)
-				zoo.create(record.getPath(), record.getURI().getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
-						CreateMode.PERSISTENT);
+		/*
+		 * Is this the session of the operations - true - or a session pinned to
+		 * one member for hedged lookups - false?
+		 */
+		private final boolean primary;
 
-			else
-				throw new ZKNamingException("zNode already exists. Use rebind.");
+		/* Completed when the client is connected, replaced when it disconnects */
+		private volatile CompletableFuture<Void> connected = new CompletableFuture<>();
 
-		} catch (KeeperException e) {
-			if (e.code().equals(KeeperException.Code.NONODE)) {
+		/* Time when the client started connecting, 0 when connected */
+		private volatile long connectingSince = System.nanoTime();
 
-				try {
+		Session() throws IOException {
+			this(zkUrl, true);
+		}
 
-					String[] parts = record.getPath().split("/");
-					String newpath = "";
-					for (String part : parts) {
-						if (part.equals(""))
-							continue;
-						newpath = newpath + "/" + part;
-						if (zoo.exists(newpath, true) == null)
-							zoo.create(newpath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-					}
-					rebind(record);
+		Session(String connectString, boolean primary) throws IOException {
+			this.connectString = connectString;
+			this.primary = primary;
+			// Create object to interact with ZooKeeper ensemble
+			// receives ZK url, session timeout and Watcher object
+			zoo = new Client(connectString, sessionTimeout, this);
+		}
 
-				} catch (Exception ex) {
-					throw new ZKNamingException("bind", ex);
+		@Override
+		public void process(WatchedEvent we) {
+			if (we.getType() != EventType.None) {
+				if (primary)
+					nodeChanged(we);
+				return;
+			}
+
+			if (we.getState() == KeeperState.SyncConnected) {
+				long since = connectingSince;
+				if (since != 0) {
+					connectingSince = 0;
+					metrics.connectionEstablished(System.nanoTime() - since);
 				}
+				connected.complete(null);
+				// ephemeral bindings that failed to register are tried again
+				if (primary && !ephemerals.isEmpty())
+					registerEphemerals(this);
+			} else if (we.getState() == KeeperState.Disconnected) {
+				// client is reconnecting, make new callers wait for it
+				connectingSince = System.nanoTime();
+				if (connected.isDone())
+					connected = new CompletableFuture<>();
+				// changes may be missed while disconnected
+				if (primary)
+					clearCache();
+			} else if (we.getState() == KeeperState.Expired || we.getState() == KeeperState.Closed) {
+				// release waiting callers, the operation will fail and the
+				// session will be replaced
+				connected.complete(null);
+				if (!primary)
+					return;
+				// watches are lost with the session
+				clearCache();
+				// ephemeral bindings must not wait for the next operation
+				if (we.getState() == KeeperState.Expired && !ephemerals.isEmpty())
+					CompletableFuture.runAsync(this::renewQuietly, blockingCalls);
+			}
+		}
+
+		/** Checks if the session can still be used. */
+		boolean isAlive() {
+			return zoo.getState().isAlive();
+		}
+
+		/** Checks if the client is connected, or the session has ended. */
+		boolean isConnected() {
+			return connected.isDone();
+		}
+
+		/**
+		 * Waits until the client is connected to the ensemble, or until the
+		 * deadline of the operation, whichever comes first.
+		 */
+		void awaitConnected(long timeoutMillis, Deadline deadline) throws InterruptedException, TimeoutException {
+			CompletableFuture<Void> f = connected;
+			if (f.isDone())
+				return;
+			long remaining = remainingMillis(timeoutMillis);
+			if (remaining <= 0)
+				throw connectTimeout(timeoutMillis);
+			long left = deadline.remainingMillis();
+			if (left <= 0)
+				throw deadline.exceeded();
+			try {
+				f.get(Math.min(remaining, left), TimeUnit.MILLISECONDS);
+			} catch (ExecutionException e) {
+				// only completed normally
+			} catch (TimeoutException e) {
+				throw (left < remaining) ? deadline.exceeded() : connectTimeout(timeoutMillis);
+			}
+		}
 
+		/**
+		 * Returns a future completed when the client is connected to the
+		 * ensemble, or failed with TimeoutException, without blocking.
+		 */
+		CompletableFuture<Void> whenConnected(long timeoutMillis) {
+			CompletableFuture<Void> f = connected;
+			if (f.isDone())
+				return f;
+			CompletableFuture<Void> result = new CompletableFuture<>();
+			long remaining = remainingMillis(timeoutMillis);
+			if (remaining <= 0) {
+				result.completeExceptionally(connectTimeout(timeoutMillis));
+				return result;
 			}
+			ScheduledFuture<?> timeout = TIMEOUTS.schedule(
+					() -> result.completeExceptionally(connectTimeout(timeoutMillis)), remaining,
+					TimeUnit.MILLISECONDS);
+			f.whenComplete((v, e) -> {
+				timeout.cancel(false);
+				result.complete(null);
+			});
+			return result;
+		}
 
-		} catch (Exception e) {
-			throw new ZKNamingException("bind", e);
-		} finally {
-			close();
+		/** Returns the time left to connect, since the client started connecting. */
+		private long remainingMillis(long timeoutMillis) {
+			long since = connectingSince;
+			if (since == 0)
+				return timeoutMillis;
+			return timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+		}
+
+		private TimeoutException connectTimeout(long timeoutMillis) {
+			return new TimeoutException("Not connected to " + connectString + " within " + timeoutMillis + " ms");
+		}
+
+		void close() throws InterruptedException {
+			zoo.close();
+		}
+
+		void renewQuietly() {
+			try {
+				renewSession(this);
+			} catch (Exception e) {
+				// the next operation will try again
+			}
+		}
+
+		void closeQuietly() {
+			try {
+				close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
 
 	/**
-	 * Binds the specified path with a host port pair
-	 * 
-	 * @param path Path to the zNode
-	 * @param host service host
-	 * @param port service port
-	 * @throws ZKNamingException If bind fails
+	 * ZooKeeper client that tells which server it is connected to. The public
+	 * API has no such accessor, so the address is read through
+	 * testableRemoteSocketAddress, a hook that ZooKeeper keeps for its tests.
+	 * If the hook is missing or fails, the address is unknown and hedged
+	 * lookups may go to the member the shared session is connected to.<br>
+	 * <br>
+	 * Clients are closed by their session, which handles the interruption, so
+	 * the warning about the InterruptedException of close does not apply.
 	 */
-	public void bind(String path, String host, String port) throws ZKNamingException {
-		ZKRecord rec = new ZKRecord(path, host, port);
-		bind(rec);
+	@SuppressWarnings("try")
+	private static class Client extends ZooKeeper {
+
+		Client(String connectString, int sessionTimeout, Watcher watcher) throws IOException {
+			super(connectString, sessionTimeout, watcher);
+		}
+
+		/** Returns the address of the server, or null if not connected or unknown. */
+		SocketAddress remoteAddress() {
+			try {
+				return testableRemoteSocketAddress();
+			} catch (RuntimeException | LinkageError e) {
+				return null;
+			}
+		}
 	}
 
-	/**
-	 * Binds the specified path with a URI
-	 * 
-	 * @param path Path to the zNode
-	 * @param URI  URI in the format host:port
-	 * @throws ZKNamingException If bind fails
-	 */
-	public void bind(String path, String URI) throws ZKNamingException {
-		ZKRecord rec = new ZKRecord(path, URI);
-		bind(rec);
+	/** Time limit of one operation, counted from the call. */
+	private static class Deadline {
+
+		/* Timeout in milliseconds, 0 for none */
+		final long timeoutMillis;
+
+		final long start = System.nanoTime();
+
+		Deadline(long timeoutMillis) {
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		boolean isBounded() {
+			return timeoutMillis > 0;
+		}
+
+		/** Returns the time left, or Long.MAX_VALUE if unbounded. */
+		long remainingMillis() {
+			if (!isBounded())
+				return Long.MAX_VALUE;
+			return timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		}
+
+		/** Fails if the time is up, before sending another request. */
+		void check() throws TimeoutException {
+			if (remainingMillis() <= 0)
+				throw exceeded();
+		}
+
+		TimeoutException exceeded() {
+			return new TimeoutException("Deadline of " + timeoutMillis + " ms exceeded");
+		}
 	}
 
 	/**
-	 * Rebinds the specified record. Existing record is overridden.
+	 * Connects to the ZooKeeper ensemble. With the persistent session option,
+	 * the shared session is returned, and replaced if it has expired.
 	 * 
-	 * @param record record to register
-	 * @throws ZKNamingException If rebind fails
+	 * @param deadline deadline of the operation
+	 * @return ZooKeeper client ready to use
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws TimeoutException if not connected within the connect timeout or
+	 *                          the deadline
 	 */
-	public void rebind(ZKRecord record) throws ZKNamingException {
+	private ZooKeeper connect(Deadline deadline) throws IOException, InterruptedException, TimeoutException {
+		long timeout = connectTimeout;
+		if (!persistentFlag) {
+			Session s = new Session();
+			try {
+				s.awaitConnected(timeout, deadline);
+			} catch (InterruptedException | TimeoutException e) {
+				s.closeQuietly();
+				throw e;
+			}
+			return s.zoo;
+		}
 
-		Stat stat;
+		Session s = session;
+		if (s == null || !s.isAlive())
+			s = renewSession(s);
+		s.awaitConnected(timeout, deadline);
+		// session may have expired while waiting for reconnection
+		if (!s.isAlive()) {
+			s = renewSession(s);
+			s.awaitConnected(timeout, deadline);
+		}
+		return s.zoo;
+	}
+
+	/** Replaces the shared session, unless another thread already did it. */
+	private Session renewSession(Session expired) throws IOException, InterruptedException {
+		sessionLock.lock();
 		try {
-			connect();
-			if (record == null)
-				throw new IllegalArgumentException("ZKRecord cannot be null!");
-			stat = zoo.exists(record.getPath(), true);
-			if (stat == null) {
-				bind(record);
-				return;
+			if (closed)
+				throw new IllegalStateException("ZKNaming is closed!");
+			Session s = session;
+			if (s == null || s == expired) {
+				boolean replaced = (s != null);
+				if (s != null)
+					s.close();
+				s = new Session();
+				session = s;
+				// ephemeral zNodes were deleted with the expired session
+				if (replaced)
+					reregisterEphemerals(s);
 			}
-			// Found zNode on path, overwrite data.
-			zoo.setData(record.getPath(), record.getURI().getBytes(), stat.getVersion());
-
-		} catch (Exception e) {
-			throw new ZKNamingException("rebind", e);
+			return s;
 		} finally {
-			close();
+			sessionLock.unlock();
 		}
 	}
 
 	/**
-	 * Rebinds the specified path with a URI
-	 * 
-	 * @param path Path to the zNode
-	 * @param URI  URI in the format host:port
-	 * @throws ZKNamingException If rebind fails
+	 * Returns a session for an asynchronous operation, without waiting for the
+	 * connection. Requests are sent once the client is connected.
 	 */
-	public void rebind(String path, String URI) throws ZKNamingException {
-		ZKRecord rec = new ZKRecord(path, URI);
-		rebind(rec);
+	private Session asyncSession() throws IOException, InterruptedException {
+		if (!persistentFlag)
+			return new Session();
+
+		Session s = session;
+		if (s == null || !s.isAlive())
+			s = renewSession(s);
+		return s;
 	}
 
 	/**
-	 * Rebinds the specified path with a host port pair
+	 * Releases a client obtained with connect. Only per-operation sessions
+	 * are closed.
 	 * 
-	 * @param path Path to the zNode
-	 * @param host service host
-	 * @param port service port
-	 * @throws ZKNamingException If rebind fails
+	 * @param zoo ZooKeeper client, may be null
+	 * @throws ZKNamingException
 	 */
-	public void rebind(String path, String host, String port) throws ZKNamingException {
-		ZKRecord rec = new ZKRecord(path, host, port);
-		rebind(rec);
+	private void release(ZooKeeper zoo) throws ZKNamingException {
+		if (persistentFlag || zoo == null)
+			return;
+		try {
+			zoo.close();
+		} catch (Exception e) {
+			throw new ZKNamingException("close", e);
+		}
 	}
 
 	/**
-	 * Destroys the binding for the specified record.
+	 * Checks if the persistent session option is enabled.
 	 * 
-	 * @param record record to delete
-	 * @throws ZKNamingException if unbind fails
+	 * @return is the session shared across operations?
 	 */
-	public void unbind(ZKRecord record) throws ZKNamingException {
+	public boolean isPersistentSession() {
+		return persistentFlag;
+	}
 
-		Stat stat;
-		try {
-			connect();
-			if (record == null)
-				throw new IllegalArgumentException("ZKRecord cannot be null!");
+	/**
+	 * Sets the maximum time that operations wait for a connection to the
+	 * ensemble. With the persistent session option, the time is counted from
+	 * the moment the connection was lost, so that operations fail at once
+	 * while the ensemble remains unreachable. The default is 5 seconds.
+	 * 
+	 * @param connectTimeoutMillis connect timeout, in milliseconds
+	 */
+	public void setConnectTimeout(long connectTimeoutMillis) {
+		if (connectTimeoutMillis <= 0)
+			throw new IllegalArgumentException("Connect timeout must be positive!");
+		this.connectTimeout = connectTimeoutMillis;
+	}
 
-			stat = zoo.exists(record.getPath(), true);
-			if (stat == null)
-				throw new ZKNamingException("zNode not found.");
+	/**
+	 * 
+	 * @return Maximum time to wait for a connection, in milliseconds
+	 */
+	public long getConnectTimeout() {
+		return connectTimeout;
+	}
 
-			// "-1" Guarantees that all versions are deleted
-			zoo.delete(record.getPath(), -1);
+	/**
+	 * Sets the deadline of every operation: an operation that has not
+	 * completed within the timeout, counted from the call, fails with a
+	 * TimeoutException cause, without waiting for the reply. A write that
+	 * misses its deadline may still be applied. Batch transactions are checked
+	 * before being sent, and awaited once sent, so that the caller knows
+	 * whether they were committed. The default is 0, no deadline: operations
+	 * are only bounded by the connect and session timeouts.
+	 * 
+	 * @param operationTimeoutMillis deadline of each operation, in
+	 *                               milliseconds, or 0 for none
+	 * @see #lookup(String, long)
+	 * @see #listRecords(String, long)
+	 */
+	public void setOperationTimeout(long operationTimeoutMillis) {
+		if (operationTimeoutMillis < 0)
+			throw new IllegalArgumentException("Operation timeout cannot be negative!");
+		this.operationTimeout = operationTimeoutMillis;
+	}
 
-		} catch (Exception e) {
-			throw new ZKNamingException("unbind", e);
-		} finally {
-			close();
-		}
+	/**
+	 * 
+	 * @return Deadline of each operation, in milliseconds, 0 for none
+	 */
+	public long getOperationTimeout() {
+		return operationTimeout;
 	}
 
 	/**
-	 * Destroys the binding for the specified path with a URI.
 	 * 
-	 * @param path Path to the zNode
-	 * @param URI  URI in the format host:port
-	 * @throws ZKNamingException if unbind fails
+	 * @return Session timeout requested to the ensemble, in milliseconds
 	 */
-	public void unbind(String path, String URI) throws ZKNamingException {
-		ZKRecord rec = new ZKRecord(path, URI);
-		unbind(rec);
+	public int getSessionTimeout() {
+		return sessionTimeout;
 	}
 
 	/**
-	 * Destroys the binding for the specified path with a host port pair.
 	 * 
-	 * @param path Path to the zNode
-	 * @param host service host
-	 * @param port service port
-	 * @throws ZKNamingException If unbind fails
+	 * @return Policy to retry the idempotent operations
 	 */
-	public void unbind(String path, String host, String port) throws ZKNamingException {
-		ZKRecord rec = new ZKRecord(path, host, port);
-		unbind(rec);
+	public ZKRetryPolicy getRetryPolicy() {
+		return retryPolicy;
 	}
 
 	/**
-	 * Returns the record associated with the specified path.
+	 * Returns the number of attempts made after transient errors.
 	 * 
-	 * @param path Path to the zNode
-	 * @return Record object with associated path and URI
-	 * @throws ZKNamingException if lookup fails
+	 * @return retry count
 	 */
-	public ZKRecord lookup(String path) throws ZKNamingException {
+	public long getRetryCount() {
+		return retries.get();
+	}
 
-		Stat stat;
-		try {
-			connect();
-			if (path == null)
-				throw new IllegalArgumentException("Path cannot be null!");
-			stat = zoo.exists(path, true);
-			if (stat == null)
-				throw new ZKNamingException("zNode not found");
+	//
+	// Hedged lookups
+	// A slow server delays every lookup sent to it, so after a delay the
+	// lookup is sent again over a session pinned to another member, and the
+	// first reply is used
+	//
 
-			ZKRecord rec = new ZKRecord(path, new String(zoo.getData(path, true, stat), "UTF-8"));
-			return rec;
+	/** Ensemble member that hedged lookups can be sent to. */
+	private static class HedgeTarget {
+		/* Connect string with only this member, and the chroot */
+		final String connectString;
+		/* Resolved address, to recognize the member of the shared session */
+		final InetSocketAddress address;
+		/* Session pinned to the member, guarded by sessionLock */
+		Session session;
+		/* Changes made by this client that the member is known to have applied */
+		final AtomicLong syncedWrites = new AtomicLong(-1);
 
-		} catch (Exception e) {
-			throw new ZKNamingException("lookup", e);
-		} finally {
-			close();
+		HedgeTarget(String connectString, InetSocketAddress address) {
+			this.connectString = connectString;
+			this.address = address;
 		}
 	}
 
 	/**
-	 * Returns a collection of records representing the child nodes of a zNode.
+	 * Enables or disables hedged lookups. When a lookup has no reply after
+	 * the delay, it is sent again to another member of the ensemble, over a
+	 * session pinned to that member, and the first reply is used. This cuts
+	 * the latency added by a slow or overloaded server, at the cost of extra
+	 * reads. Hedged replies are not cached, and a hedged lookup made after a
+	 * change by this client is preceded by a sync of the other member, so it
+	 * still sees the change. Requires the persistent session option and a
+	 * ZooKeeper url with more than one server; one session is opened for each
+	 * server.
 	 * 
-	 * @param path Path to the parent zNode
-	 * @return Collection of record matching the children of provided zNode
-	 * @throws ZKNamingException if listRecords fails
+	 * @param hedgeDelayMillis delay before the lookup is sent again, in
+	 *                         milliseconds, or 0 to disable hedging
+	 * @throws ZKNamingException if the sessions cannot be opened
 	 */
-	public Collection<ZKRecord> listRecords(String path) throws ZKNamingException {
+	public void setHedgeDelay(long hedgeDelayMillis) throws ZKNamingException {
+		if (hedgeDelayMillis < 0)
+			throw new IllegalArgumentException("Hedge delay cannot be negative!");
+		if (hedgeDelayMillis > 0 && !persistentFlag)
+			throw new IllegalStateException("Hedged lookups require the persistent session option!");
 
-		Stat stat;
+		List<HedgeTarget> disabled = Collections.emptyList();
+		sessionLock.lock();
 		try {
-			connect();
-			if (path == null)
-				throw new IllegalArgumentException("Path cannot be null!");
-			stat = zoo.exists(path, true);
-			if (stat == null)
-				throw new ZKNamingException("zNode not found");
+			if (closed)
+				throw new IllegalStateException("ZKNaming is closed!");
+			if (hedgeDelayMillis == 0) {
+				disabled = hedgeTargets;
+				hedgeTargets = Collections.emptyList();
+			} else if (hedgeTargets.isEmpty()) {
+				hedgeTargets = openHedgeTargets();
+			}
+			hedgeDelay = hedgeDelayMillis;
+		} finally {
+			sessionLock.unlock();
+		}
+		closeHedgeTargets(disabled);
+	}
 
-			List<ZKRecord> children = new ArrayList<ZKRecord>();
-			List<String> servers = zoo.getChildren(path, false);
-			ZKRecord rec;
+	/**
+	 * 
+	 * @return Delay before a lookup is sent again, in milliseconds, 0 if
+	 *         hedging is disabled
+	 */
+	public long getHedgeDelay() {
+		return hedgeDelay;
+	}
+
+	/**
+	 * Returns the number of lookups that were sent again to another member.
+	 * 
+	 * @return hedged lookup count
+	 */
+	public long getHedgedLookupCount() {
+		return hedgedLookups.get();
+	}
+
+	/** Opens a session pinned to each server of the ZooKeeper url. */
+	private List<HedgeTarget> openHedgeTargets() throws ZKNamingException {
+		ConnectStringParser parser = new ConnectStringParser(zkUrl);
+		List<InetSocketAddress> servers = parser.getServerAddresses();
+		if (servers.size() < 2)
+			throw new IllegalStateException("Hedged lookups require more than one ZooKeeper server!");
+		String chroot = (parser.getChrootPath() == null) ? "" : parser.getChrootPath();
 
-			for (String child : servers) {
-				String childPath = new String(path + "/" + child);
-				rec = new ZKRecord(childPath, new String(zoo.getData(childPath, true, stat), "UTF-8"));
-				children.add(rec);
+		List<HedgeTarget> targets = new ArrayList<HedgeTarget>(servers.size());
+		try {
+			for (InetSocketAddress server : servers) {
+				HedgeTarget target = new HedgeTarget(server.getHostString() + ":" + server.getPort() + chroot,
+						new InetSocketAddress(server.getHostString(), server.getPort()));
+				target.session = new Session(target.connectString, false);
+				targets.add(target);
 			}
-			return children;
-		} catch (Exception e) {
-			throw new ZKNamingException("list", e);
-		} finally {
-			close();
+		} catch (IOException e) {
+			closeHedgeTargets(targets);
+			throw new ZKNamingException("hedge", e);
 		}
+		return targets;
 	}
 
-	// TODO UnbindALL
+	private static void closeHedgeTargets(List<HedgeTarget> targets) {
+		for (HedgeTarget target : targets)
+			if (target.session != null)
+				target.session.closeQuietly();
+	}
+
+	/**
+	 * Returns a member other than the one the shared session is connected
+	 * to, with its session replaced if it has expired, or null if there is
+	 * none.
+	 */
+	private HedgeTarget hedgeTarget() {
+		Session s = session;
+		SocketAddress primary = (s == null) ? null : s.zoo.remoteAddress();
+		sessionLock.lock();
+		try {
+			for (HedgeTarget target : hedgeTargets) {
+				if (target.address.equals(primary))
+					continue;
+				if (target.session == null || !target.session.isAlive()) {
+					if (target.session != null)
+						target.session.closeQuietly();
+					try {
+						target.session = new Session(target.connectString, false);
+					} catch (IOException e) {
+						target.session = null;
+						continue;
+					}
+				}
+				return target;
+			}
+			return null;
+		} finally {
+			sessionLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a lookup read and, if hedging is enabled and no reply has arrived
+	 * after the hedge delay, sends it again over a session pinned to another
+	 * member. The first reply completes the result; a failure completes it
+	 * only when the other read has also failed, or was not sent. The member
+	 * may be a follower that has not yet applied the changes made by this
+	 * client, so if there were changes since its last sync, the hedged read is
+	 * preceded by a sync; ZooKeeper answers the requests of a session in
+	 * order, so the read sees the changes.
+	 */
+	private <T> void hedge(CompletableFuture<T> result, Consumer<CompletableFuture<T>> read,
+			BiConsumer<ZooKeeper, CompletableFuture<T>> hedgedRead) {
+		long delay = hedgeDelay;
+		if (delay <= 0) {
+			read.accept(result);
+			return;
+		}
+
+		AtomicInteger pending = new AtomicInteger(1);
+		BiConsumer<T, Throwable> reply = (value, e) -> {
+			if (e == null)
+				result.complete(value);
+			else if (pending.decrementAndGet() == 0)
+				result.completeExceptionally(e);
+		};
+		CompletableFuture<T> first = new CompletableFuture<>();
+		first.whenComplete(reply);
+		read.accept(first);
+
+		ScheduledFuture<?> timeout = TIMEOUTS.schedule(() -> {
+			if (result.isDone())
+				return;
+			HedgeTarget target = hedgeTarget();
+			if (target == null)
+				return;
+			Session s = target.session;
+			pending.incrementAndGet();
+			hedgedLookups.incrementAndGet();
+			CompletableFuture<T> second = new CompletableFuture<>();
+			second.whenComplete(reply);
+			s.whenConnected(connectTimeout).whenComplete((v, e) -> {
+				if (e != null) {
+					second.completeExceptionally(e);
+					return;
+				}
+				try {
+					final long stamp = writes.get();
+					if (target.syncedWrites.get() < stamp) {
+						s.zoo.sync("/", (rc, p, ctx) -> {
+							if (rc == Code.OK.intValue())
+								target.syncedWrites.accumulateAndGet(stamp, Math::max);
+						}, null);
+					}
+					hedgedRead.accept(s.zoo, second);
+				} catch (Exception ex) {
+					second.completeExceptionally(ex);
+				}
+			});
+		}, delay, TimeUnit.MILLISECONDS);
+		result.whenComplete((value, e) -> timeout.cancel(false));
+	}
+
+	//
+	// Metrics
+	//
+
+	/**
+	 * Sets the object that receives the measurements of the operations:
+	 * latency, split into session and request time, errors, cache accesses,
+	 * and the time taken by sessions to connect.
+	 * 
+	 * @param metrics metrics to use, or null to stop measuring
+	 */
+	public void setMetrics(ZKNamingMetrics metrics) {
+		this.metrics = (metrics == null) ? ZKNamingMetrics.NONE : metrics;
+	}
+
+	/**
+	 * 
+	 * @return Metrics that receive the measurements of the operations
+	 */
+	public ZKNamingMetrics getMetrics() {
+		return metrics;
+	}
+
+	/** Starts measuring an operation. */
+	private ZKOperationTimer startTimer(String operation) {
+		return new ZKOperationTimer(metrics, operation);
+	}
+
+	/** Connects, measuring the connection time of the operation. */
+	private ZooKeeper connect(ZKOperationTimer timer, Deadline deadline)
+			throws IOException, InterruptedException, TimeoutException {
+		long connectStart = timer.startConnect();
+		try {
+			return connect(deadline);
+		} finally {
+			timer.endConnect(connectStart);
+		}
+	}
+
+	/** Releases a client obtained with connect, and reports the operation. */
+	private void release(ZooKeeper zoo, ZKOperationTimer timer) throws ZKNamingException {
+		long connectStart = timer.startConnect();
+		try {
+			release(zoo);
+		} catch (ZKNamingException e) {
+			throw timer.failed(e);
+		} finally {
+			timer.endConnect(connectStart);
+			timer.stop();
+		}
+	}
+
+	//
+	// Cache management
+	//
+
+	/**
+	 * Enables or disables the client-side record cache. Cached records are
+	 * kept consistent with the ensemble by the watches set on each read, so the
+	 * cache requires the persistent session option.
+	 * 
+	 * @param enabled true to serve repeated lookup and listRecords calls from
+	 *                memory
+	 */
+	public void setCacheEnabled(boolean enabled) {
+		if (enabled && !persistentFlag)
+			throw new IllegalStateException("Cache requires the persistent session option!");
+		if (enabled == (cache != null))
+			return;
+		cache = enabled ? new ZKRecordCache() : null;
+	}
+
+	/**
+	 * Checks if the client-side record cache is enabled.
+	 * 
+	 * @return is cache enabled?
+	 */
+	public boolean isCacheEnabled() {
+		return cache != null;
+	}
+
+	/**
+	 * Returns the number of lookup and listRecords calls served from the cache.
+	 * 
+	 * @return cache hit count, or zero if cache is disabled
+	 */
+	public long getCacheHitCount() {
+		ZKRecordCache c = cache;
+		return (c == null) ? 0 : c.getHitCount();
+	}
+
+	/**
+	 * Returns the number of lookup and listRecords calls not found in the cache.
+	 * 
+	 * @return cache miss count, or zero if cache is disabled
+	 */
+	public long getCacheMissCount() {
+		ZKRecordCache c = cache;
+		return (c == null) ? 0 : c.getMissCount();
+	}
+
+	/**
+	 * Returns the number of cache entries removed because of changes.
+	 * 
+	 * @return cache invalidation count, or zero if cache is disabled
+	 */
+	public long getCacheInvalidationCount() {
+		ZKRecordCache c = cache;
+		return (c == null) ? 0 : c.getInvalidationCount();
+	}
+
+	/** Invalidates cache entries affected by a watch event. */
+	private void nodeChanged(WatchedEvent we) {
+		ZKRecordCache c = cache;
+		if (c == null || we.getPath() == null)
+			return;
+
+		switch (we.getType()) {
+		case NodeDataChanged:
+		case NodeDeleted:
+		case NodeCreated:
+			c.invalidateRecord(we.getPath());
+			if (we.getType() == EventType.NodeDeleted)
+				c.invalidateChildren(we.getPath());
+			break;
+		case NodeChildrenChanged:
+			c.invalidateChildren(we.getPath());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/** Invalidates cache entries changed by this client. */
+	private void invalidate(String path) {
+		writes.incrementAndGet();
+		ZKRecordCache c = cache;
+		if (c != null && path != null)
+			c.invalidateRecord(path);
+	}
+
+	private void clearCache() {
+		ZKRecordCache c = cache;
+		if (c != null)
+			c.clear();
+	}
+
+	/**
+	 * Closes the shared session with the ZooKeeper ensemble. Has no effect
+	 * when each operation uses its own session.
+	 * 
+	 * @throws ZKNamingException
+	 */
+	@Override
+	public void close() throws ZKNamingException {
+		Session s;
+		List<HedgeTarget> targets;
+		sessionLock.lock();
+		try {
+			closed = true;
+			s = session;
+			session = null;
+			targets = hedgeTargets;
+			hedgeTargets = Collections.emptyList();
+			hedgeDelay = 0;
+		} finally {
+			sessionLock.unlock();
+		}
+		closeHedgeTargets(targets);
+		// ephemeral zNodes are deleted with the session
+		ephemerals.clear();
+		if (s == null)
+			return;
+		try {
+			s.close();
+		} catch (Exception e) {
+			throw new ZKNamingException("close", e);
+		}
+	}
+
+	/**
+	 * Binds the specified record containing a path and a URI pair. Missing
+	 * parent zNodes are created.
+	 *
+	 * @param record record to register
+	 * @throws ZKNamingException If bind fails
+	 */
+
+	public void bind(ZKRecord record) throws ZKNamingException {
+		await(bindAsync(record), "bind");
+	}
+
+	/**
+	 * Binds the specified path with a host port pair
+	 * 
+	 * @param path Path to the zNode
+	 * @param host service host
+	 * @param port service port
+	 * @throws ZKNamingException If bind fails
+	 */
+	public void bind(String path, String host, String port) throws ZKNamingException {
+		ZKRecord rec = new ZKRecord(path, host, port);
+		bind(rec);
+	}
+
+	/**
+	 * Binds the specified path with a URI
+	 * 
+	 * @param path Path to the zNode
+	 * @param URI  URI in the format host:port
+	 * @throws ZKNamingException If bind fails
+	 */
+	public void bind(String path, String URI) throws ZKNamingException {
+		ZKRecord rec = new ZKRecord(path, URI);
+		bind(rec);
+	}
+
+	/**
+	 * Rebinds the specified record. Existing record is overridden, otherwise
+	 * the record is created as with bind.
+	 * 
+	 * @param record record to register
+	 * @throws ZKNamingException If rebind fails
+	 */
+	public void rebind(ZKRecord record) throws ZKNamingException {
+		await(rebindAsync(record), "rebind");
+	}
+
+	/**
+	 * Rebinds the specified path with a URI
+	 * 
+	 * @param path Path to the zNode
+	 * @param URI  URI in the format host:port
+	 * @throws ZKNamingException If rebind fails
+	 */
+	public void rebind(String path, String URI) throws ZKNamingException {
+		ZKRecord rec = new ZKRecord(path, URI);
+		rebind(rec);
+	}
+
+	/**
+	 * Rebinds the specified path with a host port pair
+	 * 
+	 * @param path Path to the zNode
+	 * @param host service host
+	 * @param port service port
+	 * @throws ZKNamingException If rebind fails
+	 */
+	public void rebind(String path, String host, String port) throws ZKNamingException {
+		ZKRecord rec = new ZKRecord(path, host, port);
+		rebind(rec);
+	}
+
+	/**
+	 * Destroys the binding for the specified record.
+	 * 
+	 * @param record record to delete
+	 * @throws ZKNamingException if unbind fails
+	 */
+	public void unbind(ZKRecord record) throws ZKNamingException {
+		await(unbindAsync(record), "unbind");
+	}
+
+	/**
+	 * Destroys the binding for the specified path with a URI.
+	 * 
+	 * @param path Path to the zNode
+	 * @param URI  URI in the format host:port
+	 * @throws ZKNamingException if unbind fails
+	 */
+	public void unbind(String path, String URI) throws ZKNamingException {
+		ZKRecord rec = new ZKRecord(path, URI);
+		unbind(rec);
+	}
+
+	/**
+	 * Destroys the binding for the specified path with a host port pair.
+	 * 
+	 * @param path Path to the zNode
+	 * @param host service host
+	 * @param port service port
+	 * @throws ZKNamingException If unbind fails
+	 */
+	public void unbind(String path, String host, String port) throws ZKNamingException {
+		ZKRecord rec = new ZKRecord(path, host, port);
+		unbind(rec);
+	}
+
+	/**
+	 * Returns the record associated with the specified path. Concurrent
+	 * lookups of the same path share a single request.
+	 * 
+	 * @param path Path to the zNode
+	 * @return Record object with associated path and URI
+	 * @throws ZKNamingException if lookup fails
+	 */
+	public ZKRecord lookup(String path) throws ZKNamingException {
+		return await(lookupAsync(path), "lookup");
+	}
+
+	/**
+	 * Returns the record associated with the specified path, failing with a
+	 * TimeoutException cause if the record is not returned within the
+	 * timeout.
+	 * 
+	 * @param path          Path to the zNode
+	 * @param timeoutMillis deadline of the call, in milliseconds, or 0 for none
+	 * @return Record object with associated path and URI
+	 * @throws ZKNamingException if lookup fails or times out
+	 */
+	public ZKRecord lookup(String path, long timeoutMillis) throws ZKNamingException {
+		return await(lookupAsync(path, timeoutMillis), "lookup");
+	}
+
+	/**
+	 * Returns a collection of records representing the child nodes of a zNode.
+	 * The children are listed in one request and their data is requested all
+	 * at once, so the latency does not grow with the number of children.
+	 * Concurrent listings of the same path share the requests.
+	 * 
+	 * @param path Path to the parent zNode
+	 * @return Collection of record matching the children of provided zNode
+	 * @throws ZKNamingException if listRecords fails
+	 */
+	public Collection<ZKRecord> listRecords(String path) throws ZKNamingException {
+		return await(listRecordsAsync(path), "list");
+	}
+
+	/**
+	 * Returns a collection of records representing the child nodes of a zNode,
+	 * failing with a TimeoutException cause if the records are not returned
+	 * within the timeout.
+	 * 
+	 * @param path          Path to the parent zNode
+	 * @param timeoutMillis deadline of the call, in milliseconds, or 0 for none
+	 * @return Collection of record matching the children of provided zNode
+	 * @throws ZKNamingException if listRecords fails or times out
+	 */
+	public Collection<ZKRecord> listRecords(String path, long timeoutMillis) throws ZKNamingException {
+		return await(listRecordsAsync(path, timeoutMillis), "list");
+	}
+
+	//
+	// Streaming
+	// Records are requested as the stream is consumed, so that the first
+	// records can be used before the last ones have arrived
+	//
+
+	/* Default number of records requested ahead of the stream consumer */
+	private static final int DEFAULT_PREFETCH = 64;
+
+	/**
+	 * Returns a stream of records representing the child nodes of a zNode,
+	 * requesting at most 64 records ahead of the consumer.
+	 * 
+	 * @param path Path to the parent zNode
+	 * @return Stream of records matching the children of provided zNode
+	 * @throws ZKNamingException if the children cannot be listed
+	 * @see #streamRecords(String, int)
+	 */
+	public Stream<ZKRecord> streamRecords(String path) throws ZKNamingException {
+		return streamRecords(path, DEFAULT_PREFETCH);
+	}
+
+	/**
+	 * Returns a stream of records representing the child nodes of a zNode.
+	 * The children are listed in one request, and their data is requested as
+	 * the stream is consumed, keeping at most the prefetch number of requests
+	 * ahead of the consumer, so memory does not grow with the number of
+	 * children. Records are in the order of the listing; children deleted
+	 * while streaming are left out. The cache is not used.<br>
+	 * <br>
+	 * The stream holds the session until it is consumed or closed, so it
+	 * should be closed, e.g. with try-with-resources. Failures while streaming
+	 * are thrown as CompletionException with a ZKNamingException cause. The
+	 * operation timeout bounds the listing, not the consumption of the stream.
+	 * 
+	 * @param path     Path to the parent zNode
+	 * @param prefetch Maximum number of records requested ahead
+	 * @return Stream of records matching the children of provided zNode
+	 * @throws ZKNamingException if the children cannot be listed
+	 */
+	public Stream<ZKRecord> streamRecords(String path, int prefetch) throws ZKNamingException {
+
+		ZKOperationTimer timer = startTimer("streamRecords");
+		Deadline deadline = new Deadline(operationTimeout);
+		ZooKeeper zoo = null;
+		try {
+			if (path == null)
+				throw new IllegalArgumentException("Path cannot be null!");
+			if (prefetch < 1)
+				throw new IllegalArgumentException("Prefetch must be positive!");
+
+			zoo = connect(timer, deadline);
+			CompletableFuture<List<String>> children = new CompletableFuture<>();
+			zoo.getChildren(path, false, (rc, p, ctx, list, stat) -> {
+				if (rc == Code.OK.intValue())
+					children.complete(list);
+				else if (rc == Code.NONODE.intValue())
+					children.complete(null);
+				else
+					children.completeExceptionally(keeperException(rc, p));
+			}, null);
+			List<String> names = get(children, deadline);
+			if (names == null)
+				throw new ZKNodeNotFoundException("zNode not found");
+
+			RecordSpliterator records = new RecordSpliterator(zoo, path, names, prefetch, timer);
+			return StreamSupport.stream(records, false).onClose(records::release);
+
+		} catch (Exception e) {
+			ZKNamingException failure = timer.failed(new ZKNamingException("streamRecords", e));
+			try {
+				release(zoo, timer);
+			} catch (ZKNamingException closeFailure) {
+				failure.addSuppressed(closeFailure);
+			}
+			throw failure;
+		}
+	}
+
+	/**
+	 * Requests the data of the children in order, keeping a window of
+	 * requests ahead of the consumer, and waits for the first one when a
+	 * record is consumed. The session is released at the end or on close.
+	 */
+	private class RecordSpliterator extends Spliterators.AbstractSpliterator<ZKRecord> {
+
+		private final ZooKeeper zoo;
+		private final String path;
+		private final List<String> names;
+		private final int prefetch;
+		private final ZKOperationTimer timer;
+
+		/* Requests sent and not yet consumed, in order */
+		private final Deque<CompletableFuture<ZKRecord>> window = new ArrayDeque<>();
+
+		/* Index of the next child to request */
+		private int next = 0;
+
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		RecordSpliterator(ZooKeeper zoo, String path, List<String> names, int prefetch, ZKOperationTimer timer) {
+			super(names.size(), Spliterator.ORDERED | Spliterator.NONNULL);
+			this.zoo = zoo;
+			this.path = path;
+			this.names = names;
+			this.prefetch = prefetch;
+			this.timer = timer;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super ZKRecord> action) {
+			while (true) {
+				while (window.size() < prefetch && next < names.size())
+					window.add(request(names.get(next++)));
+				CompletableFuture<ZKRecord> first = window.poll();
+				if (first == null) {
+					release();
+					return false;
+				}
+
+				ZKRecord record;
+				try {
+					record = first.join();
+				} catch (CompletionException e) {
+					timer.failed(e.getCause());
+					release();
+					throw new CompletionException(new ZKNamingException("streamRecords", e.getCause()));
+				}
+				// deleted while streaming
+				if (record == null)
+					continue;
+				action.accept(record);
+				return true;
+			}
+		}
+
+		private CompletableFuture<ZKRecord> request(String name) {
+			final String childPath = path.equals("/") ? path + name : path + "/" + name;
+			CompletableFuture<ZKRecord> future = new CompletableFuture<>();
+			zoo.getData(childPath, false, (rc, p, ctx, data, stat) -> {
+				if (rc == Code.NONODE.intValue())
+					future.complete(null);
+				else if (rc != Code.OK.intValue())
+					future.completeExceptionally(keeperException(rc, p));
+				else {
+					try {
+						future.complete(ZKRecordCodec.decode(childPath, data));
+					} catch (IllegalArgumentException e) {
+						future.completeExceptionally(e);
+					}
+				}
+			}, null);
+			return future;
+		}
+
+		/** Releases the session and reports the operation, once. */
+		void release() {
+			if (!released.compareAndSet(false, true))
+				return;
+			window.clear();
+			try {
+				ZKNaming.this.release(zoo, timer);
+			} catch (ZKNamingException e) {
+				// the records were read, closing a per-operation session failed
+			}
+		}
+	}
+
+	//
+	// Ephemeral bindings
+	// Ephemeral zNodes exist only while the session that created them is alive.
+	// The ZooKeeper client keeps the session alive with heartbeats, so the
+	// bindings disappear when the process dies or closes this object.
+	//
+
+	/**
+	 * Binds the specified record with an ephemeral zNode, that is deleted
+	 * automatically when this client is closed or stops responding. Missing
+	 * parent zNodes are created as persistent zNodes. If the session expires,
+	 * the binding is registered again with the new session. Requires the
+	 * persistent session option.
+	 * 
+	 * @param record record to register
+	 * @throws ZKNamingException If bind fails
+	 */
+	public void bindEphemeral(ZKRecord record) throws ZKNamingException {
+		await(bindEphemeralAsync(record, CreateMode.EPHEMERAL), "bindEphemeral");
+	}
+
+	/**
+	 * Binds the specified path with a URI, using an ephemeral zNode.
+	 * 
+	 * @param path Path to the zNode
+	 * @param URI  URI in the format host:port
+	 * @throws ZKNamingException If bind fails
+	 * @see #bindEphemeral(ZKRecord)
+	 */
+	public void bindEphemeral(String path, String URI) throws ZKNamingException {
+		ZKRecord rec = new ZKRecord(path, URI);
+		bindEphemeral(rec);
+	}
+
+	/**
+	 * Binds the specified record with an ephemeral sequential zNode. ZooKeeper
+	 * appends a unique, increasing number to the record path, e.g.
+	 * "/service/replica-" becomes "/service/replica-0000000003", which can be
+	 * used to number replicas. If the session expires, the binding is
+	 * registered again with a new number. Requires the persistent session
+	 * option.
+	 * 
+	 * @param record record to register, with the path prefix
+	 * @return Record with the path of the created zNode
+	 * @throws ZKNamingException If bind fails
+	 */
+	public ZKRecord bindEphemeralSequential(ZKRecord record) throws ZKNamingException {
+		return await(bindEphemeralAsync(record, CreateMode.EPHEMERAL_SEQUENTIAL), "bindEphemeralSequential");
+	}
+
+	/**
+	 * Binds the specified path prefix with a URI, using an ephemeral
+	 * sequential zNode.
+	 * 
+	 * @param pathPrefix Path prefix of the zNode
+	 * @param URI        URI in the format host:port
+	 * @return Record with the path of the created zNode
+	 * @throws ZKNamingException If bind fails
+	 * @see #bindEphemeralSequential(ZKRecord)
+	 */
+	public ZKRecord bindEphemeralSequential(String pathPrefix, String URI) throws ZKNamingException {
+		ZKRecord rec = new ZKRecord(pathPrefix, URI);
+		return bindEphemeralSequential(rec);
+	}
+
+	/**
+	 * Returns the ephemeral bindings currently registered by this client.
+	 * 
+	 * @return Collection of records with the paths of the ephemeral zNodes
+	 */
+	public Collection<ZKRecord> listEphemeralRecords() {
+		List<ZKRecord> records = new ArrayList<ZKRecord>();
+		for (EphemeralBinding binding : ephemerals) {
+			ZKRecord current = binding.current;
+			if (current != null)
+				records.add(current);
+		}
+		return records;
+	}
+
+	/** An ephemeral binding requested by this client. */
+	private static class EphemeralBinding {
+		/* Requested record, with the path prefix for sequential zNodes */
+		final ZKRecord requested;
+		final CreateMode mode;
+		/* Registered record, null while not registered */
+		volatile ZKRecord current;
+		/* Is a registration in progress? */
+		final AtomicBoolean registering = new AtomicBoolean(false);
+
+		EphemeralBinding(ZKRecord requested, CreateMode mode) {
+			this.requested = requested;
+			this.mode = mode;
+		}
+	}
+
+	private CompletableFuture<ZKRecord> bindEphemeralAsync(ZKRecord record, CreateMode mode) {
+		String fName = (mode == CreateMode.EPHEMERAL) ? "bindEphemeral" : "bindEphemeralSequential";
+		if (record == null)
+			return failedFuture(fName, new IllegalArgumentException("ZKRecord cannot be null!"));
+		if (!persistentFlag)
+			return failedFuture(fName,
+					new IllegalStateException("Ephemeral bindings require the persistent session option!"));
+
+		EphemeralBinding binding = new EphemeralBinding(record, mode);
+		CompletableFuture<ZKRecord> future = callAsync(fName, (zoo, result) -> createAsync(zoo, record, mode, false,
+				result, () -> result.completeExceptionally(new ZKNamingException("zNode already exists. Use rebind."))));
+		return future.thenApply(created -> {
+			binding.current = created;
+			ephemerals.add(binding);
+			return created;
+		});
+	}
+
+	/** Registers again the ephemeral bindings, in a new session. */
+	private void reregisterEphemerals(Session s) {
+		for (EphemeralBinding binding : ephemerals)
+			binding.current = null;
+		registerEphemerals(s);
+	}
+
+	/**
+	 * Registers the ephemeral bindings that are not registered, if the
+	 * session is still the shared session.
+	 */
+	private void registerEphemerals(Session s) {
+		if (s == null || s != session)
+			return;
+		for (EphemeralBinding binding : ephemerals)
+			if (binding.current == null && binding.registering.compareAndSet(false, true))
+				registerEphemeral(s, binding, 1);
+	}
+
+	/**
+	 * Creates the zNode of an ephemeral binding. Transient failures are
+	 * retried with the retry policy; a binding still not registered is tried
+	 * again when the session reconnects, or in the next session. A binding
+	 * unbound meanwhile is deleted again.
+	 */
+	private void registerEphemeral(Session s, EphemeralBinding binding, int attempt) {
+		final String path = binding.requested.getPath();
+		CompletableFuture<ZKRecord> result = new CompletableFuture<>();
+		createAsync(s.zoo, binding.requested, binding.mode, false, result,
+				() -> s.zoo.exists(path, false, (rc, p, ctx, stat) -> {
+					// created by an earlier attempt whose reply was lost
+					if (rc == Code.OK.intValue() && stat.getEphemeralOwner() == s.zoo.getSessionId())
+						result.complete(binding.requested);
+					else
+						result.completeExceptionally(new ZKNamingException("zNode already exists."));
+				}, null));
+		result.whenComplete((created, e) -> {
+			if (e == null && s == session) {
+				binding.current = created;
+				binding.registering.set(false);
+				if (!ephemerals.contains(binding)) {
+					binding.current = null;
+					s.zoo.delete(created.getPath(), -1, (rc, p, ctx) -> {
+						// already deleted, or deleted with the session
+					}, null);
+				}
+				return;
+			}
+			if (e instanceof KeeperException && s == session && s.isAlive()
+					&& retryPolicy.shouldRetry(((KeeperException) e).code(), attempt)) {
+				retries.incrementAndGet();
+				TIMEOUTS.schedule(() -> registerEphemeral(s, binding, attempt + 1), retryPolicy.delayMillis(attempt),
+						TimeUnit.MILLISECONDS);
+				return;
+			}
+			binding.registering.set(false);
+			// the session was replaced meanwhile
+			if (s != session)
+				registerEphemerals(session);
+		});
+	}
+
+	/**
+	 * Stops tracking the ephemeral binding of the path, if any, including a
+	 * binding waiting to be registered again.
+	 */
+	private void forgetEphemeral(String path) {
+		for (EphemeralBinding binding : ephemerals) {
+			ZKRecord current = binding.current;
+			if ((current != null && current.getPath().equals(path))
+					|| (binding.mode == CreateMode.EPHEMERAL && binding.requested.getPath().equals(path)))
+				ephemerals.remove(binding);
+		}
+	}
+
+	//
+	// Batch operations
+	// Each batch is committed atomically with a single multi request
+	//
+
+	/**
+	 * Binds all the specified records atomically: either all are registered
+	 * or none is. Missing parent zNodes are created in the same transaction.
+	 * 
+	 * @param records records to register
+	 * @throws ZKNamingException If bind fails, for instance if a record
+	 *                           already exists
+	 */
+	public void bindAll(Collection<ZKRecord> records) throws ZKNamingException {
+
+		ZKOperationTimer timer = startTimer("bindAll");
+		Deadline deadline = new Deadline(operationTimeout);
+		ZooKeeper zoo = null;
+		try {
+			if (records == null)
+				throw new IllegalArgumentException("Records cannot be null!");
+			if (records.isEmpty())
+				return;
+
+			zoo = connect(timer, deadline);
+			// records may be parents of other records, so create parents first
+			List<ZKRecord> sorted = new ArrayList<ZKRecord>(records);
+			if (sorted.contains(null))
+				throw new IllegalArgumentException("ZKRecord cannot be null!");
+			sorted.sort((a, b) -> BY_DEPTH.compare(a.getPath(), b.getPath()));
+
+			Set<String> recordPaths = new HashSet<String>();
+			List<Op> recordOps = new ArrayList<Op>();
+			for (ZKRecord record : sorted) {
+				recordPaths.add(record.getPath());
+				recordOps.add(Op.create(record.getPath(), ZKRecordCodec.encode(record), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+						CreateMode.PERSISTENT));
+			}
+
+			// optimistic attempt, assuming parents exist
+			List<String> parents = new ArrayList<String>();
+			for (int attempt = 0;; attempt++) {
+				List<Op> ops = new ArrayList<Op>();
+				for (String parent : parents)
+					ops.add(Op.create(parent, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+				ops.addAll(recordOps);
+
+				deadline.check();
+				try {
+					zoo.multi(ops);
+					break;
+				} catch (KeeperException e) {
+					String failedPath = failedOpPath(e, ops);
+					if (e.code() == KeeperException.Code.NODEEXISTS && recordPaths.contains(failedPath))
+						throw new ZKNamingException("zNode already exists. Use rebind.", e);
+					// parents are missing, or were created meanwhile by another client
+					if ((e.code() != KeeperException.Code.NONODE && e.code() != KeeperException.Code.NODEEXISTS)
+							|| attempt >= MAX_BATCH_ATTEMPTS)
+						throw e;
+					parents = missingParents(zoo, recordPaths, deadline);
+				}
+			}
+
+			for (String path : recordPaths)
+				invalidate(path);
+
+		} catch (Exception e) {
+			throw timer.failed(new ZKNamingException("bindAll", e));
+		} finally {
+			release(zoo, timer);
+		}
+	}
+
+	/**
+	 * Destroys the bindings of all the specified records atomically: either
+	 * all are deleted or none is.
+	 * 
+	 * @param records records to delete
+	 * @throws ZKNamingException if unbind fails, or
+	 *                           {@link ZKNodeNotFoundException} if a record is
+	 *                           not found
+	 */
+	public void unbindAll(Collection<ZKRecord> records) throws ZKNamingException {
+
+		ZKOperationTimer timer = startTimer("unbindAll");
+		Deadline deadline = new Deadline(operationTimeout);
+		ZooKeeper zoo = null;
+		try {
+			if (records == null)
+				throw new IllegalArgumentException("Records cannot be null!");
+			if (records.isEmpty())
+				return;
+
+			zoo = connect(timer, deadline);
+			List<Op> ops = new ArrayList<Op>();
+			for (ZKRecord record : records) {
+				if (record == null)
+					throw new IllegalArgumentException("ZKRecord cannot be null!");
+				// "-1" Guarantees that all versions are deleted
+				ops.add(Op.delete(record.getPath(), -1));
+			}
+
+			deadline.check();
+			try {
+				zoo.multi(ops);
+			} catch (KeeperException e) {
+				if (e.code() == KeeperException.Code.NONODE)
+					throw new ZKNodeNotFoundException("zNode not found.", e);
+				throw e;
+			}
+
+			for (ZKRecord record : records) {
+				invalidate(record.getPath());
+				forgetEphemeral(record.getPath());
+			}
+
+		} catch (Exception e) {
+			throw timer.failed(new ZKNamingException("unbindAll", e));
+		} finally {
+			release(zoo, timer);
+		}
+	}
+
+	/**
+	 * Destroys the binding for the specified path and for all zNodes below it,
+	 * atomically. The subtree is read level by level, with the requests of each
+	 * level sent at once, and deleted with a single transaction. If the subtree
+	 * changes meanwhile, it is read again.
+	 * 
+	 * @param path Path to the zNode
+	 * @throws ZKNamingException if unbind fails
+	 */
+	public void unbindAll(String path) throws ZKNamingException {
+
+		ZKOperationTimer timer = startTimer("unbindAll");
+		Deadline deadline = new Deadline(operationTimeout);
+		ZooKeeper zoo = null;
+		try {
+			if (path == null)
+				throw new IllegalArgumentException("Path cannot be null!");
+			if (path.equals("/"))
+				throw new IllegalArgumentException("Root zNode cannot be unbound!");
+
+			zoo = connect(timer, deadline);
+			List<String> subtree;
+			for (int attempt = 0;; attempt++) {
+				subtree = subtree(zoo, path, deadline);
+				if (subtree.isEmpty())
+					throw new ZKNodeNotFoundException("zNode not found.");
+
+				// delete children before parents
+				List<Op> ops = new ArrayList<Op>();
+				for (int i = subtree.size() - 1; i >= 0; i--)
+					ops.add(Op.delete(subtree.get(i), -1));
+
+				deadline.check();
+				try {
+					zoo.multi(ops);
+					break;
+				} catch (KeeperException e) {
+					// subtree changed meanwhile
+					if ((e.code() != KeeperException.Code.NOTEMPTY && e.code() != KeeperException.Code.NONODE)
+							|| attempt >= MAX_BATCH_ATTEMPTS)
+						throw e;
+				}
+			}
+
+			for (String deleted : subtree) {
+				invalidate(deleted);
+				forgetEphemeral(deleted);
+				ZKRecordCache c = cache;
+				if (c != null)
+					c.invalidateChildren(deleted);
+			}
+
+		} catch (Exception e) {
+			throw timer.failed(new ZKNamingException("unbindAll", e));
+		} finally {
+			release(zoo, timer);
+		}
+	}
+
+	//
+	// Batch implementation
+	//
+
+	/** Returns the path of the operation that caused a multi to fail. */
+	private static String failedOpPath(KeeperException e, List<Op> ops) {
+		List<OpResult> results = e.getResults();
+		if (results == null)
+			return e.getPath();
+		for (int i = 0; i < results.size() && i < ops.size(); i++) {
+			OpResult result = results.get(i);
+			if (result instanceof OpResult.ErrorResult && ((OpResult.ErrorResult) result).getErr() == e.code().intValue())
+				return ops.get(i).getPath();
+		}
+		return e.getPath();
+	}
+
+	/**
+	 * Returns the ancestors of the paths that do not exist, parents first. The
+	 * existence of all ancestors is checked with requests sent at once.
+	 */
+	private List<String> missingParents(ZooKeeper zoo, Collection<String> paths, Deadline deadline)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		Set<String> ancestors = new TreeSet<String>(BY_DEPTH);
+		for (String path : paths) {
+			int index = path.indexOf('/', 1);
+			while (index > 0) {
+				ancestors.add(path.substring(0, index));
+				index = path.indexOf('/', index + 1);
+			}
+		}
+		ancestors.removeAll(paths);
+
+		List<String> ordered = new ArrayList<String>(ancestors);
+		List<CompletableFuture<Stat>> futures = new ArrayList<CompletableFuture<Stat>>();
+		for (String ancestor : ordered)
+			futures.add(existsAsync(zoo, ancestor));
+
+		List<String> missing = new ArrayList<String>();
+		for (int i = 0; i < ordered.size(); i++)
+			if (get(futures.get(i), deadline) == null)
+				missing.add(ordered.get(i));
+		return missing;
+	}
+
+	/**
+	 * Returns the path and all zNodes below it, parents before children, or an
+	 * empty list if the path does not exist. The children of each level are
+	 * requested at once.
+	 */
+	private List<String> subtree(ZooKeeper zoo, String path, Deadline deadline)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		List<String> subtree = new ArrayList<String>();
+		if (get(existsAsync(zoo, path), deadline) == null)
+			return subtree;
+
+		List<String> level = Collections.singletonList(path);
+		while (!level.isEmpty()) {
+			subtree.addAll(level);
+
+			List<CompletableFuture<List<String>>> futures = new ArrayList<CompletableFuture<List<String>>>();
+			for (String parent : level) {
+				CompletableFuture<List<String>> future = new CompletableFuture<>();
+				zoo.getChildren(parent, false, (rc, p, ctx, names, stat) -> {
+					if (rc == Code.OK.intValue())
+						future.complete(names);
+					else if (rc == Code.NONODE.intValue())
+						future.complete(Collections.<String>emptyList());
+					else
+						future.completeExceptionally(keeperException(rc, p));
+				}, null);
+				futures.add(future);
+			}
+
+			List<String> next = new ArrayList<String>();
+			for (int i = 0; i < level.size(); i++)
+				for (String name : get(futures.get(i), deadline))
+					next.add(level.get(i) + "/" + name);
+			level = next;
+		}
+		return subtree;
+	}
+
+	/** Requests the stat of a zNode, completed with null if it does not exist. */
+	private static CompletableFuture<Stat> existsAsync(ZooKeeper zoo, String path) {
+		CompletableFuture<Stat> future = new CompletableFuture<>();
+		zoo.exists(path, false, (rc, p, ctx, stat) -> {
+			if (rc == Code.OK.intValue() || rc == Code.NONODE.intValue())
+				future.complete(stat);
+			else
+				future.completeExceptionally(keeperException(rc, p));
+		}, null);
+		return future;
+	}
+
+	private static int depth(String path) {
+		int depth = 0;
+		for (int i = 0; i < path.length(); i++)
+			if (path.charAt(i) == '/')
+				depth++;
+		return depth;
+	}
+
+	//
+	// Asynchronous interface
+	// Operations are sent without blocking the calling thread. The returned
+	// futures are completed by the ZooKeeper event thread, so dependent
+	// actions should not block, or should use the async variants of the
+	// CompletableFuture methods. Failures are reported with ZKNamingException.
+	//
+
+	/**
+	 * Asynchronously returns the record associated with the specified path.
+	 * 
+	 * @param path Path to the zNode
+	 * @return Future of the record with associated path and URI
+	 */
+	public CompletableFuture<ZKRecord> lookupAsync(String path) {
+		return lookupAsync(path, operationTimeout);
+	}
+
+	/**
+	 * Asynchronously returns the record associated with the specified path.
+	 * The future fails with a TimeoutException cause if the record is not
+	 * returned within the timeout. If hedging is enabled, the lookup is sent
+	 * again to another member when no reply arrives after the hedge delay.
+	 * 
+	 * @param path          Path to the zNode
+	 * @param timeoutMillis deadline of the call, in milliseconds, or 0 for none
+	 * @return Future of the record with associated path and URI
+	 */
+	public CompletableFuture<ZKRecord> lookupAsync(String path, long timeoutMillis) {
+		if (path == null)
+			return failedFuture("lookup", new IllegalArgumentException("Path cannot be null!"));
+		if (timeoutMillis < 0)
+			return failedFuture("lookup", new IllegalArgumentException("Timeout cannot be negative!"));
+		Deadline deadline = new Deadline(timeoutMillis);
+		ZKOperationTimer timer = startTimer("lookup");
+		ZKRecordCache c = cache;
+		long stamp = 0;
+		if (c != null) {
+			ZKRecord cached = c.getRecord(path);
+			timer.cacheAccessed(cached != null);
+			if (cached != null) {
+				timer.stop();
+				return CompletableFuture.completedFuture(cached);
+			}
+			stamp = c.stamp();
+		}
+
+		final long readStamp = stamp;
+		// hedged replies are not watched, so they are not cached
+		return shareRead(lookupFlights, path, timer, deadline, UnaryOperator.identity(),
+				d -> callAsync(timer, d, true, (zoo, result) -> hedge(result,
+						first -> getRecordAsync(zoo, path, true, c, readStamp, first),
+						(hedgeZoo, second) -> getRecordAsync(hedgeZoo, path, false, null, 0, second))));
+	}
+
+	/**
+	 * Asynchronously binds the specified record. Missing parent zNodes are
+	 * created.
+	 * 
+	 * @param record record to register
+	 * @return Future of the registered record
+	 */
+	public CompletableFuture<ZKRecord> bindAsync(ZKRecord record) {
+		if (record == null)
+			return failedFuture("bind", new IllegalArgumentException("ZKRecord cannot be null!"));
+		return callAsync("bind", (zoo, result) -> createAsync(zoo, record, CreateMode.PERSISTENT, false, result, () -> result
+				.completeExceptionally(new ZKNamingException("zNode already exists. Use rebind."))));
+	}
+
+	/**
+	 * Asynchronously rebinds the specified record. Existing record is
+	 * overridden.
+	 * 
+	 * @param record record to register
+	 * @return Future of the registered record
+	 */
+	public CompletableFuture<ZKRecord> rebindAsync(ZKRecord record) {
+		if (record == null)
+			return failedFuture("rebind", new IllegalArgumentException("ZKRecord cannot be null!"));
+		return idempotentCallAsync("rebind", (zoo, result) -> setDataAsync(zoo, record, true, result));
+	}
+
+	/**
+	 * Asynchronously destroys the binding for the specified record.
+	 * 
+	 * @param record record to delete
+	 * @return Future of the deleted record
+	 */
+	public CompletableFuture<ZKRecord> unbindAsync(ZKRecord record) {
+		if (record == null)
+			return failedFuture("unbind", new IllegalArgumentException("ZKRecord cannot be null!"));
+		return callAsync("unbind", (zoo, result) -> zoo.delete(record.getPath(), -1, (rc, p, ctx) -> {
+			if (rc == Code.NONODE.intValue()) {
+				// an ephemeral binding waiting to be registered again is not
+				// registered after it was unbound
+				forgetEphemeral(record.getPath());
+				result.completeExceptionally(new ZKNodeNotFoundException("zNode not found."));
+				return;
+			}
+			if (rc != Code.OK.intValue()) {
+				result.completeExceptionally(keeperException(rc, p));
+				return;
+			}
+			invalidate(record.getPath());
+			forgetEphemeral(record.getPath());
+			result.complete(record);
+		}, null));
+	}
+
+	/**
+	 * Asynchronously returns the records representing the child nodes of a
+	 * zNode. The data of all children is requested at once, without waiting
+	 * for each reply. Children deleted while listing are left out.
+	 * 
+	 * @param path Path to the parent zNode
+	 * @return Future of the collection of records matching the children of
+	 *         provided zNode
+	 */
+	public CompletableFuture<Collection<ZKRecord>> listRecordsAsync(String path) {
+		return listRecordsAsync(path, operationTimeout);
+	}
+
+	/**
+	 * Asynchronously returns the records representing the child nodes of a
+	 * zNode. The future fails with a TimeoutException cause if the records are
+	 * not returned within the timeout.
+	 * 
+	 * @param path          Path to the parent zNode
+	 * @param timeoutMillis deadline of the call, in milliseconds, or 0 for none
+	 * @return Future of the collection of records matching the children of
+	 *         provided zNode
+	 */
+	public CompletableFuture<Collection<ZKRecord>> listRecordsAsync(String path, long timeoutMillis) {
+		if (path == null)
+			return failedFuture("list", new IllegalArgumentException("Path cannot be null!"));
+		if (timeoutMillis < 0)
+			return failedFuture("list", new IllegalArgumentException("Timeout cannot be negative!"));
+		Deadline deadline = new Deadline(timeoutMillis);
+		ZKOperationTimer timer = startTimer("list");
+		ZKRecordCache c = cache;
+		long stamp = 0;
+		if (c != null) {
+			Collection<ZKRecord> cached = c.getChildren(path);
+			timer.cacheAccessed(cached != null);
+			if (cached != null) {
+				timer.stop();
+				return CompletableFuture.completedFuture(cached);
+			}
+			stamp = c.stamp();
+		}
+
+		final long readStamp = stamp;
+		return shareRead(listFlights, path, timer, deadline, ArrayList::new,
+				d -> callAsync(timer, d, true, (zoo, result) -> zoo.getChildren(path, c != null, (rc, p, ctx, names, stat) -> {
+			if (rc == Code.NONODE.intValue()) {
+				result.completeExceptionally(new ZKNodeNotFoundException("zNode not found"));
+				return;
+			}
+			if (rc != Code.OK.intValue()) {
+				result.completeExceptionally(keeperException(rc, p));
+				return;
+			}
+			getChildrenDataAsync(zoo, path, names, null, result, children -> {
+				if (c != null)
+					c.putChildren(path, children, readStamp);
+				result.complete(children);
+			});
+		}, null)));
+	}
+
+	/**
+	 * Asynchronously returns the records representing the child nodes of a
+	 * zNode, and sets the provided watcher on the zNode children and on the
+	 * data of each child. The cache is not used. Requires the persistent
+	 * session option, because watches are lost when the session is closed.
+	 * 
+	 * @param path    Path to the parent zNode
+	 * @param watcher Watcher to notify of changes
+	 * @return Future of the collection of records matching the children of
+	 *         provided zNode
+	 */
+	CompletableFuture<Collection<ZKRecord>> listRecordsAsync(String path, Watcher watcher) {
+		if (path == null)
+			return failedFuture("list", new IllegalArgumentException("Path cannot be null!"));
+		if (!persistentFlag)
+			return failedFuture("list", new IllegalStateException("Watches require the persistent session option!"));
+
+		return idempotentCallAsync("list", (zoo, result) -> zoo.getChildren(path, watcher, (rc, p, ctx, names, stat) -> {
+			if (rc == Code.NONODE.intValue()) {
+				result.completeExceptionally(new ZKNodeNotFoundException("zNode not found"));
+				return;
+			}
+			if (rc != Code.OK.intValue()) {
+				result.completeExceptionally(keeperException(rc, p));
+				return;
+			}
+			getChildrenDataAsync(zoo, path, names, watcher, result, children -> result.complete(children));
+		}, null));
+	}
+
+	/**
+	 * Asynchronously reads the records of a zNode and of all zNodes below it,
+	 * without setting watches. The data and children of each zNode are
+	 * requested as soon as the zNode is listed, without waiting for the other
+	 * replies. Each record is passed to the consumer by the ZooKeeper event
+	 * thread, in the order of the replies. zNodes deleted while reading are
+	 * left out.
+	 * 
+	 * @param path  Path to the zNode
+	 * @param found Consumer of the records
+	 * @return Future completed when all records have been read
+	 */
+	CompletableFuture<Void> scanAsync(String path, Consumer<ZKRecord> found) {
+		if (path == null)
+			return failedFuture("scan", new IllegalArgumentException("Path cannot be null!"));
+		return callAsync("scan", (zoo, result) -> scanAsync(zoo, path, found, new AtomicInteger(1), result));
+	}
+
+	/**
+	 * Asynchronously checks if a zNode exists, and sets the provided watcher on
+	 * it, which also notifies the creation of a zNode that does not exist.
+	 * Requires the persistent session option.
+	 * 
+	 * @param path    Path to the zNode
+	 * @param watcher Watcher to notify of changes
+	 * @return Future of true if the zNode exists, or false if not
+	 */
+	CompletableFuture<Boolean> existsAsync(String path, Watcher watcher) {
+		if (path == null)
+			return failedFuture("exists", new IllegalArgumentException("Path cannot be null!"));
+		if (!persistentFlag)
+			return failedFuture("exists",
+					new IllegalStateException("Watches require the persistent session option!"));
+
+		return idempotentCallAsync("exists", (zoo, result) -> zoo.exists(path, watcher, (rc, p, ctx, stat) -> {
+			if (rc == Code.OK.intValue())
+				result.complete(true);
+			else if (rc == Code.NONODE.intValue())
+				result.complete(false);
+			else
+				result.completeExceptionally(keeperException(rc, p));
+		}, null));
+	}
+
+	/**
+	 * Asynchronously reads the record of a zNode, without using the cache and
+	 * without setting watches.
+	 * 
+	 * @param path Path to the zNode
+	 * @return Future of the record, or of null if the zNode does not exist
+	 */
+	CompletableFuture<ZKRecord> readAsync(String path) {
+		if (path == null)
+			return failedFuture("read", new IllegalArgumentException("Path cannot be null!"));
+		return idempotentCallAsync("read", (zoo, result) -> zoo.getData(path, false, (rc, p, ctx, data, stat) -> {
+			if (rc == Code.NONODE.intValue())
+				result.complete(null);
+			else if (rc != Code.OK.intValue())
+				result.completeExceptionally(keeperException(rc, p));
+			else
+				result.complete(ZKRecordCodec.decode(path, data));
+		}, null));
+	}
+
+	/**
+	 * Asynchronously adds a persistent recursive watch, that notifies the
+	 * creation, deletion and data changes of the zNode and of all zNodes below
+	 * it, until removed. Requires the persistent session option; the watch is
+	 * lost if the session expires.
+	 * 
+	 * @param path    Path to the zNode, which may not exist yet
+	 * @param watcher Watcher to notify of changes
+	 * @return Future completed when the watch is set
+	 */
+	CompletableFuture<Void> addRecursiveWatchAsync(String path, Watcher watcher) {
+		if (path == null)
+			return failedFuture("addWatch", new IllegalArgumentException("Path cannot be null!"));
+		if (!persistentFlag)
+			return failedFuture("addWatch",
+					new IllegalStateException("Watches require the persistent session option!"));
+
+		return callAsync("addWatch", (zoo, result) -> zoo.addWatch(path, watcher, AddWatchMode.PERSISTENT_RECURSIVE,
+				(rc, p, ctx) -> {
+					if (rc == Code.OK.intValue())
+						result.complete(null);
+					else
+						result.completeExceptionally(keeperException(rc, p));
+				}, null));
+	}
+
+	/**
+	 * Asynchronously removes the watches of the watcher on the zNode. The
+	 * watches are removed locally even if the server cannot be reached.
+	 * 
+	 * @param path    Path to the zNode
+	 * @param watcher Watcher to remove
+	 * @return Future completed when the watches are removed
+	 */
+	CompletableFuture<Void> removeWatchAsync(String path, Watcher watcher) {
+		if (path == null)
+			return failedFuture("removeWatch", new IllegalArgumentException("Path cannot be null!"));
+		return callAsync("removeWatch",
+				(zoo, result) -> zoo.removeWatches(path, watcher, WatcherType.Any, true, (rc, p, ctx) -> {
+					if (rc == Code.OK.intValue() || rc == Code.NOWATCHER.intValue())
+						result.complete(null);
+					else
+						result.completeExceptionally(keeperException(rc, p));
+				}, null));
+	}
+
+	//
+	// Asynchronous implementation
+	//
+
+	/** Read in progress, started when this client had made the stamp number of changes */
+	private static class Flight<T> {
+		final long stamp;
+		final CompletableFuture<T> future = new CompletableFuture<>();
+
+		/* Callers waiting for the read, or -1 once all of them gave up */
+		final AtomicInteger callers = new AtomicInteger(1);
+
+		Flight(long stamp) {
+			this.stamp = stamp;
+		}
+
+		/** Adds a caller, unless all the callers gave up on the read. */
+		boolean join() {
+			for (;;) {
+				int n = callers.get();
+				if (n < 0)
+					return false;
+				if (callers.compareAndSet(n, n + 1))
+					return true;
+			}
+		}
+
+		/** Removes a caller, returning true if it was the last one. */
+		boolean leave() {
+			return callers.decrementAndGet() == 0 && callers.compareAndSet(0, -1);
+		}
+	}
+
+	/**
+	 * Single-flight read: the first caller for a path starts the read and the
+	 * concurrent callers wait for its result, instead of sending their own
+	 * requests. A read started before a change made by this client is not
+	 * shared with later callers, so that they see the change. Each caller gets
+	 * its own future, and a copy of mutable results, and reports its own
+	 * timer. The shared read has no deadline, so that a caller that times out
+	 * or cancels its future does not fail the others: each caller, including
+	 * the one that started the read, is bounded by its own deadline. Once all
+	 * the callers gave up, the read is no longer shared, so later callers do
+	 * not wait for a read that may be stalled.
+	 */
+	private <T> CompletableFuture<T> shareRead(ConcurrentMap<String, Flight<T>> flights, String path,
+			ZKOperationTimer timer, Deadline deadline, UnaryOperator<T> copy,
+			Function<Deadline, CompletableFuture<T>> read) {
+		final long stamp = writes.get();
+		Flight<T> flight = new Flight<>(stamp);
+		Flight<T> running = flights.putIfAbsent(path, flight);
+		if (running != null && running.stamp == stamp) {
+			if (running.join())
+				return awaitFlight(flights, path, running, timer, deadline, copy);
+			// all the callers of the running read gave up
+			return read.apply(deadline);
+		}
+		// the running read started before a change, its result may be outdated
+		if (running != null && !flights.replace(path, running, flight))
+			return read.apply(deadline);
+
+		read.apply(new Deadline(0)).whenComplete((value, e) -> {
+			flights.remove(path, flight);
+			if (e == null)
+				flight.future.complete(value);
+			else
+				flight.future.completeExceptionally(e);
+		});
+		return awaitFlight(flights, path, flight, timer, deadline, copy);
+	}
+
+	/**
+	 * Returns a future of the result of the read, bounded by the deadline of
+	 * the caller, which reports the caller's timer when completed. The last
+	 * caller to give up removes the read from the flights.
+	 */
+	private static <T> CompletableFuture<T> awaitFlight(ConcurrentMap<String, Flight<T>> flights, String path,
+			Flight<T> flight, ZKOperationTimer timer, Deadline deadline, UnaryOperator<T> copy) {
+		CompletableFuture<T> shared = new CompletableFuture<>();
+		flight.future.whenComplete((value, e) -> {
+			if (e == null)
+				shared.complete(copy.apply(value));
+			else
+				shared.completeExceptionally(e);
+		});
+		expire(shared, deadline, () -> new ZKNamingException(timer.getOperation(), deadline.exceeded()));
+		shared.whenComplete((value, e) -> {
+			if (e != null)
+				timer.failed(e);
+			timer.stop();
+			if (flight.leave())
+				flights.remove(path, flight);
+		});
+		return shared;
+	}
+
+	/**
+	 * Gets a session, starts the call and wraps failures in ZKNamingException.
+	 * Per-operation sessions are closed when the call completes.
+	 */
+	private <T> CompletableFuture<T> callAsync(String fName, BiConsumer<ZooKeeper, CompletableFuture<T>> call) {
+		return callAsync(startTimer(fName), new Deadline(operationTimeout), false, call);
+	}
+
+	/** Performs callAsync, retrying transient errors with the retry policy. */
+	private <T> CompletableFuture<T> idempotentCallAsync(String fName,
+			BiConsumer<ZooKeeper, CompletableFuture<T>> call) {
+		return callAsync(startTimer(fName), new Deadline(operationTimeout), true, call);
+	}
+
+	/**
+	 * Performs callAsync, reporting the operation when it completes. The call
+	 * fails if not completed before the deadline; a reply that arrives later
+	 * is ignored. Idempotent calls that fail with a transient error are sent
+	 * again, as allowed by the retry policy and the deadline.
+	 */
+	private <T> CompletableFuture<T> callAsync(ZKOperationTimer timer, Deadline deadline, boolean idempotent,
+			BiConsumer<ZooKeeper, CompletableFuture<T>> call) {
+		final String fName = timer.getOperation();
+		CompletableFuture<T> result = new CompletableFuture<>();
+		expire(result, deadline, deadline::exceeded);
+		attemptAsync(timer, deadline, idempotent ? retryPolicy : ZKRetryPolicy.NONE, 1, call, result);
+
+		CompletableFuture<T> future = new CompletableFuture<>();
+		result.whenComplete((value, e) -> {
+			if (e == null) {
+				timer.stop();
+				future.complete(value);
+			} else {
+				ZKNamingException failure = timer.failed(new ZKNamingException(fName, e));
+				timer.stop();
+				future.completeExceptionally(failure);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Sends one attempt of the call, once the session is connected. A
+	 * retryable failure schedules the next attempt after the backoff delay,
+	 * unless the delay would pass the deadline. Per-operation sessions are
+	 * closed when the attempt completes, before the attempt is answered. The
+	 * time to open, wait for and close the session is measured as connection
+	 * time, as in the synchronous operations.
+	 */
+	private <T> void attemptAsync(ZKOperationTimer timer, Deadline deadline, ZKRetryPolicy policy, int attempt,
+			BiConsumer<ZooKeeper, CompletableFuture<T>> call, CompletableFuture<T> result) {
+		Session s;
+		final long connectStart = timer.startConnect();
+		try {
+			s = asyncSession();
+		} catch (Exception e) {
+			timer.endConnect(connectStart);
+			result.completeExceptionally(e);
+			return;
+		}
+
+		CompletableFuture<T> reply = new CompletableFuture<>();
+		Runnable send = () -> {
+			// the deadline may have passed while connecting
+			if (result.isDone())
+				return;
+			try {
+				call.accept(s.zoo, reply);
+			} catch (Exception e) {
+				reply.completeExceptionally(e);
+			}
+		};
+		if (s.isConnected()) {
+			timer.endConnect(connectStart);
+			send.run();
+		} else {
+			s.whenConnected(connectTimeout).whenComplete((v, e) -> {
+				timer.endConnect(connectStart);
+				if (e == null)
+					send.run();
+				else
+					reply.completeExceptionally(e);
+			});
+		}
+		// an attempt still pending at the deadline is abandoned
+		result.whenComplete((value, e) -> reply.cancel(false));
+
+		reply.whenComplete((value, e) -> {
+			if (persistentFlag) {
+				attemptCompleted(timer, deadline, policy, attempt, call, result, value, e);
+				return;
+			}
+			// closing blocks, so it is not done in the event thread
+			long closeStart = timer.startConnect();
+			CompletableFuture.runAsync(s::closeQuietly, blockingCalls).whenComplete((v, x) -> {
+				timer.endConnect(closeStart);
+				attemptCompleted(timer, deadline, policy, attempt, call, result, value, e);
+			});
+		});
+	}
+
+	/**
+	 * Answers the call with the outcome of an attempt, or schedules the next
+	 * attempt if the failure is retryable.
+	 */
+	private <T> void attemptCompleted(ZKOperationTimer timer, Deadline deadline, ZKRetryPolicy policy, int attempt,
+			BiConsumer<ZooKeeper, CompletableFuture<T>> call, CompletableFuture<T> result, T value, Throwable e) {
+		if (e == null) {
+			result.complete(value);
+			return;
+		}
+		if (e instanceof KeeperException && !result.isDone()
+				&& policy.shouldRetry(((KeeperException) e).code(), attempt)) {
+			long delay = policy.delayMillis(attempt);
+			if (delay < deadline.remainingMillis()) {
+				retries.incrementAndGet();
+				TIMEOUTS.schedule(() -> attemptAsync(timer, deadline, policy, attempt + 1, call, result), delay,
+						TimeUnit.MILLISECONDS);
+				return;
+			}
+		}
+		result.completeExceptionally(e);
+	}
+
+	/**
+	 * Creates the record zNode. On NONODE, the missing parents are created and
+	 * the zNode creation is retried; the requests are pipelined, because
+	 * ZooKeeper applies the requests of a session in order.
+	 */
+	private void createAsync(ZooKeeper zoo, ZKRecord record, CreateMode mode, boolean parentsCreated,
+			CompletableFuture<ZKRecord> result, Runnable onExists) {
+		final String path = record.getPath();
+		zoo.create(path, ZKRecordCodec.encode(record), ZooDefs.Ids.OPEN_ACL_UNSAFE, mode,
+				(rc, p, ctx, name) -> {
+					if (rc == Code.OK.intValue()) {
+						// sequential zNodes have a suffix appended to the path
+						invalidate(name);
+						result.complete(name.equals(path) ? record : new ZKRecord(name, record.getURI(), record.getMetadata()));
+					} else if (rc == Code.NONODE.intValue() && !parentsCreated) {
+						createParentsAsync(zoo, path);
+						createAsync(zoo, record, mode, true, result, onExists);
+					} else if (rc == Code.NODEEXISTS.intValue()) {
+						onExists.run();
+					} else {
+						result.completeExceptionally(keeperException(rc, p));
+					}
+				}, null);
+	}
+
+	/** Sends the creation of all parent zNodes, ignoring the ones that exist. */
+	private void createParentsAsync(ZooKeeper zoo, String path) {
+		String newpath = "";
+		String[] parts = path.split("/");
+		for (int i = 0; i < parts.length - 1; i++) {
+			if (parts[i].equals(""))
+				continue;
+			newpath = newpath + "/" + parts[i];
+			zoo.create(newpath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, (rc, p, ctx, name) -> {
+				// errors are reported by the creation of the child
+			}, null);
+		}
+	}
+
+	/**
+	 * Overwrites the record zNode data. On NONODE, the zNode is created, and if
+	 * it was meanwhile created by another client, the data is set again.
+	 */
+	private void setDataAsync(ZooKeeper zoo, ZKRecord record, boolean retry, CompletableFuture<ZKRecord> result) {
+		final String path = record.getPath();
+		zoo.setData(path, ZKRecordCodec.encode(record), -1, (rc, p, ctx, stat) -> {
+			if (rc == Code.OK.intValue()) {
+				invalidate(path);
+				result.complete(record);
+			} else if (rc == Code.NONODE.intValue() && retry) {
+				createAsync(zoo, record, CreateMode.PERSISTENT, false, result,
+						() -> setDataAsync(zoo, record, false, result));
+			} else {
+				result.completeExceptionally(keeperException(rc, p));
+			}
+		}, null);
+	}
+
+	/**
+	 * Reads the record of a zNode, setting a watch if requested, and stores it
+	 * in the cache, if provided. A missing zNode fails the result with
+	 * {@link ZKNodeNotFoundException}.
+	 */
+	private void getRecordAsync(ZooKeeper zoo, String path, boolean watch, ZKRecordCache c, long stamp,
+			CompletableFuture<ZKRecord> result) {
+		zoo.getData(path, watch, (rc, p, ctx, data, stat) -> {
+			if (rc == Code.NONODE.intValue()) {
+				result.completeExceptionally(new ZKNodeNotFoundException("zNode not found"));
+				return;
+			}
+			if (rc != Code.OK.intValue()) {
+				result.completeExceptionally(keeperException(rc, p));
+				return;
+			}
+			ZKRecord rec;
+			try {
+				rec = ZKRecordCodec.decode(path, data);
+			} catch (IllegalArgumentException e) {
+				result.completeExceptionally(e);
+				return;
+			}
+			if (c != null)
+				c.putRecord(path, rec, stamp);
+			result.complete(rec);
+		}, null);
+	}
+
+	/**
+	 * Requests the data and the children of the zNode, and then of each child.
+	 * Replies arrive in the order of the requests, so when the children reply
+	 * of the last zNode has arrived, all data replies have arrived as well.
+	 */
+	private void scanAsync(ZooKeeper zoo, String path, Consumer<ZKRecord> found, AtomicInteger pending,
+			CompletableFuture<Void> result) {
+		zoo.getData(path, false, (rc, p, ctx, data, stat) -> {
+			if (rc == Code.OK.intValue()) {
+				try {
+					found.accept(ZKRecordCodec.decode(path, data));
+				} catch (IllegalArgumentException e) {
+					result.completeExceptionally(e);
+				}
+			} else if (rc != Code.NONODE.intValue()) {
+				result.completeExceptionally(keeperException(rc, p));
+			}
+		}, null);
+		zoo.getChildren(path, false, (rc, p, ctx, names) -> {
+			if (rc == Code.OK.intValue()) {
+				pending.addAndGet(names.size());
+				String prefix = path.equals("/") ? path : path + "/";
+				for (String name : names)
+					scanAsync(zoo, prefix + name, found, pending, result);
+			} else if (rc != Code.NONODE.intValue()) {
+				result.completeExceptionally(keeperException(rc, p));
+			}
+			if (pending.decrementAndGet() == 0)
+				result.complete(null);
+		}, null);
+	}
+
+	/**
+	 * Requests the data of all children at once and passes the records to the
+	 * consumer when all replies have arrived. Errors fail the result future.
+	 * The data is watched by the provided watcher or, if null, by the default
+	 * watcher.
+	 */
+	private void getChildrenDataAsync(ZooKeeper zoo, String path, List<String> names, Watcher watcher,
+			CompletableFuture<?> result, Consumer<Collection<ZKRecord>> gathered) {
+		final int n = names.size();
+		if (n == 0) {
+			gathered.accept(new ArrayList<ZKRecord>());
+			return;
+		}
+
+		final ZKRecord[] records = new ZKRecord[n];
+		final AtomicInteger pending = new AtomicInteger(n);
+		for (int i = 0; i < n; i++) {
+			final int index = i;
+			final String childPath = path + "/" + names.get(i);
+			DataCallback callback = (rc, p, ctx, data, stat) -> {
+				if (rc == Code.OK.intValue()) {
+					try {
+						records[index] = ZKRecordCodec.decode(childPath, data);
+					} catch (IllegalArgumentException e) {
+						result.completeExceptionally(e);
+					}
+				} else if (rc != Code.NONODE.intValue())
+					result.completeExceptionally(keeperException(rc, p));
+
+				if (pending.decrementAndGet() == 0) {
+					List<ZKRecord> children = new ArrayList<ZKRecord>(n);
+					for (ZKRecord rec : records)
+						if (rec != null)
+							children.add(rec);
+					gathered.accept(children);
+				}
+			};
+			if (watcher == null)
+				zoo.getData(childPath, true, callback, null);
+			else
+				zoo.getData(childPath, watcher, callback, null);
+		}
+	}
+
+	/** Waits for an asynchronous operation and throws its failure. */
+	private static <T> T await(CompletableFuture<T> future, String fName) throws ZKNamingException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ZKNamingException)
+				throw (ZKNamingException) e.getCause();
+			throw new ZKNamingException(fName, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ZKNamingException(fName, e);
+		}
+	}
+
+	/**
+	 * Waits for a request of a synchronous operation, until the deadline.
+	 * 
+	 * @throws TimeoutException if the deadline has passed
+	 */
+	private static <T> T get(CompletableFuture<T> future, Deadline deadline)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (!deadline.isBounded())
+			return future.get();
+		try {
+			return future.get(Math.max(deadline.remainingMillis(), 0), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw deadline.exceeded();
+		}
+	}
+
+	/** Fails the future with the provided exception if not completed before the deadline. */
+	private static void expire(CompletableFuture<?> future, Deadline deadline, Supplier<? extends Throwable> failure) {
+		if (!deadline.isBounded() || future.isDone())
+			return;
+		long remaining = deadline.remainingMillis();
+		if (remaining <= 0) {
+			future.completeExceptionally(failure.get());
+			return;
+		}
+		ScheduledFuture<?> timeout = TIMEOUTS.schedule(() -> future.completeExceptionally(failure.get()), remaining,
+				TimeUnit.MILLISECONDS);
+		future.whenComplete((value, e) -> timeout.cancel(false));
+	}
+
+	private static <T> CompletableFuture<T> failedFuture(String fName, Throwable cause) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(new ZKNamingException(fName, cause));
+		return future;
+	}
+
+	private static KeeperException keeperException(int rc, String path) {
+		return KeeperException.create(Code.get(rc), path);
+	}
 
 }
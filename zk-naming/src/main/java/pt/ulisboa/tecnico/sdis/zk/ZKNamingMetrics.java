@@ -0,0 +1,50 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+/**
+ * Receives measurements of ZKNaming operations, to be aggregated and
+ * published by a metrics library. {@link JmxZKNamingMetrics} is the default
+ * implementation, which publishes the measurements through JMX.<br>
+ * <br>
+ * Methods are called concurrently, by the calling threads and by the
+ * ZooKeeper event thread, so they must be thread-safe and must not block.
+ * All methods do nothing by default.
+ */
+public interface ZKNamingMetrics {
+
+	/** Metrics that discard all measurements */
+	ZKNamingMetrics NONE = new ZKNamingMetrics() {
+	};
+
+	/**
+	 * Reports that a session has connected to the ensemble, after being
+	 * created or after losing its connection.
+	 *
+	 * @param nanos time taken to connect, in nanoseconds
+	 */
+	default void connectionEstablished(long nanos) {
+	}
+
+	/**
+	 * Reports a completed operation. The total latency is the sum of the
+	 * connection and request times.
+	 *
+	 * @param operation    operation name, e.g. "lookup"
+	 * @param connectNanos time spent opening, waiting for or closing the
+	 *                     session, in nanoseconds
+	 * @param requestNanos time spent in requests to the ensemble, in
+	 *                     nanoseconds
+	 * @param error        failure of the operation, or null if it succeeded
+	 */
+	default void operationCompleted(String operation, long connectNanos, long requestNanos, Throwable error) {
+	}
+
+	/**
+	 * Reports a cache access by an operation.
+	 *
+	 * @param operation operation name, e.g. "lookup"
+	 * @param hit       true if the result was served from the cache
+	 */
+	default void cacheAccessed(String operation, boolean hit) {
+	}
+
+}
@@ -0,0 +1,18 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+/**
+ * Class that represents a ZooKeeper naming exception caused by a missing
+ * zNode, so that callers can tell it apart from other failures.
+ */
+public class ZKNodeNotFoundException extends ZKNamingException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ZKNodeNotFoundException(String message) {
+		super(message);
+	}
+
+	public ZKNodeNotFoundException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
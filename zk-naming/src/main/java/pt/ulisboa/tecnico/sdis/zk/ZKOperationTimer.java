@@ -0,0 +1,66 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures one ZKNaming operation, separating the time spent with the session
+ * from the time spent in requests, and reports it to the metrics when
+ * stopped. Asynchronous operations start and end their connection phases in
+ * different threads, so each phase is identified by its start time. The
+ * operation is reported once, by the first call to stop.
+ */
+class ZKOperationTimer {
+
+	private final ZKNamingMetrics metrics;
+
+	private final String operation;
+
+	private final long start = System.nanoTime();
+
+	/* Accumulated time of the connection phases */
+	private final AtomicLong connectNanos = new AtomicLong();
+
+	private volatile Throwable error = null;
+
+	private final AtomicBoolean stopped = new AtomicBoolean();
+
+	ZKOperationTimer(ZKNamingMetrics metrics, String operation) {
+		this.metrics = metrics;
+		this.operation = operation;
+	}
+
+	String getOperation() {
+		return operation;
+	}
+
+	/** Marks the start of a connection phase, returning its start time. */
+	long startConnect() {
+		return System.nanoTime();
+	}
+
+	/** Marks the end of the connection phase started at the specified time. */
+	void endConnect(long connectStart) {
+		connectNanos.addAndGet(System.nanoTime() - connectStart);
+	}
+
+	void cacheAccessed(boolean hit) {
+		metrics.cacheAccessed(operation, hit);
+	}
+
+	/** Records the failure of the operation, and returns it to be thrown. */
+	<E extends Throwable> E failed(E e) {
+		error = e;
+		return e;
+	}
+
+	/** Reports the operation, unless already reported. */
+	void stop() {
+		if (!stopped.compareAndSet(false, true))
+			return;
+		long total = System.nanoTime() - start;
+		long connect = connectNanos.get();
+		metrics.operationCompleted(operation, connect, total - connect, error);
+	}
+
+}
@@ -1,7 +1,8 @@
 package pt.ulisboa.tecnico.sdis.zk;
 
 /**
- * Class that represents a ZooKeeper naming record.
+ * Class that represents a ZooKeeper naming record. Besides the service URI, a
+ * record carries routing metadata, see {@link ZKRecordMetadata}.
  * 
  * @author Rui Claro
  *
@@ -20,6 +21,11 @@ public class ZKRecord {
 	 */
 	private String URI;
 
+	/**
+	 * Routing metadata of the service
+	 */
+	private ZKRecordMetadata metadata;
+
 	/**
 	 * Constructs a ZooKeeper record with the provided path and service URI.
 	 * 
@@ -27,8 +33,21 @@ public class ZKRecord {
 	 * @param URI  Service URI in the format "host:port"
 	 */
 	public ZKRecord(String path, String URI) {
+		this(path, URI, ZKRecordMetadata.DEFAULT);
+	}
+
+	/**
+	 * Constructs a ZooKeeper record with the provided path, service URI and
+	 * routing metadata.
+	 * 
+	 * @param path     Path to the zNode
+	 * @param URI      Service URI in the format "host:port"
+	 * @param metadata Routing metadata, or null for the default metadata
+	 */
+	public ZKRecord(String path, String URI, ZKRecordMetadata metadata) {
 		this.path = path;
 		this.URI = URI;
+		this.metadata = (metadata == null) ? ZKRecordMetadata.DEFAULT : metadata;
 	}
 
 	/**
@@ -59,9 +78,29 @@ public class ZKRecord {
 		return URI;
 	}
 
+	/**
+	 * 
+	 * @return Routing metadata, never null
+	 */
+	public ZKRecordMetadata getMetadata() {
+		return metadata;
+	}
+
 	@Override
 	public String toString() {
-		return "ZKRecord: [path=" + path + ", URI=" + URI + "]";
+		if (metadata.equals(ZKRecordMetadata.DEFAULT))
+			return "ZKRecord: [path=" + path + ", URI=" + URI + "]";
+		return "ZKRecord: [path=" + path + ", URI=" + URI + ", metadata=" + metadata + "]";
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((path == null) ? 0 : path.hashCode());
+		result = prime * result + ((URI == null) ? 0 : URI.hashCode());
+		result = prime * result + metadata.hashCode();
+		return result;
 	}
 
 	@Override
@@ -89,7 +128,7 @@ public class ZKRecord {
 		} else if (!URI.equals(rec.URI))
 			return false;
 
-		return true;
+		return metadata.equals(rec.metadata);
 	}
 
 }
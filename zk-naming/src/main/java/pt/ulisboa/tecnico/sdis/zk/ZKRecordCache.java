@@ -0,0 +1,130 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client-side cache of ZooKeeper records, kept consistent by the watches that
+ * are registered when the records are read. Entries are removed when a watch
+ * event reports that the zNode, or the children of a zNode, have changed.
+ */
+class ZKRecordCache {
+
+	/* Records by zNode path */
+	private final ConcurrentMap<String, ZKRecord> records = new ConcurrentHashMap<>();
+
+	/* Child records by parent zNode path */
+	private final ConcurrentMap<String, List<ZKRecord>> children = new ConcurrentHashMap<>();
+
+	/*
+	 * Incremented on every invalidation, so that a read that overlaps an
+	 * invalidation does not store an outdated entry
+	 */
+	private final AtomicLong epoch = new AtomicLong();
+
+	/* Statistics */
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * Returns the current invalidation epoch. Must be read before querying
+	 * ZooKeeper and passed to the put methods.
+	 */
+	long stamp() {
+		return epoch.get();
+	}
+
+	/** Returns the cached record for the path, or null. */
+	ZKRecord getRecord(String path) {
+		return count(records.get(path));
+	}
+
+	/** Returns a copy of the cached children of the path, or null. */
+	Collection<ZKRecord> getChildren(String path) {
+		List<ZKRecord> list = count(children.get(path));
+		if (list == null)
+			return null;
+		return new ArrayList<ZKRecord>(list);
+	}
+
+	/** Stores a record read when the epoch had the provided stamp. */
+	void putRecord(String path, ZKRecord record, long stamp) {
+		records.put(path, record);
+		// an invalidation may have happened since the read
+		if (epoch.get() != stamp)
+			records.remove(path, record);
+	}
+
+	/** Stores the children read when the epoch had the provided stamp. */
+	void putChildren(String path, Collection<ZKRecord> list, long stamp) {
+		List<ZKRecord> value = Collections.unmodifiableList(new ArrayList<ZKRecord>(list));
+		children.put(path, value);
+		if (epoch.get() != stamp)
+			children.remove(path, value);
+	}
+
+	/** Invalidates the record of the path and the children of its parent. */
+	void invalidateRecord(String path) {
+		epoch.incrementAndGet();
+		remove(records, path);
+		remove(children, parentOf(path));
+	}
+
+	/** Invalidates the children of the path. */
+	void invalidateChildren(String path) {
+		epoch.incrementAndGet();
+		remove(children, path);
+	}
+
+	/** Invalidates all entries, e.g. when watches may have been lost. */
+	void clear() {
+		epoch.incrementAndGet();
+		invalidations.add(records.size() + children.size());
+		records.clear();
+		children.clear();
+	}
+
+	long getHitCount() {
+		return hits.sum();
+	}
+
+	long getMissCount() {
+		return misses.sum();
+	}
+
+	long getInvalidationCount() {
+		return invalidations.sum();
+	}
+
+	//
+	// private implementation
+	//
+
+	private <T> T count(T value) {
+		if (value == null)
+			misses.increment();
+		else
+			hits.increment();
+		return value;
+	}
+
+	private void remove(ConcurrentMap<String, ?> map, String key) {
+		if (key != null && map.remove(key) != null)
+			invalidations.increment();
+	}
+
+	private static String parentOf(String path) {
+		int index = path.lastIndexOf('/');
+		if (index <= 0)
+			return (index == 0 && path.length() > 1) ? "/" : null;
+		return path.substring(0, index);
+	}
+
+}
@@ -0,0 +1,210 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding of records in zNode data. Records with default metadata are
+ * encoded as the plain "host:port" text, as registered by older clients, so
+ * that they can still read them. Records with metadata use a compact binary
+ * encoding:
+ *
+ * <pre>
+ * 0x00           marker, text data never starts with a NUL character
+ * version        1 byte, currently 1
+ * flags          1 byte, the metadata fields present
+ * URI            varint length and UTF-8 bytes
+ * weight         varint, if flagged
+ * capacity       varint, if flagged
+ * health         1 byte, if flagged
+ * zone           varint length and UTF-8 bytes, if flagged
+ * protocol       varint length and UTF-8 bytes, if flagged
+ * </pre>
+ *
+ * Fields left with their default value are omitted. New fields are given
+ * higher flags and are appended, so readers decode the fields they know and
+ * ignore the rest; the version changes only if the layout becomes
+ * incompatible. Varints are unsigned LEB128, 7 bits per byte.<br>
+ * <br>
+ * Data is decoded in place: besides the record itself, only its strings and,
+ * for binary data, its metadata are allocated.
+ */
+final class ZKRecordCodec {
+
+	static final byte MARKER = 0;
+	static final byte VERSION = 1;
+
+	static final int WEIGHT = 1;
+	static final int CAPACITY = 1 << 1;
+	static final int HEALTH = 1 << 2;
+	static final int ZONE = 1 << 3;
+	static final int PROTOCOL = 1 << 4;
+
+	private ZKRecordCodec() {
+	}
+
+	/**
+	 * Encodes the URI and metadata of the record.
+	 *
+	 * @param record record to encode
+	 * @return zNode data
+	 */
+	static byte[] encode(ZKRecord record) {
+		byte[] uri = bytes(record.getURI());
+		ZKRecordMetadata metadata = record.getMetadata();
+		if (metadata.equals(ZKRecordMetadata.DEFAULT))
+			return uri;
+
+		ZKRecordMetadata defaults = ZKRecordMetadata.DEFAULT;
+		byte[] zone = bytes(metadata.getZone());
+		byte[] protocol = bytes(metadata.getProtocol());
+		int flags = 0;
+		int size = 3 + varintSize(uri.length) + uri.length;
+		if (metadata.getWeight() != defaults.getWeight()) {
+			flags |= WEIGHT;
+			size += varintSize(metadata.getWeight());
+		}
+		if (metadata.getCapacity() != defaults.getCapacity()) {
+			flags |= CAPACITY;
+			size += varintSize(metadata.getCapacity());
+		}
+		if (metadata.getHealth() != defaults.getHealth()) {
+			flags |= HEALTH;
+			size += 1;
+		}
+		if (zone.length > 0) {
+			flags |= ZONE;
+			size += varintSize(zone.length) + zone.length;
+		}
+		if (protocol.length > 0) {
+			flags |= PROTOCOL;
+			size += varintSize(protocol.length) + protocol.length;
+		}
+
+		byte[] data = new byte[size];
+		data[0] = MARKER;
+		data[1] = VERSION;
+		data[2] = (byte) flags;
+		int pos = putBytes(data, 3, uri);
+		if ((flags & WEIGHT) != 0)
+			pos = putVarint(data, pos, metadata.getWeight());
+		if ((flags & CAPACITY) != 0)
+			pos = putVarint(data, pos, metadata.getCapacity());
+		if ((flags & HEALTH) != 0)
+			data[pos++] = (byte) metadata.getHealth();
+		if ((flags & ZONE) != 0)
+			pos = putBytes(data, pos, zone);
+		if ((flags & PROTOCOL) != 0)
+			pos = putBytes(data, pos, protocol);
+		return data;
+	}
+
+	/**
+	 * Decodes zNode data, either plain "host:port" text or binary.
+	 *
+	 * @param path path of the zNode
+	 * @param data zNode data, may be null
+	 * @return Record with the path, URI and metadata
+	 * @throws IllegalArgumentException if the binary data is malformed or of
+	 *                                  an unsupported version
+	 */
+	static ZKRecord decode(String path, byte[] data) {
+		if (data == null || data.length == 0)
+			return new ZKRecord(path, "");
+		if (data[0] != MARKER)
+			return new ZKRecord(path, new String(data, StandardCharsets.UTF_8));
+
+		try {
+			if (data[1] != VERSION)
+				throw new IllegalArgumentException("Unsupported record version " + data[1] + "!");
+			int flags = data[2];
+			int pos = 3;
+
+			int length = getVarint(data, pos);
+			pos += varintSize(length);
+			String uri = new String(data, pos, length, StandardCharsets.UTF_8);
+			pos += length;
+
+			ZKRecordMetadata defaults = ZKRecordMetadata.DEFAULT;
+			int weight = defaults.getWeight();
+			int capacity = defaults.getCapacity();
+			int health = defaults.getHealth();
+			String zone = null;
+			String protocol = null;
+			if ((flags & WEIGHT) != 0) {
+				weight = getVarint(data, pos);
+				pos += varintSize(weight);
+			}
+			if ((flags & CAPACITY) != 0) {
+				capacity = getVarint(data, pos);
+				pos += varintSize(capacity);
+			}
+			if ((flags & HEALTH) != 0)
+				health = data[pos++] & 0xFF;
+			if ((flags & ZONE) != 0) {
+				length = getVarint(data, pos);
+				pos += varintSize(length);
+				zone = new String(data, pos, length, StandardCharsets.UTF_8);
+				pos += length;
+			}
+			if ((flags & PROTOCOL) != 0) {
+				length = getVarint(data, pos);
+				pos += varintSize(length);
+				protocol = new String(data, pos, length, StandardCharsets.UTF_8);
+				pos += length;
+			}
+			return new ZKRecord(path, uri, ZKRecordMetadata.of(weight, zone, protocol, capacity, health));
+
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Malformed record data!", e);
+		}
+	}
+
+	//
+	// private implementation
+	//
+
+	private static byte[] bytes(String string) {
+		return (string == null) ? new byte[0] : string.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** Returns the number of bytes of the minimal encoding of the value. */
+	private static int varintSize(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0)
+			size++;
+		return size;
+	}
+
+	/** Writes the value and returns the next position. */
+	private static int putVarint(byte[] data, int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			data[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[pos++] = (byte) value;
+		return pos;
+	}
+
+	/** Writes the length and the bytes and returns the next position. */
+	private static int putBytes(byte[] data, int pos, byte[] bytes) {
+		pos = putVarint(data, pos, bytes.length);
+		System.arraycopy(bytes, 0, data, pos, bytes.length);
+		return pos + bytes.length;
+	}
+
+	/**
+	 * Reads a value written by putVarint. The caller advances the position by
+	 * the size of the value, so that no position object is allocated.
+	 */
+	private static int getVarint(byte[] data, int pos) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = data[pos++];
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint!");
+	}
+
+}
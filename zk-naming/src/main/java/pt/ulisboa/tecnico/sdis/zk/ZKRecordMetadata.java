@@ -0,0 +1,158 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+import java.util.Objects;
+
+/**
+ * Routing metadata of a ZooKeeper naming record: weight, availability zone,
+ * protocol, capacity and health of the endpoint. Metadata is immutable; the
+ * "with" methods return a copy with one value changed, e.g.
+ * {@code ZKRecordMetadata.DEFAULT.withWeight(10).withZone("eu-west-1a")}.
+ */
+public final class ZKRecordMetadata {
+
+	/** Metadata of records without metadata, e.g. registered as "host:port" */
+	public static final ZKRecordMetadata DEFAULT = new ZKRecordMetadata(1, null, null, 0, 100);
+
+	/* Relative weight of the endpoint when balancing load */
+	private final int weight;
+
+	/* Availability zone, null if unknown */
+	private final String zone;
+
+	/* Protocol served by the endpoint, e.g. "grpc", null if unknown */
+	private final String protocol;
+
+	/* Capacity of the endpoint, e.g. maximum concurrent requests, 0 if unknown */
+	private final int capacity;
+
+	/* Health score, from 0 (unavailable) to 100 (healthy) */
+	private final int health;
+
+	private ZKRecordMetadata(int weight, String zone, String protocol, int capacity, int health) {
+		if (weight < 0)
+			throw new IllegalArgumentException("Weight cannot be negative!");
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity cannot be negative!");
+		if (health < 0 || health > 100)
+			throw new IllegalArgumentException("Health must be between 0 and 100!");
+		this.weight = weight;
+		this.zone = (zone == null || zone.isEmpty()) ? null : zone;
+		this.protocol = (protocol == null || protocol.isEmpty()) ? null : protocol;
+		this.capacity = capacity;
+		this.health = health;
+	}
+
+	/**
+	 *
+	 * @return Relative weight of the endpoint, 1 by default
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 *
+	 * @return Availability zone, or null if unknown
+	 */
+	public String getZone() {
+		return zone;
+	}
+
+	/**
+	 *
+	 * @return Protocol served by the endpoint, or null if unknown
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 *
+	 * @return Capacity of the endpoint, or 0 if unknown
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 *
+	 * @return Health score, from 0 (unavailable) to 100 (healthy, the default)
+	 */
+	public int getHealth() {
+		return health;
+	}
+
+	/**
+	 *
+	 * @param weight relative weight, zero or positive
+	 * @return Copy of the metadata with the weight
+	 */
+	public ZKRecordMetadata withWeight(int weight) {
+		return new ZKRecordMetadata(weight, zone, protocol, capacity, health);
+	}
+
+	/**
+	 *
+	 * @param zone availability zone, or null if unknown
+	 * @return Copy of the metadata with the zone
+	 */
+	public ZKRecordMetadata withZone(String zone) {
+		return new ZKRecordMetadata(weight, zone, protocol, capacity, health);
+	}
+
+	/**
+	 *
+	 * @param protocol protocol served by the endpoint, or null if unknown
+	 * @return Copy of the metadata with the protocol
+	 */
+	public ZKRecordMetadata withProtocol(String protocol) {
+		return new ZKRecordMetadata(weight, zone, protocol, capacity, health);
+	}
+
+	/**
+	 *
+	 * @param capacity capacity of the endpoint, or 0 if unknown
+	 * @return Copy of the metadata with the capacity
+	 */
+	public ZKRecordMetadata withCapacity(int capacity) {
+		return new ZKRecordMetadata(weight, zone, protocol, capacity, health);
+	}
+
+	/**
+	 *
+	 * @param health health score, from 0 to 100
+	 * @return Copy of the metadata with the health score
+	 */
+	public ZKRecordMetadata withHealth(int health) {
+		return new ZKRecordMetadata(weight, zone, protocol, capacity, health);
+	}
+
+	/** Creates metadata with all values at once, used when decoding. */
+	static ZKRecordMetadata of(int weight, String zone, String protocol, int capacity, int health) {
+		return new ZKRecordMetadata(weight, zone, protocol, capacity, health);
+	}
+
+	@Override
+	public String toString() {
+		return "ZKRecordMetadata: [weight=" + weight + ", zone=" + zone + ", protocol=" + protocol + ", capacity="
+				+ capacity + ", health=" + health + "]";
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(weight, zone, protocol, capacity, health);
+	}
+
+	@Override
+	public boolean equals(Object object) {
+		if (this == object)
+			return true;
+		if (object == null || this.getClass() != object.getClass())
+			return false;
+
+		ZKRecordMetadata other = (ZKRecordMetadata) object;
+		return weight == other.weight && capacity == other.capacity && health == other.health
+				&& Objects.equals(zone, other.zone) && Objects.equals(protocol, other.protocol);
+	}
+
+}
@@ -0,0 +1,384 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+
+/**
+ * Client-side load balancer over the child nodes of a service path, e.g. the
+ * replicas registered under "/service". The children are listed once and kept
+ * up to date by watches, so that each call to {@link #resolve()} chooses one
+ * endpoint locally, without contacting ZooKeeper.<br>
+ * <br>
+ * The endpoint is chosen by a {@link Policy}. Selection does not take locks:
+ * the endpoints are kept in an immutable list that is replaced when the
+ * children change.
+ */
+public class ZKResolver implements AutoCloseable {
+
+	/**
+	 * An endpoint available for selection, with the number of outstanding
+	 * requests acquired with {@link ZKResolver#acquire()}.
+	 */
+	public static final class Endpoint {
+
+		private final ZKRecord record;
+
+		private final AtomicInteger outstanding = new AtomicInteger();
+
+		Endpoint(ZKRecord record) {
+			this.record = record;
+		}
+
+		/**
+		 *
+		 * @return Record of the endpoint
+		 */
+		public ZKRecord getRecord() {
+			return record;
+		}
+
+		/**
+		 *
+		 * @return Number of acquired requests not yet released
+		 */
+		public int getOutstanding() {
+			return outstanding.get();
+		}
+
+		/**
+		 * Reports that a request acquired with {@link ZKResolver#acquire()} has
+		 * completed.
+		 */
+		public void release() {
+			outstanding.decrementAndGet();
+		}
+
+		@Override
+		public String toString() {
+			return "Endpoint: [record=" + record + ", outstanding=" + outstanding.get() + "]";
+		}
+	}
+
+	/**
+	 * Policy to choose one endpoint. Implementations are called concurrently
+	 * and should not block.
+	 */
+	@FunctionalInterface
+	public interface Policy {
+
+		/**
+		 * Chooses one endpoint.
+		 *
+		 * @param endpoints available endpoints, never empty
+		 * @return chosen endpoint
+		 */
+		Endpoint select(List<Endpoint> endpoints);
+
+		/**
+		 * @return Policy that chooses each endpoint in turn
+		 */
+		static Policy roundRobin() {
+			final AtomicInteger next = new AtomicInteger();
+			return endpoints -> endpoints.get(Math.floorMod(next.getAndIncrement(), endpoints.size()));
+		}
+
+		/**
+		 * @return Policy that chooses an endpoint at random
+		 */
+		static Policy random() {
+			return endpoints -> endpoints.get(ThreadLocalRandom.current().nextInt(endpoints.size()));
+		}
+
+		/**
+		 * @return Policy that chooses an endpoint at random, in proportion to
+		 *         the weight in its record metadata; if all weights are zero,
+		 *         any endpoint may be chosen
+		 */
+		static Policy weightedRandom() {
+			return endpoints -> {
+				long total = 0;
+				for (Endpoint endpoint : endpoints)
+					total += endpoint.getRecord().getMetadata().getWeight();
+				if (total == 0)
+					return endpoints.get(ThreadLocalRandom.current().nextInt(endpoints.size()));
+
+				long target = ThreadLocalRandom.current().nextLong(total);
+				for (Endpoint endpoint : endpoints) {
+					target -= endpoint.getRecord().getMetadata().getWeight();
+					if (target < 0)
+						return endpoint;
+				}
+				return endpoints.get(endpoints.size() - 1);
+			};
+		}
+
+		/**
+		 * @return Policy that picks two endpoints at random and chooses the one
+		 *         with less outstanding requests
+		 */
+		static Policy powerOfTwoChoices() {
+			return endpoints -> {
+				int n = endpoints.size();
+				if (n == 1)
+					return endpoints.get(0);
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				int i = random.nextInt(n);
+				int j = random.nextInt(n - 1);
+				if (j >= i)
+					j++;
+				Endpoint a = endpoints.get(i);
+				Endpoint b = endpoints.get(j);
+				return (b.getOutstanding() < a.getOutstanding()) ? b : a;
+			};
+		}
+
+		/**
+		 * @return Policy that chooses the endpoint with less outstanding
+		 *         requests, starting the search at a random endpoint to break
+		 *         ties
+		 */
+		static Policy leastOutstanding() {
+			return endpoints -> {
+				int n = endpoints.size();
+				int start = ThreadLocalRandom.current().nextInt(n);
+				Endpoint best = null;
+				for (int k = 0; k < n; k++) {
+					Endpoint candidate = endpoints.get((start + k) % n);
+					if (best == null || candidate.getOutstanding() < best.getOutstanding())
+						best = candidate;
+				}
+				return best;
+			};
+		}
+	}
+
+	/* Naming client, with persistent session */
+	private final ZKNaming zkNaming;
+
+	/* Path of the parent zNode */
+	private final String path;
+
+	/* Endpoint selection policy */
+	private final Policy policy;
+
+	/* Current endpoints, replaced as a whole when the children change */
+	private volatile List<Endpoint> endpoints = Collections.emptyList();
+
+	/* Is a refresh in progress? */
+	private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+	/* Has a change been notified during the refresh in progress? */
+	private volatile boolean stale = false;
+
+	/* Has the last refresh failed, possibly without setting the watches? */
+	private volatile boolean failed = false;
+
+	/* Has the resolver been closed? */
+	private volatile boolean closed = false;
+
+	/* Watches the parent children, or its creation, and the child data */
+	private final Watcher watcher = new Watcher() {
+		@Override
+		public void process(WatchedEvent we) {
+			// watches are lost when the session expires
+			if (we.getType() != EventType.None || we.getState() == KeeperState.Expired)
+				refresh();
+		}
+	};
+
+	//
+	// Constructors
+	//
+
+	/**
+	 * Creates a resolver for the children of the specified path, and lists
+	 * them.
+	 *
+	 * @param zkNaming naming client, with the persistent session option
+	 * @param path     Path to the parent zNode
+	 * @param policy   Endpoint selection policy
+	 * @throws ZKNamingException if the children cannot be listed
+	 */
+	public ZKResolver(ZKNaming zkNaming, String path, Policy policy) throws ZKNamingException {
+		if (zkNaming == null)
+			throw new IllegalArgumentException("ZKNaming cannot be null!");
+		if (!zkNaming.isPersistentSession())
+			throw new IllegalArgumentException("ZKNaming must have the persistent session option!");
+		if (path == null)
+			throw new IllegalArgumentException("Path cannot be null!");
+		if (policy == null)
+			throw new IllegalArgumentException("Policy cannot be null!");
+
+		this.zkNaming = zkNaming;
+		this.path = path;
+		this.policy = policy;
+
+		refreshing.set(true);
+		try {
+			update(zkNaming.listRecordsAsync(path, watcher).get());
+		} catch (Exception e) {
+			throw new ZKNamingException("resolver", e);
+		} finally {
+			refreshing.set(false);
+		}
+	}
+
+	/**
+	 * Creates a round-robin resolver for the children of the specified path.
+	 *
+	 * @param zkNaming naming client, with the persistent session option
+	 * @param path     Path to the parent zNode
+	 * @throws ZKNamingException if the children cannot be listed
+	 */
+	public ZKResolver(ZKNaming zkNaming, String path) throws ZKNamingException {
+		this(zkNaming, path, Policy.roundRobin());
+	}
+
+	//
+	// Resolution
+	//
+
+	/**
+	 * Chooses one endpoint among the children of the path.
+	 *
+	 * @return Record of the chosen endpoint
+	 * @throws ZKNamingException if there are no endpoints
+	 */
+	public ZKRecord resolve() throws ZKNamingException {
+		return select().getRecord();
+	}
+
+	/**
+	 * Chooses one endpoint and counts a request as outstanding on it, until
+	 * {@link Endpoint#release()} is called. Used with policies that consider
+	 * outstanding requests.
+	 *
+	 * @return Chosen endpoint
+	 * @throws ZKNamingException if there are no endpoints
+	 */
+	public Endpoint acquire() throws ZKNamingException {
+		Endpoint endpoint = select();
+		endpoint.outstanding.incrementAndGet();
+		return endpoint;
+	}
+
+	/**
+	 * Returns the current endpoint records.
+	 *
+	 * @return Collection of records matching the children of the path
+	 */
+	public Collection<ZKRecord> getRecords() {
+		List<ZKRecord> records = new ArrayList<ZKRecord>();
+		for (Endpoint endpoint : endpoints)
+			records.add(endpoint.getRecord());
+		return records;
+	}
+
+	/**
+	 *
+	 * @return Path to the parent zNode
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Stops following changes and removes the watches. The naming client is
+	 * not closed.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		zkNaming.removeWatchAsync(path, watcher);
+		for (Endpoint endpoint : endpoints)
+			zkNaming.removeWatchAsync(endpoint.getRecord().getPath(), watcher);
+	}
+
+	//
+	// private implementation
+	//
+
+	private Endpoint select() throws ZKNamingException {
+		if (failed)
+			refresh();
+		List<Endpoint> current = endpoints;
+		if (current.isEmpty())
+			throw new ZKNamingException("No endpoints available for " + path);
+		return policy.select(current);
+	}
+
+	/**
+	 * Lists the children again, setting new watches. Only one refresh runs at a
+	 * time; a change notified meanwhile causes another refresh at the end. If
+	 * the parent zNode was deleted, there are no endpoints, and a watch is set
+	 * to list the children again when the parent is created.
+	 */
+	private void refresh() {
+		if (closed)
+			return;
+		stale = true;
+		if (!refreshing.compareAndSet(false, true))
+			return;
+		stale = false;
+
+		zkNaming.listRecordsAsync(path, watcher).whenComplete((records, e) -> {
+			if (e == null) {
+				update(records);
+				refreshed(null);
+			} else if (isNotFound(e)) {
+				update(Collections.<ZKRecord>emptyList());
+				zkNaming.existsAsync(path, watcher).whenComplete((exists, x) -> {
+					// created meanwhile, the creation is not notified
+					if (x == null && exists)
+						stale = true;
+					refreshed(x);
+				});
+			} else {
+				refreshed(e);
+			}
+		});
+	}
+
+	/** Ends the refresh, and starts another if a change was notified meanwhile. */
+	private void refreshed(Throwable e) {
+		failed = (e != null);
+		refreshing.set(false);
+		if (stale)
+			refresh();
+	}
+
+	/** Checks if the failure reports a missing zNode. */
+	private static boolean isNotFound(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause())
+			if (cause instanceof ZKNodeNotFoundException)
+				return true;
+		return false;
+	}
+
+	/** Replaces the endpoints, keeping the counters of unchanged records. */
+	private void update(Collection<ZKRecord> records) {
+		Map<ZKRecord, Endpoint> previous = new HashMap<ZKRecord, Endpoint>();
+		for (Endpoint endpoint : endpoints)
+			previous.put(endpoint.getRecord(), endpoint);
+
+		List<Endpoint> updated = new ArrayList<Endpoint>(records.size());
+		for (ZKRecord record : records) {
+			Endpoint endpoint = previous.get(record);
+			updated.add((endpoint != null) ? endpoint : new Endpoint(record));
+		}
+		endpoints = Collections.unmodifiableList(updated);
+	}
+
+}
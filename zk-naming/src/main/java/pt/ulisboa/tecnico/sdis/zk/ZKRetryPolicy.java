@@ -0,0 +1,137 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.zookeeper.KeeperException.Code;
+
+/**
+ * Policy to retry the idempotent operations of {@link ZKNaming} that fail with
+ * a transient error, such as a lost connection. Attempts are spaced by
+ * exponential backoff with full jitter: the delay after the n-th attempt is
+ * random between 0 and min(maxDelay, baseDelay * 2^(n-1)), so that clients that
+ * failed together do not retry together. Policies are immutable; the "with"
+ * methods return a copy with one value changed, e.g.
+ * {@code ZKRetryPolicy.exponentialBackoff(50, 1000).withMaxAttempts(5)}.
+ */
+public final class ZKRetryPolicy {
+
+	/** Codes of transient errors: the connection was lost, the request timed out, or the session expired */
+	public static final Set<Code> TRANSIENT_CODES = Collections
+			.unmodifiableSet(EnumSet.of(Code.CONNECTIONLOSS, Code.OPERATIONTIMEOUT, Code.SESSIONEXPIRED));
+
+	/** Policy that does not retry */
+	public static final ZKRetryPolicy NONE = new ZKRetryPolicy(1, 0, 0, EnumSet.noneOf(Code.class));
+
+	/* Default number of attempts, including the first */
+	private static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	/* Maximum number of attempts, including the first */
+	private final int maxAttempts;
+
+	/* Delay ceiling after the first attempt, in milliseconds */
+	private final long baseDelayMillis;
+
+	/* Maximum delay ceiling, in milliseconds */
+	private final long maxDelayMillis;
+
+	/* Error codes that are retried */
+	private final Set<Code> retryableCodes;
+
+	private ZKRetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, Set<Code> retryableCodes) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("Maximum attempts must be positive!");
+		if (baseDelayMillis < 0)
+			throw new IllegalArgumentException("Base delay cannot be negative!");
+		if (maxDelayMillis < baseDelayMillis)
+			throw new IllegalArgumentException("Maximum delay cannot be shorter than base delay!");
+		if (retryableCodes == null)
+			throw new IllegalArgumentException("Retryable codes cannot be null!");
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.retryableCodes = retryableCodes.isEmpty() ? Collections.<Code>emptySet()
+				: Collections.unmodifiableSet(EnumSet.copyOf(retryableCodes));
+	}
+
+	/**
+	 * Creates a policy that makes up to 3 attempts of the operations that fail
+	 * with transient errors.
+	 *
+	 * @param baseDelayMillis delay ceiling after the first attempt, in
+	 *                        milliseconds
+	 * @param maxDelayMillis  maximum delay ceiling, in milliseconds
+	 * @return Retry policy
+	 */
+	public static ZKRetryPolicy exponentialBackoff(long baseDelayMillis, long maxDelayMillis) {
+		return new ZKRetryPolicy(DEFAULT_MAX_ATTEMPTS, baseDelayMillis, maxDelayMillis, TRANSIENT_CODES);
+	}
+
+	/**
+	 * @param maxAttempts maximum number of attempts, including the first
+	 * @return Copy of the policy with the maximum attempts
+	 */
+	public ZKRetryPolicy withMaxAttempts(int maxAttempts) {
+		return new ZKRetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, retryableCodes);
+	}
+
+	/**
+	 * @param retryableCodes error codes that are retried
+	 * @return Copy of the policy with the retryable codes
+	 */
+	public ZKRetryPolicy withRetryableCodes(Set<Code> retryableCodes) {
+		return new ZKRetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, retryableCodes);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public long getBaseDelayMillis() {
+		return baseDelayMillis;
+	}
+
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	public Set<Code> getRetryableCodes() {
+		return retryableCodes;
+	}
+
+	/**
+	 * Checks if an operation that failed with the code on the specified
+	 * attempt should be attempted again.
+	 *
+	 * @param code    error code of the failure
+	 * @param attempt number of the failed attempt, starting at 1
+	 * @return should the operation be retried?
+	 */
+	public boolean shouldRetry(Code code, int attempt) {
+		return attempt < maxAttempts && retryableCodes.contains(code);
+	}
+
+	/**
+	 * Returns the delay before the next attempt, random between 0 and the
+	 * ceiling of the failed attempt.
+	 *
+	 * @param attempt number of the failed attempt, starting at 1
+	 * @return delay in milliseconds
+	 */
+	public long delayMillis(int attempt) {
+		int doublings = Math.max(attempt - 1, 0);
+		long ceiling = maxDelayMillis;
+		if (doublings < Long.SIZE - 1 && baseDelayMillis <= (maxDelayMillis >> doublings))
+			ceiling = baseDelayMillis << doublings;
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	@Override
+	public String toString() {
+		return "ZKRetryPolicy [maxAttempts=" + maxAttempts + ", baseDelayMillis=" + baseDelayMillis
+				+ ", maxDelayMillis=" + maxDelayMillis + ", retryableCodes=" + retryableCodes + "]";
+	}
+
+}
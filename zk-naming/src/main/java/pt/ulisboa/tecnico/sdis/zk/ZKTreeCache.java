@@ -0,0 +1,338 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+
+/**
+ * In-memory copy of all the records below a root path, e.g. "/services", so
+ * that lookups and listings under the root are local reads, without contacting
+ * ZooKeeper.<br>
+ * <br>
+ * The subtree is loaded with one parallel scan and then kept up to date by a
+ * persistent recursive watch on the root, which notifies every creation,
+ * deletion and data change below it. The records are kept in a trie with one
+ * node per path segment. Reads do not take locks; the trie is changed only by
+ * the ZooKeeper event thread, in the order in which the scan replies and the
+ * watch events arrive, so a change is never overwritten by older data.<br>
+ * <br>
+ * Changes made while the client is disconnected are not notified, and watches
+ * are lost when the session expires, so in both cases the subtree is loaded
+ * again into a new trie, which replaces the current one when complete.
+ */
+public class ZKTreeCache implements AutoCloseable {
+
+	/** Trie node, for one path segment. */
+	private static final class Node {
+		/* Record of the zNode, null if not read yet */
+		volatile ZKRecord record;
+
+		/* Child nodes by path segment */
+		final ConcurrentMap<String, Node> children = new ConcurrentHashMap<>();
+	}
+
+	/** A trie loaded by one scan, and the watcher that keeps it up to date. */
+	private final class Generation implements Watcher {
+
+		final Node root = new Node();
+
+		@Override
+		public void process(WatchedEvent we) {
+			if (closed)
+				return;
+			if (we.getType() == EventType.None) {
+				stateChanged(we.getState());
+				return;
+			}
+
+			String changed = we.getPath();
+			if (we.getType() == EventType.NodeDeleted) {
+				remove(changed);
+			} else if (we.getType() == EventType.NodeCreated || we.getType() == EventType.NodeDataChanged) {
+				// the read is answered after the events received before it
+				zkNaming.readAsync(changed).whenComplete((record, e) -> {
+					if (record != null)
+						put(record);
+					// a deleted zNode is removed by its own event
+				});
+			}
+		}
+
+		void put(ZKRecord record) {
+			Node node = root;
+			String path = record.getPath();
+			int start = path.equals(ZKTreeCache.this.path) ? path.length() : rootPath.length();
+			while (start < path.length()) {
+				int end = path.indexOf('/', start + 1);
+				if (end < 0)
+					end = path.length();
+				node = node.children.computeIfAbsent(path.substring(start + 1, end), k -> new Node());
+				start = end;
+			}
+			node.record = record;
+		}
+
+		void remove(String path) {
+			if (path.equals(ZKTreeCache.this.path)) {
+				root.record = null;
+				return;
+			}
+			Node parent = find(root, parentOf(path));
+			if (parent == null)
+				return;
+			String name = path.substring(path.lastIndexOf('/') + 1);
+			Node node = parent.children.get(name);
+			if (node == null)
+				return;
+			node.record = null;
+			// zNodes are deleted after their children
+			if (node.children.isEmpty())
+				parent.children.remove(name, node);
+		}
+	}
+
+	/* Naming client, with persistent session */
+	private final ZKNaming zkNaming;
+
+	/* Path of the root zNode */
+	private final String path;
+
+	/* Prefix of the paths below the root, without the last slash */
+	private final String rootPath;
+
+	/* Trie used by reads, replaced as a whole when loaded again */
+	private volatile Generation current;
+
+	/* Generation being loaded, which receives the changes meanwhile */
+	private volatile Generation loading;
+
+	/* Is a load in progress? */
+	private final AtomicBoolean reloading = new AtomicBoolean(false);
+
+	/* Has the client disconnected since the last load? */
+	private volatile boolean disconnected = false;
+
+	/* Has the last load failed? */
+	private volatile boolean failed = false;
+
+	/* Has the cache been closed? */
+	private volatile boolean closed = false;
+
+	//
+	// Constructors
+	//
+
+	/**
+	 * Creates a cache of the records below the specified path, and loads them.
+	 * The root zNode does not need to exist; its records are cached once
+	 * created.
+	 *
+	 * @param zkNaming naming client, with the persistent session option
+	 * @param path     Path to the root zNode
+	 * @throws ZKNamingException if the records cannot be loaded
+	 */
+	public ZKTreeCache(ZKNaming zkNaming, String path) throws ZKNamingException {
+		if (zkNaming == null)
+			throw new IllegalArgumentException("ZKNaming cannot be null!");
+		if (!zkNaming.isPersistentSession())
+			throw new IllegalArgumentException("ZKNaming must have the persistent session option!");
+		if (path == null)
+			throw new IllegalArgumentException("Path cannot be null!");
+		if (!path.startsWith("/"))
+			throw new IllegalArgumentException("Path must start with '/'!");
+
+		this.zkNaming = zkNaming;
+		this.path = path;
+		this.rootPath = path.equals("/") ? "" : path;
+
+		Generation generation = new Generation();
+		reloading.set(true);
+		try {
+			loading = generation;
+			load(generation).get();
+			current = generation;
+		} catch (Exception e) {
+			zkNaming.removeWatchAsync(path, generation);
+			throw new ZKNamingException("tree", e);
+		} finally {
+			loading = null;
+			reloading.set(false);
+		}
+	}
+
+	//
+	// Local reads
+	//
+
+	/**
+	 * Returns the record associated with the specified path, below the root.
+	 *
+	 * @param path Path to the zNode
+	 * @return Record object with associated path and URI
+	 * @throws ZKNodeNotFoundException if the zNode is not found
+	 */
+	public ZKRecord lookup(String path) throws ZKNamingException {
+		Node node = find(current().root, path);
+		ZKRecord record = (node == null) ? null : node.record;
+		if (record == null)
+			throw new ZKNodeNotFoundException("zNode not found");
+		return record;
+	}
+
+	/**
+	 * Returns the records of the child nodes of a zNode below the root.
+	 *
+	 * @param path Path to the parent zNode
+	 * @return Collection of records matching the children of provided zNode
+	 * @throws ZKNodeNotFoundException if the zNode is not found
+	 */
+	public Collection<ZKRecord> listRecords(String path) throws ZKNamingException {
+		Node node = find(current().root, path);
+		if (node == null || node.record == null)
+			throw new ZKNodeNotFoundException("zNode not found");
+		Collection<ZKRecord> records = new ArrayList<ZKRecord>(node.children.size());
+		for (Node child : node.children.values()) {
+			ZKRecord record = child.record;
+			if (record != null)
+				records.add(record);
+		}
+		return records;
+	}
+
+	/**
+	 * Returns the records of the root zNode and of all zNodes below it.
+	 *
+	 * @return Collection of records in the subtree
+	 */
+	public Collection<ZKRecord> getRecords() {
+		Collection<ZKRecord> records = new ArrayList<ZKRecord>();
+		Deque<Node> pending = new ArrayDeque<Node>();
+		pending.push(current().root);
+		while (!pending.isEmpty()) {
+			Node node = pending.pop();
+			ZKRecord record = node.record;
+			if (record != null)
+				records.add(record);
+			for (Node child : node.children.values())
+				pending.push(child);
+		}
+		return records;
+	}
+
+	/**
+	 *
+	 * @return Path to the root zNode
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Stops following changes and removes the watch. The naming client is not
+	 * closed.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		zkNaming.removeWatchAsync(path, current);
+		Generation generation = loading;
+		if (generation != null)
+			zkNaming.removeWatchAsync(path, generation);
+	}
+
+	//
+	// private implementation
+	//
+
+	/** Returns the current generation, loading it again if the last load failed. */
+	private Generation current() {
+		if (failed)
+			reload();
+		return current;
+	}
+
+	/** Returns the trie node of the path, or null if absent. */
+	private Node find(Node root, String path) {
+		if (path == null)
+			throw new IllegalArgumentException("Path cannot be null!");
+		if (path.equals(this.path))
+			return root;
+		if (!path.startsWith(rootPath + "/"))
+			throw new IllegalArgumentException("Path " + path + " is not below " + this.path + "!");
+
+		Node node = root;
+		int start = rootPath.length();
+		while (node != null && start < path.length()) {
+			int end = path.indexOf('/', start + 1);
+			if (end < 0)
+				end = path.length();
+			node = node.children.get(path.substring(start + 1, end));
+			start = end;
+		}
+		return node;
+	}
+
+	/** Reacts to session changes notified to the watcher. */
+	private void stateChanged(KeeperState state) {
+		if (state == KeeperState.Disconnected) {
+			disconnected = true;
+		} else if (state == KeeperState.SyncConnected && disconnected) {
+			// changes while disconnected were not notified
+			disconnected = false;
+			reload();
+		} else if (state == KeeperState.Expired) {
+			// watches are lost, a new session is opened by the reload
+			reload();
+		}
+	}
+
+	/**
+	 * Loads the subtree again into a new generation, with a new watch. Only
+	 * one load runs at a time.
+	 */
+	private void reload() {
+		if (closed || !reloading.compareAndSet(false, true))
+			return;
+
+		Generation generation = new Generation();
+		loading = generation;
+		load(generation).whenComplete((v, e) -> {
+			failed = (e != null);
+			Generation previous = current;
+			if (e == null) {
+				current = generation;
+				zkNaming.removeWatchAsync(path, previous);
+			} else {
+				zkNaming.removeWatchAsync(path, generation);
+			}
+			loading = null;
+			reloading.set(false);
+		});
+	}
+
+	/**
+	 * Sets the watch of the generation and scans the subtree into its trie. The
+	 * watch is requested before the scan, so no change is missed.
+	 */
+	private CompletableFuture<Void> load(Generation generation) {
+		CompletableFuture<Void> watch = zkNaming.addRecursiveWatchAsync(path, generation);
+		CompletableFuture<Void> scan = zkNaming.scanAsync(path, generation::put);
+		return CompletableFuture.allOf(watch, scan);
+	}
+
+	private static String parentOf(String path) {
+		int index = path.lastIndexOf('/');
+		return (index == 0) ? "/" : path.substring(0, index);
+	}
+
+}
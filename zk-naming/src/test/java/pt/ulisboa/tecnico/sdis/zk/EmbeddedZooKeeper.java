@@ -0,0 +1,216 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.quorum.QuorumPeerConfig;
+import org.apache.zookeeper.server.quorum.QuorumPeerMain;
+
+/**
+ * ZooKeeper running in the test process, on free local ports and with data in
+ * temporary directories: a standalone server, or an ensemble of servers that
+ * elect a leader and replicate the data, as a production ensemble does.<br>
+ * <br>
+ * Packaged in the test JAR of ZK-Naming, for the benchmarks.
+ */
+public class EmbeddedZooKeeper implements AutoCloseable {
+
+	/* Tick time, in milliseconds */
+	private static final int TICK_TIME = 2000;
+
+	/* Maximum number of client connections, per server */
+	private static final int MAX_CONNECTIONS = 1000;
+
+	/* Directory for snapshots and transaction logs, with one subdirectory per ensemble server */
+	private final Path dataDir;
+
+	/* Standalone server, null for an ensemble */
+	private ZooKeeperServer server;
+
+	private ServerCnxnFactory factory;
+
+	/* Ensemble servers, empty for a standalone server */
+	private final List<Peer> peers = new ArrayList<>();
+
+	/* Client addresses, in host:port format */
+	private final List<String> addresses = new ArrayList<>();
+
+	/**
+	 * Starts a standalone server.
+	 *
+	 * @throws IOException if the server cannot be started
+	 */
+	public EmbeddedZooKeeper() throws IOException {
+		this(1);
+	}
+
+	/**
+	 * Starts a standalone server, if the size is 1, or an ensemble of the
+	 * specified size. The ensemble is started in the background, and serves
+	 * clients once a leader is elected.
+	 *
+	 * @param size number of servers
+	 * @throws IOException if a server cannot be started
+	 */
+	public EmbeddedZooKeeper(int size) throws IOException {
+		if (size < 1)
+			throw new IllegalArgumentException("Ensemble size must be positive!");
+		dataDir = Files.createTempDirectory("zk-test");
+		try {
+			if (size == 1)
+				startStandalone();
+			else
+				startEnsemble(size);
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 *
+	 * @return Addresses of the servers, in host:port format, separated by
+	 *         commas
+	 */
+	public String getUrl() {
+		return String.join(",", addresses);
+	}
+
+	/**
+	 *
+	 * @return Number of servers
+	 */
+	public int getSize() {
+		return addresses.size();
+	}
+
+	/**
+	 * Stops the servers and deletes their data.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (factory != null)
+			factory.shutdown();
+		if (server != null)
+			server.shutdown();
+		for (Peer peer : peers)
+			peer.shutdown();
+		for (Peer peer : peers) {
+			try {
+				peer.thread.join(TICK_TIME * 5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		try (Stream<Path> files = Files.walk(dataDir)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	//
+	// private implementation
+	//
+
+	private void startStandalone() throws IOException {
+		File dir = dataDir.toFile();
+		server = new ZooKeeperServer(dir, dir, TICK_TIME);
+		factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), MAX_CONNECTIONS);
+		try {
+			factory.startup(server);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while starting ZooKeeper", e);
+		}
+		addresses.add("127.0.0.1:" + factory.getLocalPort());
+	}
+
+	private void startEnsemble(int size) throws IOException {
+		// client, quorum and election port of each server
+		int[] ports = freePorts(size * 3);
+		Properties common = new Properties();
+		common.setProperty("tickTime", String.valueOf(TICK_TIME));
+		common.setProperty("initLimit", "10");
+		common.setProperty("syncLimit", "5");
+		common.setProperty("maxClientCnxns", String.valueOf(MAX_CONNECTIONS));
+		common.setProperty("admin.enableServer", "false");
+		for (int id = 1; id <= size; id++) {
+			int i = (id - 1) * 3;
+			common.setProperty("server." + id, "127.0.0.1:" + ports[i + 1] + ":" + ports[i + 2]);
+			addresses.add("127.0.0.1:" + ports[i]);
+		}
+
+		for (int id = 1; id <= size; id++) {
+			Path dir = Files.createDirectories(dataDir.resolve("server" + id));
+			Files.write(dir.resolve("myid"), String.valueOf(id).getBytes(StandardCharsets.US_ASCII));
+			Properties props = new Properties();
+			props.putAll(common);
+			props.setProperty("dataDir", dir.toString());
+			props.setProperty("clientPort", String.valueOf(ports[(id - 1) * 3]));
+			props.setProperty("clientPortAddress", "127.0.0.1");
+
+			QuorumPeerConfig config = new QuorumPeerConfig();
+			try {
+				config.parseProperties(props);
+			} catch (QuorumPeerConfig.ConfigException e) {
+				throw new IOException("Invalid ZooKeeper configuration", e);
+			}
+			Peer peer = new Peer(config, id);
+			peers.add(peer);
+			peer.thread.start();
+		}
+	}
+
+	/** Returns ports that were free when the method was called. */
+	private static int[] freePorts(int count) throws IOException {
+		int[] ports = new int[count];
+		List<ServerSocket> sockets = new ArrayList<>();
+		try {
+			for (int i = 0; i < count; i++) {
+				ServerSocket socket = new ServerSocket(0);
+				sockets.add(socket);
+				ports[i] = socket.getLocalPort();
+			}
+		} finally {
+			for (ServerSocket socket : sockets)
+				socket.close();
+		}
+		return ports;
+	}
+
+	/** Ensemble server, running in its own thread until shut down. */
+	private static class Peer extends QuorumPeerMain {
+
+		final Thread thread;
+
+		Peer(QuorumPeerConfig config, int id) {
+			thread = new Thread(() -> {
+				try {
+					runFromConfig(config);
+				} catch (Exception e) {
+					// the ensemble stays without this server
+				}
+			}, "EmbeddedZooKeeper-server" + id);
+			thread.setDaemon(true);
+		}
+
+		void shutdown() {
+			if (quorumPeer != null)
+				quorumPeer.shutdown();
+		}
+
+	}
+
+}
@@ -1,9 +1,31 @@
 package pt.ulisboa.tecnico.sdis.zk;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.AfterAll;
@@ -220,6 +242,561 @@ public class ZKNamingIT extends BaseIT {
 		tearDownUnbindChild(path2);
 	}
 
-	// TODO test UNBIND ALL
+	@Test
+	public void testStreamRecords() throws Exception {
+
+		final String path = "/grpc/stream";
+		for (int i = 0; i < 10; i++)
+			zkNaming.rebind(path + "/" + i, "host" + i + ":" + (1000 + i));
+
+		// window smaller than the number of children
+		try (Stream<ZKRecord> records = zkNaming.streamRecords(path, 3)) {
+			Collection<String> uris = records.map(ZKRecord::getURI).collect(Collectors.toList());
+			assertEquals(10, uris.size());
+			assertTrue(uris.contains("host0:1000"));
+			assertTrue(uris.contains("host9:1009"));
+		}
+
+		// closed before being consumed
+		try (Stream<ZKRecord> records = zkNaming.streamRecords(path)) {
+			assertTrue(records.findFirst().isPresent());
+		}
+
+		assertThrows(ZKNamingException.class, () -> zkNaming.streamRecords(path + "/none"));
+		assertThrows(ZKNamingException.class, () -> zkNaming.streamRecords(path, 0));
+
+		zkNaming.unbindAll(path);
+	}
+
+	@Test
+	public void testPersistentSession() throws Exception {
+
+		try (ZKNaming persistent = new ZKNaming(testProps.getProperty("zk.host"), testProps.getProperty("zk.port"),
+				true)) {
+			assertTrue(persistent.isPersistentSession());
+
+			persistent.rebind(TEST_PATH_CHILD, TEST_URI);
+
+			// query
+			ZKRecord outputRecord = persistent.lookup(TEST_PATH_CHILD);
+			assertNotNull(outputRecord);
+			assertEquals(TEST_URI, outputRecord.getURI());
+
+			// reuse session
+			outputRecord = persistent.lookup(TEST_PATH_CHILD);
+			assertEquals(TEST_URI, outputRecord.getURI());
+
+			persistent.unbind(TEST_PATH_CHILD, TEST_URI);
+		}
+	}
+
+	@Test
+	public void testConnectTimeout() throws Exception {
+
+		// nothing listens on port 1
+		try (ZKNaming unreachable = new ZKNaming("localhost", "1", true)) {
+			unreachable.setConnectTimeout(500);
+			long start = System.currentTimeMillis();
+			assertThrows(ZKNamingException.class, () -> unreachable.rebind(TEST_PATH, TEST_URI));
+			assertTrue(System.currentTimeMillis() - start < 5000);
+
+			// the ensemble is known to be unreachable, later calls fail at once
+			start = System.currentTimeMillis();
+			assertThrows(ZKNamingException.class, () -> unreachable.rebind(TEST_PATH, TEST_URI));
+			ExecutionException e = assertThrows(ExecutionException.class,
+					() -> unreachable.lookupAsync(TEST_PATH).get());
+			assertTrue(e.getCause() instanceof ZKNamingException);
+			assertTrue(System.currentTimeMillis() - start < 500);
+		}
+		assertThrows(IllegalArgumentException.class, () -> zkNaming.setConnectTimeout(0));
+	}
+
+	@Test
+	public void testHedgedLookup() throws Exception {
+
+		zkNaming.rebind(TEST_PATH, TEST_URI);
+		String host = testProps.getProperty("zk.host");
+		int port = Integer.parseInt(testProps.getProperty("zk.port"));
+		// two ensemble members, both forwarding to the test server
+		try (StallingProxy a = new StallingProxy(host, port);
+				StallingProxy b = new StallingProxy(host, port);
+				ZKNaming hedged = new ZKNaming("127.0.0.1:" + a.getPort() + ",127.0.0.1:" + b.getPort(), true)) {
+			assertEquals(TEST_URI, hedged.lookup(TEST_PATH).getURI());
+			StallingProxy primary = (a.getConnectionCount() > 0) ? a : b;
+
+			// without hedging, a lookup to a stalled member misses its deadline
+			primary.stalled = true;
+			long start = System.currentTimeMillis();
+			ZKNamingException e = assertThrows(ZKNamingException.class, () -> hedged.lookup(TEST_PATH, 300));
+			assertTrue(e.getCause() instanceof TimeoutException);
+			assertTrue(System.currentTimeMillis() - start < 2000);
+
+			// the lookup is sent again to the other member, which replies first
+			hedged.setHedgeDelay(100);
+			assertEquals(TEST_URI, hedged.lookup(TEST_PATH, 2000).getURI());
+			assertEquals(1, hedged.getHedgedLookupCount());
+			primary.stalled = false;
+
+			// a hedged lookup after a change by the client sees the change
+			hedged.rebind(TEST_PATH, TEST_URI_CHILD1);
+			primary.stalled = true;
+			assertEquals(TEST_URI_CHILD1, hedged.lookup(TEST_PATH, 2000).getURI());
+			assertEquals(2, hedged.getHedgedLookupCount());
+			primary.stalled = false;
+		} finally {
+			tearDownUnbind();
+		}
+		// a single server cannot hedge
+		try (ZKNaming persistent = new ZKNaming(testProps.getProperty("zk.host"), testProps.getProperty("zk.port"),
+				true)) {
+			assertThrows(IllegalStateException.class, () -> persistent.setHedgeDelay(100));
+		}
+		assertThrows(IllegalArgumentException.class, () -> zkNaming.setOperationTimeout(-1));
+	}
+
+	@Test
+	public void testRetryPolicy() throws Exception {
+
+		zkNaming.rebind(TEST_PATH, TEST_URI);
+		ZKRetryPolicy policy = ZKRetryPolicy.exponentialBackoff(50, 200).withMaxAttempts(5);
+		for (int attempt = 1; attempt < 10; attempt++)
+			assertTrue(policy.delayMillis(attempt) <= Math.min(200, 50 << (attempt - 1)));
+
+		try (StallingProxy proxy = new StallingProxy(testProps.getProperty("zk.host"),
+				Integer.parseInt(testProps.getProperty("zk.port")));
+				ZKNaming retrying = ZKNaming.builder("127.0.0.1:" + proxy.getPort()).persistentSession(true)
+						.sessionTimeout(10000).retryPolicy(policy).build()) {
+			assertEquals(10000, retrying.getSessionTimeout());
+			assertEquals(TEST_URI, retrying.lookup(TEST_PATH).getURI());
+
+			// the connection is lost while the lookup is pending
+			proxy.stalled = true;
+			CompletableFuture<ZKRecord> lookup = retrying.lookupAsync(TEST_PATH);
+			Thread.sleep(100);
+			proxy.dropConnections();
+
+			// the client reconnects and the lookup is sent again
+			assertEquals(TEST_URI, lookup.get().getURI());
+			assertTrue(retrying.getRetryCount() > 0);
+		} finally {
+			tearDownUnbind();
+		}
+		assertThrows(IllegalArgumentException.class, () -> ZKNaming.builder("localhost:2181").sessionTimeout(0));
+		assertThrows(IllegalArgumentException.class, () -> ZKRetryPolicy.exponentialBackoff(100, 10));
+	}
+
+	@Test
+	public void testCachedLookup() throws Exception {
+
+		try (ZKNaming cached = new ZKNaming(testProps.getProperty("zk.host"), testProps.getProperty("zk.port"),
+				true)) {
+			cached.setCacheEnabled(true);
+			cached.rebind(TEST_PATH_CHILD, TEST_URI);
+
+			// first lookup misses, second is served from cache
+			assertEquals(TEST_URI, cached.lookup(TEST_PATH_CHILD).getURI());
+			assertEquals(TEST_URI, cached.lookup(TEST_PATH_CHILD).getURI());
+			assertEquals(1, cached.getCacheMissCount());
+			assertEquals(1, cached.getCacheHitCount());
+
+			// change by another client is observed through the watch
+			zkNaming.rebind(TEST_PATH_CHILD, TEST_URI_CHILD1);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (cached.getCacheInvalidationCount() == 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(TEST_URI_CHILD1, cached.lookup(TEST_PATH_CHILD).getURI());
+
+			cached.unbind(TEST_PATH_CHILD, TEST_URI);
+		}
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+
+		ZKRecord rec1 = new ZKRecord(TEST_PATH_CHILD, TEST_URI_CHILD1);
+		ZKRecord rec2 = new ZKRecord(TEST_PATH_CHILD2, TEST_URI_CHILD2);
+		CompletableFuture.allOf(zkNaming.rebindAsync(rec1), zkNaming.rebindAsync(rec2)).get();
+
+		// query
+		assertEquals(rec1, zkNaming.lookupAsync(TEST_PATH_CHILD).get());
+		Collection<ZKRecord> results = zkNaming.listRecordsAsync("/TestService").get();
+		assertTrue(results.contains(rec1));
+		assertTrue(results.contains(rec2));
+
+		zkNaming.unbindAsync(rec1).get();
+		zkNaming.unbindAsync(rec2).get();
+		ExecutionException e = assertThrows(ExecutionException.class,
+				() -> zkNaming.lookupAsync(TEST_PATH_CHILD).get());
+		assertTrue(e.getCause() instanceof ZKNamingException);
+	}
+
+	@Test
+	public void testConcurrentLookups() throws Exception {
+
+		final int n = 16;
+		zkNaming.rebind(TEST_PATH_CHILD, TEST_URI);
+		ExecutorService executor = Executors.newFixedThreadPool(n);
+		try (JmxZKNamingMetrics metrics = new JmxZKNamingMetrics("ZKNamingIT-single-flight")) {
+			zkNaming.setMetrics(metrics);
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<ZKRecord>> results = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				results.add(executor.submit(() -> {
+					start.await();
+					return zkNaming.lookup(TEST_PATH_CHILD);
+				}));
+			}
+			start.countDown();
+			for (Future<ZKRecord> result : results)
+				assertEquals(TEST_URI, result.get().getURI());
+
+			// concurrent lookups share the session and request
+			assertEquals(n, metrics.getOperationStats("lookup").getCount());
+			assertTrue(metrics.getConnectionStats().getConnectionCount() < n);
+
+			// a lookup after a change is not served by an older request
+			zkNaming.rebind(TEST_PATH_CHILD, TEST_URI_CHILD1);
+			assertEquals(TEST_URI_CHILD1, zkNaming.lookup(TEST_PATH_CHILD).getURI());
+		} finally {
+			executor.shutdown();
+		}
+		tearDownUnbindChild(TEST_PATH_CHILD);
+	}
+
+	@Test
+	public void testSharedLookupDeadlines() throws Exception {
+
+		zkNaming.rebind(TEST_PATH_CHILD, TEST_URI);
+
+		// a lookup that joins a read is not failed by the deadline of the caller that started it
+		CompletableFuture<ZKRecord> shortLookup = zkNaming.lookupAsync(TEST_PATH_CHILD, 1);
+		CompletableFuture<ZKRecord> lookup = zkNaming.lookupAsync(TEST_PATH_CHILD, 0);
+		assertEquals(TEST_URI, lookup.get().getURI());
+		assertTrue(shortLookup.isDone());
+
+		// nor by its cancellation
+		CompletableFuture<ZKRecord> cancelled = zkNaming.lookupAsync(TEST_PATH_CHILD, 0);
+		lookup = zkNaming.lookupAsync(TEST_PATH_CHILD, 0);
+		cancelled.cancel(false);
+		assertEquals(TEST_URI, lookup.get().getURI());
+
+		tearDownUnbindChild(TEST_PATH_CHILD);
+	}
+
+	@Test
+	public void testBindAllUnbindAll() throws Exception {
+
+		ZKRecord rec1 = new ZKRecord(TEST_PATH_4LVL_A, TEST_URI_CHILD1);
+		ZKRecord rec2 = new ZKRecord(TEST_PATH_4LVL_B, TEST_URI_CHILD2);
+		zkNaming.bindAll(Arrays.asList(rec1, rec2));
+
+		// query
+		assertEquals(rec1, zkNaming.lookup(TEST_PATH_4LVL_A));
+		assertEquals(rec2, zkNaming.lookup(TEST_PATH_4LVL_B));
+
+		// batch fails as a whole if one record exists
+		ZKRecord rec3 = new ZKRecord(TEST_PATH_CHILD, TEST_URI);
+		assertThrows(ZKNamingException.class, () -> zkNaming.bindAll(Arrays.asList(rec3, rec1)));
+		assertThrows(ZKNamingException.class, () -> zkNaming.lookup(TEST_PATH_CHILD));
+
+		zkNaming.unbindAll(Arrays.asList(rec1, rec2));
+		assertThrows(ZKNamingException.class, () -> zkNaming.lookup(TEST_PATH_4LVL_A));
+	}
+
+	@Test
+	public void testDeepBindRebind() throws Exception {
+
+		final String path = "/grpc/deep";
+		// parents are missing
+		zkNaming.bind(path + "/a/b/c", "host1:1000");
+		assertEquals("host1:1000", zkNaming.lookup(path + "/a/b/c").getURI());
+		assertThrows(ZKNamingException.class, () -> zkNaming.bind(path + "/a/b/c", "host2:2000"));
+
+		// rebind creates missing zNodes and overwrites existing ones
+		zkNaming.rebind(path + "/a/d/e", "host2:2000");
+		zkNaming.rebind(path + "/a/b/c", "host3:3000");
+		assertEquals("host2:2000", zkNaming.lookup(path + "/a/d/e").getURI());
+		assertEquals("host3:3000", zkNaming.lookup(path + "/a/b/c").getURI());
+
+		zkNaming.unbindAll(path);
+		assertThrows(ZKNamingException.class, () -> zkNaming.unbind(path + "/a/b/c", ""));
+	}
+
+	@Test
+	public void testRecordMetadata() throws Exception {
+
+		final String path = "/grpc/metadata";
+		ZKRecordMetadata metadata = ZKRecordMetadata.DEFAULT.withWeight(5).withZone("eu-west-1a")
+				.withProtocol("grpc").withCapacity(100).withHealth(90);
+		ZKRecord rec1 = new ZKRecord(path + "/1", "host1:1000", metadata);
+		ZKRecord rec2 = new ZKRecord(path + "/2", "host2:2000");
+		zkNaming.rebind(rec1);
+		zkNaming.rebind(rec2);
+
+		// metadata is read back, plain records have the default metadata
+		assertEquals(rec1, zkNaming.lookup(rec1.getPath()));
+		assertEquals(ZKRecordMetadata.DEFAULT, zkNaming.lookup(rec2.getPath()).getMetadata());
+		Collection<ZKRecord> records = zkNaming.listRecords(path);
+		assertTrue(records.contains(rec1));
+		assertTrue(records.contains(rec2));
+
+		// rebind replaces the metadata
+		zkNaming.rebind(rec1.getPath(), "host1:1000");
+		assertEquals(ZKRecordMetadata.DEFAULT, zkNaming.lookup(rec1.getPath()).getMetadata());
+
+		zkNaming.unbindAll(path);
+	}
+
+	@Test
+	public void testUnbindAllPath() throws Exception {
+
+		final String path = "/grpc/unbindAll";
+		zkNaming.rebind(path + "/1/a", "host1:1000");
+		zkNaming.rebind(path + "/2", "host2:2000");
+
+		zkNaming.unbindAll(path);
+		assertThrows(ZKNamingException.class, () -> zkNaming.listRecords(path));
+	}
+
+	@Test
+	public void testEphemeralBindings() throws Exception {
+
+		final String path = "/grpc/ephemeral";
+		ZKRecord rec1;
+		ZKRecord rec2;
+		try (ZKNaming persistent = new ZKNaming(testProps.getProperty("zk.host"), testProps.getProperty("zk.port"),
+				true)) {
+			persistent.bindEphemeral(path + "/main", TEST_URI);
+			rec1 = persistent.bindEphemeralSequential(path + "/replica-", TEST_URI_CHILD1);
+			rec2 = persistent.bindEphemeralSequential(path + "/replica-", TEST_URI_CHILD2);
+			assertNotEquals(rec1.getPath(), rec2.getPath());
+
+			// bindings are visible to other clients
+			Collection<ZKRecord> results = zkNaming.listRecords(path);
+			assertEquals(3, results.size());
+			assertTrue(results.contains(rec1));
+			assertTrue(results.contains(rec2));
+		}
+
+		// bindings are deleted with the session
+		assertEquals(0, zkNaming.listRecords(path).size());
+		zkNaming.unbindAll(path);
+	}
+
+	@Test
+	public void testResolver() throws Exception {
+
+		final String path = "/grpc/resolver";
+		ZKRecord rec1 = new ZKRecord(path + "/1", TEST_URI_CHILD1);
+		ZKRecord rec2 = new ZKRecord(path + "/2", TEST_URI_CHILD2);
+		zkNaming.rebind(rec1);
+		zkNaming.rebind(rec2);
+
+		try (ZKNaming persistent = new ZKNaming(testProps.getProperty("zk.host"), testProps.getProperty("zk.port"),
+				true); ZKResolver resolver = new ZKResolver(persistent, path)) {
+
+			// round-robin alternates between children
+			ZKRecord first = resolver.resolve();
+			ZKRecord second = resolver.resolve();
+			assertNotEquals(first, second);
+			assertTrue(first.equals(rec1) || first.equals(rec2));
+			assertTrue(second.equals(rec1) || second.equals(rec2));
+
+			// removed child is no longer resolved
+			zkNaming.unbind(rec2);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (resolver.getRecords().contains(rec2) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(rec1, resolver.resolve());
+			assertEquals(rec1, resolver.resolve());
+
+			// deleted parent leaves no endpoints, until it is created again
+			zkNaming.unbindAll(path);
+			deadline = System.currentTimeMillis() + 5000;
+			while (!resolver.getRecords().isEmpty() && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertThrows(ZKNamingException.class, () -> resolver.resolve());
+			zkNaming.rebind(rec2);
+			deadline = System.currentTimeMillis() + 5000;
+			while (!resolver.getRecords().contains(rec2) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(rec2, resolver.resolve());
+		}
+
+		zkNaming.unbindAll(path);
+	}
+
+	@Test
+	public void testTreeCache() throws Exception {
+
+		final String path = "/grpc/tree";
+		try (ZKNaming persistent = new ZKNaming(testProps.getProperty("zk.host"), testProps.getProperty("zk.port"),
+				true)) {
+			persistent.rebind(path + "/a/1", "host1:1000");
+			persistent.rebind(path + "/a/2", "host2:2000");
+
+			try (ZKTreeCache tree = new ZKTreeCache(persistent, path)) {
+				// loaded by the scan
+				assertEquals("host1:1000", tree.lookup(path + "/a/1").getURI());
+				assertEquals(2, tree.listRecords(path + "/a").size());
+				assertEquals(4, tree.getRecords().size());
+
+				// kept up to date by the recursive watch
+				zkNaming.rebind(path + "/b/3", "host3:3000");
+				zkNaming.rebind(path + "/a/1", "host4:4000");
+				zkNaming.unbind(path + "/a/2", "");
+				long deadline = System.currentTimeMillis() + 5000;
+				while (tree.getRecords().size() != 5 && System.currentTimeMillis() < deadline)
+					Thread.sleep(10);
+				while (!"host4:4000".equals(tree.lookup(path + "/a/1").getURI())
+						&& System.currentTimeMillis() < deadline)
+					Thread.sleep(10);
+				assertEquals("host3:3000", tree.lookup(path + "/b/3").getURI());
+				assertEquals("host4:4000", tree.lookup(path + "/a/1").getURI());
+				assertThrows(ZKNodeNotFoundException.class, () -> tree.lookup(path + "/a/2"));
+				assertThrows(IllegalArgumentException.class, () -> tree.lookup("/grpc/other"));
+			}
+			persistent.unbindAll(path);
+		}
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+
+		try (JmxZKNamingMetrics metrics = new JmxZKNamingMetrics("ZKNamingIT")) {
+			zkNaming.setMetrics(metrics);
+			zkNaming.rebind(TEST_PATH_CHILD, TEST_URI);
+			zkNaming.lookup(TEST_PATH_CHILD);
+			zkNaming.unbind(TEST_PATH_CHILD, TEST_URI);
+			assertThrows(ZKNamingException.class, () -> zkNaming.lookup(TEST_PATH_CHILD));
+
+			JmxZKNamingMetrics.OperationStatsMXBean lookup = metrics.getOperationStats("lookup");
+			assertEquals(2, lookup.getCount());
+			assertEquals(1, lookup.getErrorCount());
+			assertTrue(lookup.getLatencyP99Millis() >= lookup.getLatencyP50Millis());
+			// each lookup opens its own session
+			assertTrue(lookup.getConnectMeanMillis() > 0);
+			assertTrue(metrics.getConnectionStats().getConnectionCount() > 0);
+		}
+	}
+
+	@Test
+	public void testConnectTimeMeasured() throws Exception {
+		List<long[]> times = new CopyOnWriteArrayList<>();
+		zkNaming.setMetrics(new ZKNamingMetrics() {
+			@Override
+			public void operationCompleted(String operation, long connectNanos, long requestNanos, Throwable error) {
+				if (operation.equals("lookup"))
+					times.add(new long[] { connectNanos, requestNanos });
+			}
+		});
+		zkNaming.rebind(TEST_PATH_CHILD, TEST_URI);
+		try {
+			// per-call sessions: the handshake and the close are connection time
+			zkNaming.lookup(TEST_PATH_CHILD);
+			zkNaming.lookupAsync(TEST_PATH_CHILD).get();
+			assertEquals(2, times.size());
+			for (long[] time : times) {
+				assertTrue(time[0] > 0);
+				assertTrue(time[1] >= 0);
+			}
+		} finally {
+			zkNaming.setMetrics(ZKNamingMetrics.NONE);
+			zkNaming.unbind(TEST_PATH_CHILD, TEST_URI);
+		}
+	}
+
+	/**
+	 * Forwards connections to a server, and holds the traffic while stalled,
+	 * to act as a slow ensemble member.
+	 */
+	static class StallingProxy implements AutoCloseable {
+
+		private final ServerSocket server;
+		private final String targetHost;
+		private final int targetPort;
+		private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+		private final AtomicInteger connections = new AtomicInteger();
+
+		volatile boolean stalled = false;
+
+		StallingProxy(String targetHost, int targetPort) throws IOException {
+			this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			this.targetHost = targetHost;
+			this.targetPort = targetPort;
+			start(this::accept);
+		}
+
+		int getPort() {
+			return server.getLocalPort();
+		}
+
+		int getConnectionCount() {
+			return connections.get();
+		}
+
+		private void accept() {
+			try {
+				while (true) {
+					Socket client = server.accept();
+					Socket target = new Socket(targetHost, targetPort);
+					sockets.add(client);
+					sockets.add(target);
+					connections.incrementAndGet();
+					start(() -> forward(client, target));
+					start(() -> forward(target, client));
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		private void forward(Socket from, Socket to) {
+			byte[] buffer = new byte[8192];
+			try {
+				InputStream in = from.getInputStream();
+				OutputStream out = to.getOutputStream();
+				int n;
+				while ((n = in.read(buffer)) >= 0) {
+					while (stalled)
+						Thread.sleep(10);
+					out.write(buffer, 0, n);
+					out.flush();
+				}
+			} catch (IOException | InterruptedException e) {
+				// closed
+			}
+			close(from);
+			close(to);
+		}
+
+		private static void start(Runnable task) {
+			Thread thread = new Thread(task);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private static void close(Socket socket) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+
+		/** Closes the forwarded connections, dropping the traffic held. */
+		void dropConnections() {
+			for (Socket socket : sockets)
+				close(socket);
+			sockets.clear();
+			stalled = false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			server.close();
+			dropConnections();
+		}
+	}
 
 }
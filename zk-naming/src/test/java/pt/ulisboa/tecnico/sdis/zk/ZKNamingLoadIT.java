@@ -0,0 +1,304 @@
+package pt.ulisboa.tecnico.sdis.zk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Load tests, run against ZooKeeper started in the test process, so that they
+ * can be reproduced on any machine. Each workload runs a fixed number of
+ * operations on each thread, choosing names with a seeded random generator,
+ * and reports the throughput and latency percentiles. If a baseline file is
+ * given, and it was recorded with the same settings, the results are compared
+ * with it and a workload fails if it is slower than the baseline beyond the
+ * tolerance. The comparison is opt-in because the baseline only holds on the
+ * machine where it was recorded.<br>
+ * <br>
+ * The settings are system properties, e.g.
+ * {@code mvn verify -Dit.test=ZKNamingLoadIT -Dload.servers=3 -Dload.threads=16}:
+ * <ul>
+ * <li>load.servers: ZooKeeper servers, 1 for standalone (default 1)</li>
+ * <li>load.threads: concurrent clients (default 8)</li>
+ * <li>load.operations: measured operations per thread (default 2000)</li>
+ * <li>load.width: children of the listed parent (default 500)</li>
+ * <li>load.seed: seed of the random generators (default 42)</li>
+ * <li>load.baseline: baseline file to compare with, e.g.
+ * src/test/resources/load-baseline.properties (default none)</li>
+ * <li>load.tolerance: allowed slowdown over the baseline, as a fraction
+ * (default 1.0, i.e. twice as slow)</li>
+ * <li>load.record: file where the results are written, in the baseline
+ * format, to record a new baseline</li>
+ * </ul>
+ */
+public class ZKNamingLoadIT {
+
+	// static members
+	static final String LOAD_PATH = "/LoadTest";
+	static final String LOOKUP_PATH = LOAD_PATH + "/lookup";
+	static final String CHURN_PATH = LOAD_PATH + "/churn";
+	static final String WIDE_PATH = LOAD_PATH + "/wide";
+	static final String LOAD_URI = "host:port";
+
+	/* Names bound for the lookup workload */
+	static final int LOOKUP_NAMES = 100;
+
+	/* Percentage of rebinds in the lookup workload */
+	static final int LOOKUP_WRITE_PERCENT = 5;
+
+	/* Listings are far heavier than lookups, so fewer are made */
+	static final int LIST_OPERATIONS_DIVISOR = 20;
+
+	static final int SERVERS = Integer.getInteger("load.servers", 1);
+	static final int THREADS = Integer.getInteger("load.threads", 8);
+	static final int OPERATIONS = Integer.getInteger("load.operations", 2000);
+	static final int WIDTH = Integer.getInteger("load.width", 500);
+	static final long SEED = Long.getLong("load.seed", 42);
+	static final double TOLERANCE = Double.parseDouble(System.getProperty("load.tolerance", "1.0"));
+	static final String BASELINE_FILE = System.getProperty("load.baseline");
+	static final String RECORD_FILE = System.getProperty("load.record");
+
+	private static EmbeddedZooKeeper zooKeeper;
+
+	private static ZKNaming zkNaming;
+
+	private static Properties baseline;
+
+	// one-time initialization and clean-up
+	@BeforeAll
+	public static void oneTimeSetUp() throws Exception {
+		baseline = new Properties();
+		if (BASELINE_FILE != null) {
+			try (InputStream in = Files.newInputStream(Paths.get(BASELINE_FILE))) {
+				baseline.load(in);
+			}
+		}
+
+		zooKeeper = new EmbeddedZooKeeper(SERVERS);
+		zkNaming = ZKNaming.builder(zooKeeper.getUrl()).persistentSession(true).connectTimeout(30_000)
+				.build();
+		zkNaming.setCacheEnabled(false);
+
+		List<ZKRecord> records = new ArrayList<>();
+		for (int i = 0; i < LOOKUP_NAMES; i++)
+			records.add(new ZKRecord(LOOKUP_PATH + "/name" + i, LOAD_URI));
+		for (int i = 0; i < WIDTH; i++)
+			records.add(new ZKRecord(WIDE_PATH + "/name" + i, LOAD_URI));
+		zkNaming.bindAll(records);
+	}
+
+	@AfterAll
+	public static void oneTimeTearDown() throws Exception {
+		if (zkNaming != null)
+			zkNaming.close();
+		if (zooKeeper != null)
+			zooKeeper.close();
+	}
+
+	// tests
+
+	/** Read-heavy workload: lookups of bound names, with a few rebinds. */
+	@Test
+	public void testLookupLoad() throws Exception {
+		LoadResult result = run("lookup", OPERATIONS, (thread, random) -> {
+			String path = LOOKUP_PATH + "/name" + random.nextInt(LOOKUP_NAMES);
+			if (random.nextInt(100) < LOOKUP_WRITE_PERCENT)
+				zkNaming.rebind(path, LOAD_URI);
+			else
+				assertEquals(LOAD_URI, zkNaming.lookup(path).getURI());
+		});
+		check(result);
+	}
+
+	/** Bind churn: each thread binds names and unbinds them again. */
+	@Test
+	public void testBindChurnLoad() throws Exception {
+		// name bound by each thread, if any
+		String[] bound = new String[THREADS];
+		LoadResult result = run("churn", OPERATIONS, (thread, random) -> {
+			if (bound[thread] == null) {
+				bound[thread] = CHURN_PATH + "/t" + thread + "/name" + random.nextInt(Integer.MAX_VALUE);
+				zkNaming.bind(bound[thread], LOAD_URI);
+			} else {
+				zkNaming.unbind(bound[thread], LOAD_URI);
+				bound[thread] = null;
+			}
+		});
+		check(result);
+		zkNaming.unbindAll(CHURN_PATH);
+	}
+
+	/** Listings of a parent with many children. */
+	@Test
+	public void testWideListLoad() throws Exception {
+		int operations = Math.max(OPERATIONS / LIST_OPERATIONS_DIVISOR, 1);
+		LoadResult result = run("list", operations, (thread, random) -> {
+			Collection<ZKRecord> records = zkNaming.listRecords(WIDE_PATH);
+			assertEquals(WIDTH, records.size());
+		});
+		check(result);
+	}
+
+	//
+	// harness
+	//
+
+	/** Operation of a workload, called concurrently by all threads. */
+	interface LoadOperation {
+		void run(int thread, Random random) throws Exception;
+	}
+
+	/** Throughput and latency of a workload. */
+	static class LoadResult {
+		final String workload;
+		final long operations;
+		final double throughput;
+		final long p50Micros;
+		final long p99Micros;
+		final long maxMicros;
+
+		LoadResult(String workload, long operations, double throughput, LatencyHistogram latency) {
+			this.workload = workload;
+			this.operations = operations;
+			this.throughput = throughput;
+			this.p50Micros = TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.50));
+			this.p99Micros = TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.99));
+			this.maxMicros = TimeUnit.NANOSECONDS.toMicros(latency.getMax());
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d ops, %.0f ops/s, p50=%d us, p99=%d us, max=%d us", workload, operations,
+					throughput, p50Micros, p99Micros, maxMicros);
+		}
+	}
+
+	/**
+	 * Runs the operation on all threads: first the same number of warm-up
+	 * operations, which are not measured, then the measured operations. The
+	 * threads are started together, and the throughput is measured from the
+	 * start to the end of the last thread.
+	 */
+	private static LoadResult run(String workload, int operations, LoadOperation operation) throws Exception {
+		runPhase(workload, operations, operation, null);
+		LatencyHistogram latency = new LatencyHistogram();
+		long elapsed = runPhase(workload, operations, operation, latency);
+		long total = (long) THREADS * operations;
+		LoadResult result = new LoadResult(workload, total, total * 1e9 / elapsed, latency);
+		System.out.println(result);
+		return result;
+	}
+
+	/** Runs one phase of the workload, returning its duration in nanoseconds. */
+	private static long runPhase(String workload, int operations, LoadOperation operation, LatencyHistogram latency)
+			throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				// the same sequence of names on every run, different in each thread and phase
+				final Random random = new Random(SEED * 31 + thread * 2 + (latency == null ? 0 : 1));
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < operations; i++) {
+						long begin = System.nanoTime();
+						operation.run(thread, random);
+						if (latency != null)
+							latency.record(System.nanoTime() - begin);
+					}
+					return null;
+				}));
+			}
+			long begin = System.nanoTime();
+			start.countDown();
+			for (Future<?> future : futures)
+				future.get();
+			return System.nanoTime() - begin;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Records the result, if requested, and compares it with the baseline,
+	 * if one was given and recorded with the same settings.
+	 */
+	private static void check(LoadResult result) throws IOException {
+		if (RECORD_FILE != null)
+			record(result);
+
+		if (BASELINE_FILE == null)
+			return;
+		if (!settings().equals(baseline.getProperty("settings"))) {
+			System.out.println(result.workload + ": no baseline for " + settings());
+			return;
+		}
+		String prefix = result.workload + ".";
+		String throughput = baseline.getProperty(prefix + "throughput");
+		if (throughput != null) {
+			double minimum = Double.parseDouble(throughput) / (1 + TOLERANCE);
+			assertTrue(result.throughput >= minimum, String.format("%s: throughput %.0f ops/s below baseline %s ops/s",
+					result.workload, result.throughput, throughput));
+		}
+		checkLatency(result, "p50", result.p50Micros);
+		checkLatency(result, "p99", result.p99Micros);
+	}
+
+	private static void checkLatency(LoadResult result, String percentile, long micros) {
+		String key = result.workload + "." + percentile + ".micros";
+		String recorded = baseline.getProperty(key);
+		if (recorded == null)
+			return;
+		double maximum = Long.parseLong(recorded) * (1 + TOLERANCE);
+		assertTrue(micros <= maximum, String.format("%s: %s latency %d us above baseline %s us", result.workload,
+				percentile, micros, recorded));
+	}
+
+	/** Adds the result to the record file, in the baseline format. */
+	private static synchronized void record(LoadResult result) throws IOException {
+		Path file = Paths.get(RECORD_FILE);
+		Properties properties = new Properties();
+		if (Files.exists(file)) {
+			try (InputStream in = Files.newInputStream(file)) {
+				properties.load(in);
+			}
+		}
+		properties.setProperty("settings", settings());
+		properties.setProperty(result.workload + ".throughput", String.format("%.0f", result.throughput));
+		properties.setProperty(result.workload + ".p50.micros", String.valueOf(result.p50Micros));
+		properties.setProperty(result.workload + ".p99.micros", String.valueOf(result.p99Micros));
+		try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			properties.store(out, "ZKNamingLoadIT results");
+		}
+	}
+
+	/** Settings that the results depend on, except the tolerance. */
+	private static String settings() {
+		return "servers=" + SERVERS + ",threads=" + THREADS + ",operations=" + OPERATIONS + ",width=" + WIDTH
+				+ ",seed=" + SEED;
+	}
+
+}